@@ -0,0 +1,77 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class AnomalyDetectorTest extends TestCase {
+
+    /**
+     * @return Full tanks of 10 gallons at 30 miles per gallon, but for the tank at badIndex, written highest first.
+     */
+    private static DatabaseEntry[] steadyHistory(int count, int badIndex, int badDistance, boolean timeOutOfOrder) {
+        DatabaseEntry[] entries = new DatabaseEntry[count];
+        int odometer = 0;
+        long time = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            // Mileage varies a little, as it does.
+            odometer += i == badIndex ? badDistance : 3000 + (i % 3) * 50;
+            time += 86400000L;
+            long entryTime = i == badIndex && timeOutOfOrder ? 0 : time;
+            entries[i] = new DatabaseEntry(count - i, odometer, 10000, true, false, entryTime);
+        }
+        return entries;
+    }
+
+    public void testFlagsAMistypedOdometer() {
+        MileageHistory history = MileageHistory.of(steadyHistory(20, 5, 30000, false));
+        history.computeMileage();
+        new AnomalyDetector().scan(history);
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals("row " + i, i == 5, history.hasSuspectMileage(i));
+        }
+    }
+
+    public void testFlagsTimesOutOfOrder() {
+        MileageHistory history = MileageHistory.of(steadyHistory(20, 5, 3000, true));
+        history.computeMileage();
+        new AnomalyDetector().scan(history);
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals("row " + i, i == 5 || i == 6, history.hasSuspectOdometer(i));
+            assertFalse("row " + i, history.hasSuspectMileage(i));
+        }
+    }
+
+    public void testNeedsSegmentsBeforeJudging() {
+        MileageHistory history = MileageHistory.of(steadyHistory(4, 1, 30000, false));
+        history.computeMileage();
+        new AnomalyDetector().scan(history);
+        for (int i = 0; i < history.size(); i++) {
+            assertFalse("row " + i, history.hasSuspectMileage(i));
+        }
+    }
+
+    public void testIncrementalFlagsMatchAScanOfTheResult() {
+        // A steady car, then a tank with a mistyped odometer added at the top.
+        ArrayList<DatabaseEntry> entries = new ArrayList<DatabaseEntry>();
+        for (DatabaseEntry entry : steadyHistory(20, -1, 0, false)) {
+            entries.add(entry);
+        }
+        MileageCalculator calculator = new MileageCalculator(entries.toArray(new DatabaseEntry[entries.size()]));
+        DatabaseEntry top = entries.get(0);
+        DatabaseEntry bad = new DatabaseEntry(100, top.getOdometerTenths() + 30000, 10000, true, false, top.whatTimeIsIt() + 86400000L);
+        calculator.insert(bad);
+        MileageHistory incremental = calculator.getMileageHistory();
+        assertTrue(incremental.hasSuspectMileage(0));
+
+        entries.add(0, bad);
+        MileageHistory scanned = Histories.recompute(entries);
+        new AnomalyDetector().scan(scanned);
+        for (int i = 0; i < scanned.size(); i++) {
+            assertEquals("row " + i, scanned.hasSuspectMileage(i), incremental.hasSuspectMileage(i));
+            assertEquals("row " + i, scanned.hasSuspectOdometer(i), incremental.hasSuspectOdometer(i));
+        }
+    }
+}
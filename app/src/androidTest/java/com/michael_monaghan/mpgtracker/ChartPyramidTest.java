@@ -0,0 +1,82 @@
+package com.michael_monaghan.mpgtracker;
+
+import junit.framework.TestCase;
+
+public class ChartPyramidTest extends TestCase {
+
+    public void testLevelsKeepTheRangeOfTheBucketsBelow() {
+        MileageHistory history = MileageHistory.of(new RandomHistory(8).entries(1000));
+        history.computeMileage();
+        ChartPyramid pyramid = ChartPyramid.of(history);
+
+        int points = 0;
+        for (int i = 0; i < history.size(); i++) {
+            if (!history.unknownMileage(i)) {
+                points++;
+            }
+        }
+        assertEquals(points, pyramid.getPoints());
+        assertEquals(1, pyramid.size(pyramid.getLevels() - 1));
+
+        // Level 0 is oldest first.
+        int j = points;
+        for (int i = 0; i < history.size(); i++) {
+            if (!history.unknownMileage(i)) {
+                j--;
+                assertEquals(history.getOdometer(i), pyramid.getStartOdometer(0, j), 0);
+                assertEquals(history.getMileage(i), pyramid.getMinMileage(0, j), 0);
+            }
+        }
+
+        for (int level = 1; level < pyramid.getLevels(); level++) {
+            assertEquals((pyramid.size(level - 1) + 1) / 2, pyramid.size(level));
+            for (int i = 0; i < pyramid.size(level); i++) {
+                int first = 2 * i;
+                int last = Math.min(first + 1, pyramid.size(level - 1) - 1);
+                assertEquals(pyramid.getStartOdometer(level - 1, first), pyramid.getStartOdometer(level, i), 0);
+                assertEquals(pyramid.getEndOdometer(level - 1, last), pyramid.getEndOdometer(level, i), 0);
+                assertEquals(Math.min(pyramid.getMinMileage(level - 1, first), pyramid.getMinMileage(level - 1, last)), pyramid.getMinMileage(level, i), 0);
+                assertEquals(Math.max(pyramid.getMaxMileage(level - 1, first), pyramid.getMaxMileage(level - 1, last)), pyramid.getMaxMileage(level, i), 0);
+            }
+        }
+        // The top bucket holds the whole range.
+        int top = pyramid.getLevels() - 1;
+        for (int i = 0; i < points; i++) {
+            assertTrue(pyramid.getMinMileage(top, 0) <= pyramid.getMinMileage(0, i));
+            assertTrue(pyramid.getMaxMileage(top, 0) >= pyramid.getMaxMileage(0, i));
+        }
+    }
+
+    public void testLevelForAndIndexOf() {
+        MileageHistory history = MileageHistory.of(new RandomHistory(9).entries(500));
+        history.computeMileage();
+        ChartPyramid pyramid = ChartPyramid.of(history);
+        int points = pyramid.getPoints();
+
+        assertEquals(0, pyramid.levelFor(points, points));
+        assertEquals(pyramid.getLevels() - 1, pyramid.levelFor(points, 1));
+        for (int buckets = 1; buckets <= points; buckets *= 3) {
+            int level = pyramid.levelFor(points, buckets);
+            assertTrue(pyramid.size(level) <= buckets || level == pyramid.getLevels() - 1);
+            assertTrue(level == 0 || pyramid.size(level - 1) > buckets);
+        }
+
+        for (int level = 0; level < pyramid.getLevels(); level++) {
+            for (int i = 0; i < pyramid.size(level); i++) {
+                float end = pyramid.getEndOdometer(level, i);
+                int index = pyramid.indexOf(level, end);
+                assertTrue(index <= i);
+                assertEquals(end, pyramid.getEndOdometer(level, index), 0);
+            }
+            assertEquals(pyramid.size(level), pyramid.indexOf(level, Float.MAX_VALUE));
+            assertEquals(0, pyramid.indexOf(level, -1));
+        }
+    }
+
+    public void testEmptyHistory() {
+        ChartPyramid pyramid = ChartPyramid.of(new MileageHistory(0));
+        assertEquals(0, pyramid.getPoints());
+        assertEquals(1, pyramid.getLevels());
+        assertEquals(0, pyramid.levelFor(0, 100));
+    }
+}
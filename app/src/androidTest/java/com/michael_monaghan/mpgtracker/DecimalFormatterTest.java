@@ -0,0 +1,68 @@
+package com.michael_monaghan.mpgtracker;
+
+import junit.framework.TestCase;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+public class DecimalFormatterTest extends TestCase {
+
+    private static final Locale[] LOCALES = {Locale.US, Locale.GERMANY, Locale.FRANCE, new Locale("hi", "IN")};
+
+    public void testFormatMatchesStringFormat() {
+        Random random = new Random(5);
+        char[] buffer = new char[DecimalFormatter.MAX_LENGTH];
+        for (Locale locale : LOCALES) {
+            DecimalFormatter formatter = new DecimalFormatter(locale);
+            for (int i = 0; i < 20000; i++) {
+                float number = i % 2 == 0 ? random.nextInt(2000000) - 1000000 : (random.nextInt(2000000) - 1000000) / 100f;
+                String message = locale + " " + number;
+                assertEquals(message, format(locale, number), new String(buffer, 0, formatter.format(number, buffer, 0)));
+            }
+            assertEquals(locale + " NaN", String.format(locale, "%,.1f", Float.NaN), new String(buffer, 0, formatter.format(Float.NaN, buffer, 0)));
+            assertEquals(locale + " 1e20", String.format(locale, "%,.1f", 1e20f), new String(buffer, 0, formatter.format(1e20f, buffer, 0)));
+        }
+    }
+
+    public void testFormatFixedRoundsTenthsUp() {
+        Random random = new Random(6);
+        char[] buffer = new char[DecimalFormatter.MAX_LENGTH];
+        for (Locale locale : LOCALES) {
+            DecimalFormatter formatter = new DecimalFormatter(locale);
+            for (int i = 0; i < 20000; i++) {
+                long value = random.nextInt(200000000) - 100000000;
+                int scale = i % 2 == 0 ? MileageDatabase.ODOMETER_SCALE : MileageDatabase.GAS_SCALE;
+                String expected;
+                if (value % scale == 0) {
+                    expected = String.format(locale, "%,d", value / scale);
+                } else {
+                    BigDecimal decimal = BigDecimal.valueOf(value, scale == MileageDatabase.ODOMETER_SCALE ? 1 : 3);
+                    expected = String.format(locale, "%,.1f", decimal.setScale(1, RoundingMode.CEILING));
+                }
+                assertEquals(locale + " " + value + "/" + scale, expected, new String(buffer, 0, formatter.formatFixed(value, scale, buffer, 0)));
+            }
+        }
+    }
+
+    public void testFormatWritesAtOffset() {
+        DecimalFormatter formatter = new DecimalFormatter(Locale.US);
+        char[] buffer = "mpg: ".toCharArray();
+        buffer = Arrays.copyOf(buffer, buffer.length + DecimalFormatter.MAX_LENGTH);
+        int end = formatter.format(1234.56f, buffer, 5);
+        assertEquals("mpg: 1,234.6", new String(buffer, 0, end));
+    }
+
+    /**
+     * How the entry list formatted numbers before DecimalFormatter.
+     */
+    private static String format(Locale locale, float number) {
+        if (number == (int) number) {
+            return String.format(locale, "%,d", (int) number);
+        } else {
+            return String.format(locale, "%,.1f", number + .05f);
+        }
+    }
+}
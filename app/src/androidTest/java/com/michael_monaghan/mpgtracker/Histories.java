@@ -0,0 +1,51 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+
+/**
+ * Full recomputes to check incremental ones against.
+ */
+class Histories {
+
+    /**
+     * @return The entries in history order with their mileage computed in one pass over the whole history.
+     */
+    static MileageHistory recompute(Collection<DatabaseEntry> entries) {
+        DatabaseEntry[] sorted = entries.toArray(new DatabaseEntry[entries.size()]);
+        Arrays.sort(sorted, RandomHistory.HISTORY_ORDER);
+        MileageHistory history = MileageHistory.of(sorted);
+        history.computeMileage();
+        return history;
+    }
+
+    static void assertSameMileage(String message, MileageHistory expected, MileageHistory actual) {
+        assertEquals(message + ": size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameRow(message + ": row " + i, expected, i, actual.getEntry(i));
+        }
+    }
+
+    static void assertSameMileage(String message, MileageHistory expected, List<MileageEntry> actual) {
+        assertEquals(message + ": size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertSameRow(message + ": row " + i, expected, i, actual.get(i));
+        }
+    }
+
+    static void assertSameRow(String message, MileageHistory expected, int index, MileageEntry actual) {
+        assertEquals(message + " id", expected.getId(index), actual.getId());
+        assertEquals(message + " odometer", expected.getOdometerTenths(index), actual.getOdometerTenths());
+        assertEquals(message + " gas", expected.getGasMilliGallons(index), actual.getGasMilliGallons());
+        assertEquals(message + " full tank", expected.hasFullTank(index), actual.hasFullTank());
+        assertEquals(message + " missing previous entry", expected.missingPreviousEntry(index), actual.missingPreviousEntry());
+        assertEquals(message + " unknown mileage", expected.unknownMileage(index), actual.unknownMileage());
+        assertEquals(message + " mileage", expected.getMileage(index), actual.getMileage(), 0);
+    }
+}
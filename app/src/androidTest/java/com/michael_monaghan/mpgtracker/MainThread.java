@@ -0,0 +1,28 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs test code on the main looper, where the classes that post results to it expect to be called.
+ */
+class MainThread {
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    static <T> T call(Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        handler.post(task);
+        return task.get(10, TimeUnit.SECONDS);
+    }
+
+    static void run(Runnable runnable) throws Exception {
+        FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+        handler.post(task);
+        task.get(10, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,93 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.michael_monaghan.mpgtracker.Histories.assertSameMileage;
+import static com.michael_monaghan.mpgtracker.Histories.recompute;
+
+public class MileageCalculatorTest extends TestCase {
+
+    public void testIncrementalMatchesFullRecompute() {
+        RandomHistory histories = new RandomHistory(1);
+        Random random = histories.getRandom();
+        ArrayList<DatabaseEntry> entries = new ArrayList<DatabaseEntry>(Arrays.asList(histories.entries(300)));
+        MileageCalculator calculator = new MileageCalculator(entries.toArray(new DatabaseEntry[entries.size()]));
+        assertSameMileage("initial", recompute(entries), calculator.getMileageHistory());
+
+        // Diffs applied to a copy, the way the entry list applies them.
+        ArrayList<MileageEntry> shown = new ArrayList<MileageEntry>(Arrays.asList(calculator.getMileageEntries()));
+        long nextId = entries.size() + 1;
+        for (int i = 0; i < 3000; i++) {
+            int operation = entries.isEmpty() ? 0 : random.nextInt(5);
+            MileageCalculator.Diff diff;
+            if (operation == 0) {
+                DatabaseEntry entry = RandomHistory.withId(nextId++, histories.next());
+                entries.add(entry);
+                diff = calculator.insert(entry);
+            } else if (operation == 1) {
+                DatabaseEntry entry = RandomHistory.withId(nextId++, histories.somewhereBefore());
+                entries.add(entry);
+                diff = calculator.insert(entry);
+            } else if (operation == 2) {
+                int index = random.nextInt(entries.size());
+                DatabaseEntry old = entries.get(index);
+                DatabaseEntry entry = RandomHistory.withId(old.getId(), histories.somewhereBefore());
+                entries.set(index, entry);
+                diff = calculator.update(old.getOdometerTenths(), entry);
+            } else if (operation == 3) {
+                // An edit that keeps the odometer, such as fixing the gas or the full tank box.
+                int index = random.nextInt(entries.size());
+                DatabaseEntry old = entries.get(index);
+                DatabaseEntry entry = new DatabaseEntry(old.getId(), old.getOdometerTenths(), 2000 + random.nextInt(12000),
+                        !old.hasFullTank(), random.nextInt(20) == 0, old.whatTimeIsIt());
+                entries.set(index, entry);
+                diff = calculator.update(old.getOdometerTenths(), entry);
+            } else {
+                DatabaseEntry old = entries.remove(random.nextInt(entries.size()));
+                diff = calculator.delete(old.getOdometerTenths(), old.getId());
+            }
+            MileageHistory expected = recompute(entries);
+            assertSameMileage("after operation " + i, expected, calculator.getMileageHistory());
+            apply(diff, shown);
+            assertSameMileage("diffs after operation " + i, expected, shown);
+        }
+    }
+
+    public void testDeletingAMissingIdChangesNothing() {
+        DatabaseEntry[] entries = new RandomHistory(2).entries(50);
+        MileageCalculator calculator = new MileageCalculator(entries);
+        MileageCalculator.Diff diff = calculator.delete(entries[0].getOdometerTenths(), entries.length + 1);
+        assertSameMileage("after delete", recompute(Arrays.asList(entries)), calculator.getMileageHistory());
+        ArrayList<MileageEntry> shown = new ArrayList<MileageEntry>(Arrays.asList(calculator.getMileageEntries()));
+        apply(diff, shown);
+        assertSameMileage("diff", recompute(Arrays.asList(entries)), shown);
+    }
+
+    public void testIndexOfFindsEveryRow() {
+        MileageHistory history = MileageHistory.of(new RandomHistory(3).entries(1000));
+        for (int i = 0; i < history.size(); i++) {
+            assertEquals(i, history.indexOf(history.getOdometerTenths(i), history.getId(i)));
+        }
+        assertEquals(-1, history.indexOf(history.getOdometerTenths(0) + 1, history.getId(0)));
+        assertEquals(-1, history.indexOf(history.getOdometerTenths(0), 0));
+    }
+
+    private static void apply(MileageCalculator.Diff diff, ArrayList<MileageEntry> shown) {
+        if (diff.getRemovedPosition() != -1) {
+            shown.remove(diff.getRemovedPosition());
+        }
+        if (diff.getInsertedPosition() != -1) {
+            shown.add(diff.getInsertedPosition(), diff.getInsertedEntry());
+        }
+        for (int i = 0; i < diff.getChangedCount(); i++) {
+            shown.set(diff.getChangedPosition(i), diff.getChangedEntry(i));
+        }
+    }
+}
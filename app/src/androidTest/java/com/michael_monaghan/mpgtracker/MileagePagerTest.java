@@ -0,0 +1,156 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.michael_monaghan.mpgtracker.Histories.assertSameRow;
+import static com.michael_monaghan.mpgtracker.Histories.recompute;
+
+/**
+ * Checks the mileage of paged histories, where a segment is carried from one page to the next,
+ * against a full recompute of the same entries.
+ */
+public class MileagePagerTest extends AndroidTestCase {
+
+    private static final String CAR = "Paged";
+    // Small pages, so segments cross pages and pages are dropped and reloaded.
+    private static final int PAGE_SIZE = 8;
+
+    private final Semaphore pagesLoaded = new Semaphore(0);
+    private RandomHistory histories;
+    private MileageDatabase mdb;
+    private MileagePager pager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        histories = new RandomHistory(3);
+        mdb = TestDatabase.open(getContext());
+        mdb.addCar(CAR);
+        mdb.addEntries(CAR, histories.userEntries(400));
+        openPager();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        closePager();
+        mdb.releaseReference();
+        TestDatabase.delete(getContext());
+        super.tearDown();
+    }
+
+    public void testPagesMatchFullRecompute() throws Exception {
+        loadAll();
+        assertPagesMatch("first load");
+    }
+
+    public void testPagesMatchFullRecomputeAfterInvalidate() throws Exception {
+        loadAll();
+        for (int i = 0; i < 5; i++) {
+            mdb.addEntry(CAR, histories.somewhereBefore());
+            MileageDatabase.DatabaseEntry[] entries = mdb.getEntries(CAR);
+            mdb.deleteEntry(CAR, entries[histories.getRandom().nextInt(entries.length)].getId());
+            pagesLoaded.drainPermits();
+            MainThread.run(new Runnable() {
+                @Override
+                public void run() {
+                    pager.invalidate();
+                }
+            });
+            awaitPage();
+            loadAll();
+            assertPagesMatch("after invalidate " + i);
+        }
+    }
+
+    private void openPager() throws Exception {
+        pager = MainThread.call(new Callable<MileagePager>() {
+            @Override
+            public MileagePager call() {
+                MileagePager pager = new MileagePager(mdb, CAR, PAGE_SIZE);
+                pager.setPageListener(new MileagePager.PageListener() {
+                    @Override
+                    public void onPageLoaded() {
+                        pagesLoaded.release();
+                    }
+                });
+                return pager;
+            }
+        });
+        awaitPage();
+    }
+
+    private void closePager() throws Exception {
+        MainThread.run(new Runnable() {
+            @Override
+            public void run() {
+                pager.close();
+            }
+        });
+    }
+
+    /**
+     * Scrolls to the end of the history, a page at a time.
+     */
+    private void loadAll() throws Exception {
+        while (!isComplete()) {
+            MainThread.call(new Callable<MileageHistory>() {
+                @Override
+                public MileageHistory call() {
+                    return pager.getPage(Math.max(pager.size() - 1, 0));
+                }
+            });
+            awaitPage();
+        }
+    }
+
+    private void assertPagesMatch(String message) throws Exception {
+        MileageHistory expected = recompute(Arrays.asList(mdb.getEntries(CAR)));
+        int size = MainThread.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return pager.size();
+            }
+        });
+        assertEquals(message + ": size", expected.size(), size);
+        // Read from the end back, so every page has been dropped and is read again.
+        for (int position = size - 1; position >= 0; position--) {
+            MileageHistory page = getPage(position);
+            assertSameRow(message + ": position " + position, expected, position, page.getEntry(pager.getIndexInPage(position)));
+        }
+    }
+
+    /**
+     * @return The page holding position, waiting for it if it has to be loaded again.
+     */
+    private MileageHistory getPage(final int position) throws Exception {
+        while (true) {
+            MileageHistory page = MainThread.call(new Callable<MileageHistory>() {
+                @Override
+                public MileageHistory call() {
+                    return pager.getPage(position);
+                }
+            });
+            if (page != null)
+                return page;
+            awaitPage();
+        }
+    }
+
+    private boolean isComplete() throws Exception {
+        return MainThread.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return pager.isComplete();
+            }
+        });
+    }
+
+    private void awaitPage() throws InterruptedException {
+        assertTrue("page not loaded", pagesLoaded.tryAcquire(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,173 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.test.AndroidTestCase;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+public class MileageTransferTest extends AndroidTestCase {
+
+    // The second name needs quoting in CSV.
+    private static final String[] CARS = {"Transfer", "Transfer, \"quoted\""};
+
+    private MileageDatabase mdb;
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mdb = TestDatabase.open(getContext());
+        file = File.createTempFile("transfer", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        mdb.releaseReference();
+        TestDatabase.delete(getContext());
+        super.tearDown();
+    }
+
+    public void testCsvRoundTrip() throws IOException {
+        roundTrip(MileageTransfer.Format.CSV);
+    }
+
+    public void testBinaryRoundTrip() throws IOException {
+        roundTrip(MileageTransfer.Format.BINARY);
+    }
+
+    public void testBinaryImportRejectsBadLengths() throws IOException {
+        mdb.addCar(CARS[0]);
+        mdb.addEntries(CARS[0], new RandomHistory(9).userEntries(10));
+        MileageTransfer.exportEntries(mdb, CARS[0], file, MileageTransfer.Format.BINARY, null);
+        // After the magic number and version: the car count, then the first name's length.
+        for (int offset : new int[]{8, 12}) {
+            for (int length : new int[]{-1, Integer.MAX_VALUE}) {
+                RandomAccessFile out = new RandomAccessFile(file, "rw");
+                int old;
+                try {
+                    out.seek(offset);
+                    old = out.readInt();
+                    out.seek(offset);
+                    out.writeInt(length);
+                } finally {
+                    out.close();
+                }
+                try {
+                    MileageTransfer.importEntries(mdb, CARS[0], file, MileageTransfer.Format.BINARY, null);
+                    fail("imported a length of " + length + " at " + offset);
+                } catch (IOException expected) {
+                }
+                out = new RandomAccessFile(file, "rw");
+                try {
+                    out.seek(offset);
+                    out.writeInt(old);
+                } finally {
+                    out.close();
+                }
+            }
+        }
+        assertEquals(10, MileageTransfer.importEntries(mdb, CARS[0], file, MileageTransfer.Format.BINARY, null));
+    }
+
+    public void testParseFixedMatchesToFixed() {
+        Random random = new Random(7);
+        for (int i = 0; i < 50000; i++) {
+            StringBuilder text = new StringBuilder();
+            if (random.nextInt(10) == 0) {
+                text.append(random.nextBoolean() ? '-' : '+');
+            }
+            text.append(random.nextInt(1000000));
+            if (random.nextBoolean()) {
+                text.append('.');
+                int decimals = random.nextInt(6);
+                for (int j = 0; j < decimals; j++) {
+                    text.append((char) ('0' + random.nextInt(10)));
+                }
+            }
+            assertParses(text.toString(), 1, MileageDatabase.ODOMETER_SCALE);
+            assertParses(text.toString(), 3, MileageDatabase.GAS_SCALE);
+        }
+    }
+
+    public void testParseFixedRoundsHalfUp() {
+        assertEquals(124, parse("12.35", 1));
+        assertEquals(123, parse("12.34999", 1));
+        assertEquals(-124, parse("-12.35", 1));
+        assertEquals(12000, parse("12", 3));
+        assertEquals(12500, parse("12.5", 3));
+        assertEquals(5, parse(".5", 1));
+        assertEquals(10, parse("1.", 1));
+        assertEquals(1, parse("0.0005", 3));
+    }
+
+    public void testParseFixedRejectsWhatItCanNotParse() {
+        assertEquals(Long.MIN_VALUE, parse("", 1));
+        assertEquals(Long.MIN_VALUE, parse("-", 1));
+        assertEquals(Long.MIN_VALUE, parse(".", 1));
+        assertEquals(Long.MIN_VALUE, parse("1e5", 1));
+        assertEquals(Long.MIN_VALUE, parse("1.2.3", 1));
+        assertEquals(Long.MIN_VALUE, parse("12 ", 1));
+        assertEquals(Long.MIN_VALUE, parse("1234567890123456", 1));
+        assertEquals(123456789012345L * 1000, parse("123456789012345", 3));
+    }
+
+    /**
+     * Exports every car, deletes them and imports the file, which adds back the cars with entries.
+     */
+    private void roundTrip(MileageTransfer.Format format) throws IOException {
+        RandomHistory histories = new RandomHistory(8);
+        for (String car : CARS) {
+            mdb.addCar(car);
+            mdb.addEntries(car, histories.userEntries(2500));
+        }
+        HashMap<String, List<String>> exported = new HashMap<String, List<String>>();
+        int count = 0;
+        // A car without entries has no rows to carry it through a file.
+        for (String car : mdb.getCarNames()) {
+            List<String> rows = rows(car);
+            if (!rows.isEmpty()) {
+                exported.put(car, rows);
+                count += rows.size();
+            }
+        }
+        assertEquals(count, MileageTransfer.exportEntries(mdb, null, file, format, null));
+        for (String car : mdb.getCarNames()) {
+            mdb.deleteCar(car);
+        }
+        assertEquals(count, MileageTransfer.importEntries(mdb, null, file, format, null));
+        assertEquals(exported.size(), mdb.getCarNames().length);
+        for (String car : exported.keySet()) {
+            assertEquals(car, exported.get(car), rows(car));
+        }
+    }
+
+    /**
+     * @return The entries of a car without their ids, which an import assigns anew, in a fixed order.
+     */
+    private List<String> rows(String car) {
+        ArrayList<String> rows = new ArrayList<String>();
+        for (DatabaseEntry entry : mdb.getEntries(car)) {
+            rows.add(entry.getOdometerTenths() + "," + entry.getGasMilliGallons() + "," + entry.hasFullTank() + ","
+                    + entry.missingPreviousEntry() + "," + entry.whatTimeIsIt());
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private static void assertParses(String text, int decimals, int scale) {
+        assertEquals(text, MileageDatabase.toFixed(text, scale), parse(text, decimals));
+    }
+
+    private static long parse(String text, int decimals) {
+        return MileageTransfer.parseFixed(text.toCharArray(), text.length(), decimals);
+    }
+}
@@ -0,0 +1,91 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.UserEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Makes car histories like the ones users keep: mostly full tanks at a steady mileage, some partial fills,
+ * a few entries after a missed fill up and a few repeated odometers. The same seed makes the same history.
+ */
+public class RandomHistory {
+
+    /**
+     * The order of a car's history, odometer highest first and then id.
+     */
+    public static final Comparator<DatabaseEntry> HISTORY_ORDER = new Comparator<DatabaseEntry>() {
+        @Override
+        public int compare(DatabaseEntry a, DatabaseEntry b) {
+            if (a.getOdometerTenths() != b.getOdometerTenths())
+                return a.getOdometerTenths() > b.getOdometerTenths() ? -1 : 1;
+            return a.getId() < b.getId() ? -1 : a.getId() == b.getId() ? 0 : 1;
+        }
+    };
+
+    private final Random random;
+    // In tenths of a mile.
+    private int odometer = 0;
+    private long time = 1400000000000L;
+
+    public RandomHistory(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @return The next fill up, driven on from the last one.
+     */
+    public UserEntry next() {
+        // Between 2 and 14 gallons, in thousandths.
+        int gas = 2000 + random.nextInt(12000);
+        if (random.nextInt(40) != 0) {
+            // Between 20 and 35 miles per gallon, in tenths of a mile.
+            odometer += gas * (20 + random.nextInt(16)) / 100;
+        }
+        time += 3600000L * (12 + random.nextInt(300));
+        return new UserEntry(odometer, gas, random.nextInt(4) != 0, random.nextInt(50) == 0, time);
+    }
+
+    /**
+     * @return An entry at a random odometer up to the last one made, as when a missed fill up is added later.
+     */
+    public UserEntry somewhereBefore() {
+        int gas = 2000 + random.nextInt(12000);
+        return new UserEntry(random.nextInt(odometer + 1), gas, random.nextInt(4) != 0, random.nextInt(50) == 0, time - random.nextInt(1000000));
+    }
+
+    /**
+     * @return A history of count entries with ids from 1, in history order.
+     */
+    public DatabaseEntry[] entries(int count) {
+        DatabaseEntry[] entries = new DatabaseEntry[count];
+        for (int i = 0; i < count; i++) {
+            entries[i] = withId(i + 1, next());
+        }
+        Arrays.sort(entries, HISTORY_ORDER);
+        return entries;
+    }
+
+    /**
+     * @return count fill ups in the order they were made, to be added to a database.
+     */
+    public List<UserEntry> userEntries(int count) {
+        ArrayList<UserEntry> entries = new ArrayList<UserEntry>(count);
+        for (int i = 0; i < count; i++) {
+            entries.add(next());
+        }
+        return entries;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public static DatabaseEntry withId(long id, UserEntry entry) {
+        return new DatabaseEntry(id, entry.getOdometerTenths(), entry.getGasMilliGallons(), entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt());
+    }
+}
@@ -0,0 +1,125 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.database.Cursor;
+import android.test.AndroidTestCase;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static com.michael_monaghan.mpgtracker.Histories.assertSameMileage;
+import static com.michael_monaghan.mpgtracker.Histories.recompute;
+
+/**
+ * Checks the segments the triggers keep, and the statistics read from them, against the segments of a full
+ * recompute of each car's entries. Also checks the cached histories that writes update in place.
+ */
+public class SegmentTriggerTest extends AndroidTestCase {
+
+    private static final String[] CARS = {"Segments 1", "Segments 2", "Segments 3"};
+    private static final int RECENT = 10;
+
+    private MileageDatabase mdb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mdb = TestDatabase.open(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mdb.releaseReference();
+        TestDatabase.delete(getContext());
+        super.tearDown();
+    }
+
+    public void testSegmentsMatchMileageHistory() {
+        RandomHistory histories = new RandomHistory(4);
+        Random random = histories.getRandom();
+        for (String car : CARS) {
+            mdb.addCar(car);
+            mdb.addEntries(car, histories.userEntries(150));
+            // Loads the cached history, so the writes below update it too.
+            mdb.getMileageHistory(car);
+        }
+        for (int i = 0; i < 400; i++) {
+            String car = CARS[random.nextInt(CARS.length)];
+            DatabaseEntry[] entries = mdb.getEntries(car);
+            int operation = random.nextInt(4);
+            if (operation == 0 || entries.length == 0) {
+                mdb.addEntry(car, histories.next());
+            } else if (operation == 1) {
+                mdb.addEntry(car, histories.somewhereBefore());
+            } else if (operation == 2) {
+                long id = entries[random.nextInt(entries.length)].getId();
+                mdb.editEntry(RandomHistory.withId(id, histories.somewhereBefore()), car);
+            } else {
+                mdb.deleteEntry(car, entries[random.nextInt(entries.length)].getId());
+            }
+            if (i % 20 == 0) {
+                assertSegmentsMatch("after operation " + i);
+            }
+        }
+        assertSegmentsMatch("at the end");
+    }
+
+    private void assertSegmentsMatch(String message) {
+        long fleetSegments = 0, fleetDistance = 0, fleetGas = 0;
+        for (String car : mdb.getCarNames()) {
+            MileageHistory history = recompute(Arrays.asList(mdb.getEntries(car)));
+            assertSameMileage(message + ": cached history of " + car, history, mdb.getMileageHistory(car));
+
+            Cursor c = mdb.getDatabase().rawQuery("SELECT s.entry_id, s.distance, s.gas, s.mpg FROM segments s JOIN cars ON cars._id=s.car_id"
+                    + " WHERE cars.name=? ORDER BY s.odometer DESC, s.entry_id", new String[]{car});
+            long segments = 0, distance = 0, gas = 0, recentDistance = 0, recentGas = 0;
+            for (int i = 0; i < history.size(); i++) {
+                if (!history.hasFullTank(i) || history.unknownMileage(i))
+                    continue;
+                String row = message + ": " + car + " segment of entry " + history.getId(i);
+                long segmentGas = history.getGasMilliGallons(i);
+                int end = i + 1;
+                while (!history.hasFullTank(end)) {
+                    segmentGas += history.getGasMilliGallons(end++);
+                }
+                long segmentDistance = history.getOdometerTenths(i) - (long) history.getOdometerTenths(end);
+
+                assertTrue(row + " exists", c.moveToNext());
+                assertEquals(row + " id", history.getId(i), c.getLong(0));
+                assertEquals(row + " distance", segmentDistance, c.getLong(1));
+                assertEquals(row + " gas", segmentGas, c.getLong(2));
+                // The table keeps a double, the history a float.
+                assertEquals(row + " mpg", history.getMileage(i), c.getDouble(3), Math.abs(history.getMileage(i)) * 1e-6);
+                segments++;
+                distance += segmentDistance;
+                gas += segmentGas;
+                if (segments <= RECENT) {
+                    recentDistance += segmentDistance;
+                    recentGas += segmentGas;
+                }
+            }
+            assertFalse(message + ": " + car + " has extra segments", c.moveToNext());
+            c.close();
+
+            assertStatistics(message + ": " + car, segments, distance, gas, mdb.getStatistics(car));
+            assertStatistics(message + ": recent " + car, Math.min(segments, RECENT), recentDistance, recentGas, mdb.getRecentStatistics(car, RECENT));
+            if (segments > 0) {
+                assertStatistics(message + ": car statistics of " + car, segments, distance, gas, mdb.getCarStatistics().get(car));
+            }
+            fleetSegments += segments;
+            fleetDistance += distance;
+            fleetGas += gas;
+        }
+        assertStatistics(message + ": fleet", fleetSegments, fleetDistance, fleetGas, mdb.getFleetStatistics());
+    }
+
+    /**
+     * The sums are exact, so the statistics must be the nearest doubles to them.
+     */
+    private static void assertStatistics(String message, long segments, long distance, long gas, MileageStatistics statistics) {
+        assertEquals(message + " segments", segments, statistics.getSegmentCount());
+        assertEquals(message + " distance", (double) distance / MileageDatabase.ODOMETER_SCALE, statistics.getDistance(), 1e-9);
+        assertEquals(message + " gas", (double) gas / MileageDatabase.GAS_SCALE, statistics.getGasFilled(), 1e-9);
+    }
+}
@@ -0,0 +1,56 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class StartupSnapshotTest extends AndroidTestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = StartupSnapshot.getFile(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testRoundTripWithManyCars() throws IOException {
+        String[] carNames = new String[5000];
+        for (int i = 0; i < carNames.length; i++) {
+            carNames[i] = "Car " + i;
+        }
+        MileageHistory rows = MileageHistory.of(new RandomHistory(4).entries(100));
+        new StartupSnapshot(carNames, 4321, rows).write(file);
+
+        StartupSnapshot snapshot = StartupSnapshot.read(getContext());
+        assertNotNull(snapshot);
+        assertTrue(Arrays.equals(carNames, snapshot.getCarNames()));
+        assertEquals("Car 4321", snapshot.getCarName());
+        assertEquals(StartupSnapshot.ROWS, snapshot.getRows().size());
+        for (int i = 0; i < StartupSnapshot.ROWS; i++) {
+            assertEquals(rows.getId(i), snapshot.getRows().getId(i));
+        }
+    }
+
+    public void testDamagedCarCountIsNotRead() throws IOException {
+        new StartupSnapshot(new String[]{"Car"}, 0, MileageHistory.of(new RandomHistory(5).entries(10))).write(file);
+        // After the magic number and version.
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.seek(8);
+            out.writeInt(Integer.MAX_VALUE);
+        } finally {
+            out.close();
+        }
+        assertNull(StartupSnapshot.read(getContext()));
+    }
+}
@@ -0,0 +1,27 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.content.Context;
+import android.test.RenamingDelegatingContext;
+
+/**
+ * Opens MileageDatabases on a file of their own, so tests never touch the app's data.
+ */
+class TestDatabase {
+
+    // The file MileageDatabase opens, which the renaming context moves aside.
+    private static final String NAME = "Mileage Database.db";
+    private static final String PREFIX = "test.";
+
+    /**
+     * @return A reference to a new, empty database, to be released and then deleted with delete.
+     */
+    static MileageDatabase open(Context context) {
+        Context renamed = new RenamingDelegatingContext(context, PREFIX);
+        renamed.deleteDatabase(NAME);
+        return new MileageDatabase(renamed).acquireReference();
+    }
+
+    static void delete(Context context) {
+        new RenamingDelegatingContext(context, PREFIX).deleteDatabase(NAME);
+    }
+}
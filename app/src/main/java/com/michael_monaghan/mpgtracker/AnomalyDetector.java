@@ -0,0 +1,135 @@
+package com.michael_monaghan.mpgtracker;
+
+/**
+ * Flags entries of a car's history that are probably wrong, such as a mistyped odometer or a missed fill up.
+ * A segment's mileage is suspect when it is far from the mean of the car's other segments, kept as a running
+ * mean and variance (Welford's method) that segments join and leave in constant time. An entry's odometer is
+ * suspect when its time is out of order with the entries next to it. Checking a change never walks the history.
+ */
+class AnomalyDetector {
+
+    // Segments needed before mileage is judged at all.
+    private static final int MIN_SEGMENTS = 5;
+    // Standard deviations from the mean that make a mileage suspect.
+    private static final double MAX_DEVIATIONS = 3.5;
+    // The smallest spread assumed, as a fraction of the mean, so a car with very steady mileage is not flagged for noise.
+    private static final double MIN_RELATIVE_SPREAD = .1;
+
+    // Running statistics of the known, unflagged segment mileages.
+    private int count = 0;
+    private double mean = 0;
+    private double m2 = 0;
+
+    /**
+     * Flags every entry of a freshly computed history and starts the running statistics from it.
+     * Each segment is judged against all of the car's other segments.
+     */
+    void scan(MileageHistory history) {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        for (int i = 0; i < history.size(); i++) {
+            if (counts(history, i)) {
+                add(history.getMileage(i));
+            }
+        }
+        for (int i = 0; i < history.size(); i++) {
+            history.setSuspectOdometer(i, outOfOrder(history, i));
+            if (counts(history, i)) {
+                float mileage = history.getMileage(i);
+                remove(mileage);
+                boolean suspect = isOutlier(mileage);
+                add(mileage);
+                history.setSuspectMileage(i, suspect);
+            } else {
+                history.setSuspectMileage(i, false);
+            }
+        }
+        for (int i = 0; i < history.size(); i++) {
+            if (history.hasSuspectMileage(i)) {
+                remove(history.getMileage(i));
+            }
+        }
+    }
+
+    /**
+     * Takes a row's mileage out of the statistics before the row is removed or its segment recomputed.
+     */
+    void leave(MileageHistory history, int index) {
+        if (counts(history, index) && !history.hasSuspectMileage(index)) {
+            remove(history.getMileage(index));
+        }
+    }
+
+    /**
+     * Judges a row's recomputed mileage and adds it to the statistics unless it is suspect.
+     */
+    void join(MileageHistory history, int index) {
+        if (!counts(history, index)) {
+            history.setSuspectMileage(index, false);
+            return;
+        }
+        float mileage = history.getMileage(index);
+        boolean suspect = isOutlier(mileage);
+        history.setSuspectMileage(index, suspect);
+        if (!suspect) {
+            add(mileage);
+        }
+    }
+
+    /**
+     * Rechecks the order of a row against its neighbours.
+     * @return Whether the row's flag changed.
+     */
+    boolean checkOrder(MileageHistory history, int index) {
+        if (index < 0 || index >= history.size())
+            return false;
+        boolean suspect = outOfOrder(history, index);
+        if (suspect == history.hasSuspectOdometer(index))
+            return false;
+        history.setSuspectOdometer(index, suspect);
+        return true;
+    }
+
+    private static boolean counts(MileageHistory history, int index) {
+        return history.hasFullTank(index) && !history.unknownMileage(index);
+    }
+
+    /**
+     * Rows are sorted by odometer, highest first, so times should only fall going down the history.
+     */
+    private static boolean outOfOrder(MileageHistory history, int index) {
+        long time = history.whatTimeIsIt(index);
+        return (index > 0 && time > history.whatTimeIsIt(index - 1))
+                || (index < history.size() - 1 && time < history.whatTimeIsIt(index + 1));
+    }
+
+    private boolean isOutlier(float mileage) {
+        if (mileage <= 0)
+            return true;
+        if (count < MIN_SEGMENTS)
+            return false;
+        double spread = Math.max(Math.sqrt(m2 / (count - 1)), mean * MIN_RELATIVE_SPREAD);
+        return Math.abs(mileage - mean) > MAX_DEVIATIONS * spread;
+    }
+
+    private void add(double x) {
+        count++;
+        double delta = x - mean;
+        mean += delta / count;
+        m2 += delta * (x - mean);
+    }
+
+    private void remove(double x) {
+        if (count <= 1) {
+            count = 0;
+            mean = 0;
+            m2 = 0;
+            return;
+        }
+        double delta = x - mean;
+        mean -= delta / (count - 1);
+        m2 = Math.max(0, m2 - delta * (x - mean));
+        count--;
+    }
+}
@@ -0,0 +1,144 @@
+package com.michael_monaghan.mpgtracker;
+
+/**
+ * The mileage of a car's full tanks by odometer, oldest first, downsampled into levels for MileageChart.
+ * Level 0 holds one bucket per full tank with a known mileage, and each level above merges pairs of buckets of the
+ * one below, keeping their lowest and highest mileage so spikes survive downsampling. Drawing picks the level with
+ * about as many buckets on screen as there are pixels, so a frame costs the same however long the history is.
+ * Built off the main thread and never changed after, so it can be drawn from while the next one is built.
+ */
+class ChartPyramid {
+
+    private static final Metrics.Timer buildTimer = Metrics.timer("chart.build");
+
+    // Per level, the odometer range and mileage range of each bucket.
+    private final float[][] startOdometer;
+    private final float[][] endOdometer;
+    private final float[][] minMileage;
+    private final float[][] maxMileage;
+
+    private ChartPyramid(int points) {
+        int levels = 1;
+        for (int size = points; size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        startOdometer = new float[levels][];
+        endOdometer = new float[levels][];
+        minMileage = new float[levels][];
+        maxMileage = new float[levels][];
+    }
+
+    /**
+     * Builds the pyramid of a computed history. Call it off the main thread.
+     * @param history A history with mileage computed, sorted by odometer, highest first.
+     */
+    static ChartPyramid of(MileageHistory history) {
+        long start = buildTimer.start();
+        int points = 0;
+        for (int i = 0; i < history.size(); i++) {
+            if (!history.unknownMileage(i)) {
+                points++;
+            }
+        }
+        ChartPyramid pyramid = new ChartPyramid(points);
+        float[] odometer = new float[points];
+        float[] mileage = new float[points];
+        int j = points;
+        for (int i = 0; i < history.size(); i++) {
+            if (!history.unknownMileage(i)) {
+                j--;
+                odometer[j] = history.getOdometer(i);
+                mileage[j] = history.getMileage(i);
+            }
+        }
+        pyramid.startOdometer[0] = odometer;
+        pyramid.endOdometer[0] = odometer;
+        pyramid.minMileage[0] = mileage;
+        pyramid.maxMileage[0] = mileage;
+
+        for (int level = 1; level < pyramid.getLevels(); level++) {
+            float[] lowerStart = pyramid.startOdometer[level - 1];
+            float[] lowerEnd = pyramid.endOdometer[level - 1];
+            float[] lowerMin = pyramid.minMileage[level - 1];
+            float[] lowerMax = pyramid.maxMileage[level - 1];
+            int size = (lowerStart.length + 1) / 2;
+            float[] starts = new float[size];
+            float[] ends = new float[size];
+            float[] mins = new float[size];
+            float[] maxes = new float[size];
+            for (int i = 0; i < size; i++) {
+                int first = 2 * i;
+                int last = Math.min(first + 1, lowerStart.length - 1);
+                starts[i] = lowerStart[first];
+                ends[i] = lowerEnd[last];
+                mins[i] = Math.min(lowerMin[first], lowerMin[last]);
+                maxes[i] = Math.max(lowerMax[first], lowerMax[last]);
+            }
+            pyramid.startOdometer[level] = starts;
+            pyramid.endOdometer[level] = ends;
+            pyramid.minMileage[level] = mins;
+            pyramid.maxMileage[level] = maxes;
+        }
+        buildTimer.stop(start);
+        return pyramid;
+    }
+
+    int getLevels() {
+        return startOdometer.length;
+    }
+
+    /**
+     * @return The number of full tanks in the chart.
+     */
+    int getPoints() {
+        return startOdometer[0].length;
+    }
+
+    int size(int level) {
+        return startOdometer[level].length;
+    }
+
+    float getStartOdometer(int level, int index) {
+        return startOdometer[level][index];
+    }
+
+    float getEndOdometer(int level, int index) {
+        return endOdometer[level][index];
+    }
+
+    float getMinMileage(int level, int index) {
+        return minMileage[level][index];
+    }
+
+    float getMaxMileage(int level, int index) {
+        return maxMileage[level][index];
+    }
+
+    /**
+     * @return The lowest level with at most buckets buckets in the given span of level 0.
+     */
+    int levelFor(int points, int buckets) {
+        int level = 0;
+        while (points > Math.max(buckets, 1) && level < getLevels() - 1) {
+            points = (points + 1) / 2;
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return The index of the first bucket of level that ends at or after odometer, or the level's size if there is none.
+     */
+    int indexOf(int level, float odometer) {
+        float[] end = endOdometer[level];
+        int low = 0, high = end.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (end[mid] < odometer)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+}
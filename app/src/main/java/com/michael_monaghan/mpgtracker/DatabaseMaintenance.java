@@ -0,0 +1,202 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Keeps the database file compact and its query planner statistics current, once the database has been idle for a while.
+ * Deleted entries leave free pages behind; the database is switched to incremental auto vacuum once, and free pages are
+ * then returned to the file system a step at a time so queued writes never wait long behind maintenance.
+ * Every step runs on the MileageDatabase write thread, in order with the writes.
+ */
+public class DatabaseMaintenance {
+
+    private static final String TAG = "DatabaseMaintenance";
+
+    // Milliseconds without a write before maintenance runs.
+    private static final long IDLE_DELAY = 30000;
+    // Free pages, as a fraction of the file, above which free pages are reclaimed.
+    private static final double MAX_FRAGMENTATION = .1;
+    private static final long MIN_FREE_PAGES = 64;
+    // Pages reclaimed per step.
+    private static final int VACUUM_STEP_PAGES = 256;
+    // Writes after which the planner statistics are refreshed.
+    private static final int ANALYZE_WRITES = 1000;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final Metrics.Timer maintenanceTimer = Metrics.timer("maintenance.step");
+    private static final Metrics.Counter bytesReclaimed = Metrics.counter("maintenance.bytes_reclaimed");
+
+    private final MileageDatabase mdb;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleMaintenance = new Runnable() {
+        @Override
+        public void run() {
+            submitStep();
+        }
+    };
+
+    // Guarded by this.
+    private int writesSinceAnalyze = 0;
+    private double fragmentation = 0;
+    private long maintenanceNanos = 0;
+    private int vacuumSteps = 0;
+    private int analyzeCount = 0;
+
+    DatabaseMaintenance(MileageDatabase mdb) {
+        this.mdb = mdb;
+    }
+
+    /**
+     * Called by MileageDatabase after every write. Restarts the idle timer.
+     */
+    void onWrite() {
+        synchronized (this) {
+            writesSinceAnalyze++;
+        }
+        scheduleIdle(IDLE_DELAY);
+    }
+
+    /**
+     * Runs maintenance as soon as the write thread is free, such as when the app goes to the background.
+     */
+    public void runSoon() {
+        scheduleIdle(0);
+    }
+
+    /**
+     * Stops any scheduled maintenance. Steps already on the write thread still run.
+     */
+    void cancel() {
+        handler.removeCallbacks(idleMaintenance);
+    }
+
+    private void scheduleIdle(long delay) {
+        handler.removeCallbacks(idleMaintenance);
+        handler.postDelayed(idleMaintenance, delay);
+    }
+
+    /**
+     * Queues the next step of maintenance on the write thread. Each step queues the one after it if there is more to do.
+     */
+    private void submitStep() {
+        try {
+            mdb.submitWrite(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    if (runStep()) {
+                        handler.post(idleMaintenance);
+                    }
+                    return null;
+                }
+            }, null);
+        } catch (IllegalStateException e) {
+            // The database has been closed, there is nothing to maintain.
+        }
+    }
+
+    /**
+     * Runs the most needed piece of maintenance.
+     * @return Whether there is more to do.
+     */
+    private boolean runStep() {
+        long start = System.nanoTime();
+        SQLiteDatabase db = mdb.getDatabase();
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != AUTO_VACUUM_INCREMENTAL) {
+                // auto_vacuum only takes effect on a database that is rebuilt, which is done once.
+                long before = getFileSize(db);
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                reclaimed(before - getFileSize(db));
+                return true;
+            }
+            long pageCount = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+            long freePages = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+            synchronized (this) {
+                fragmentation = pageCount == 0 ? 0 : (double) freePages / pageCount;
+            }
+            if (freePages >= MIN_FREE_PAGES && freePages > pageCount * MAX_FRAGMENTATION) {
+                long before = getFileSize(db);
+                // Pages are freed as the pragma is stepped, so read every row it returns.
+                Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_STEP_PAGES + ")", null);
+                c.getCount();
+                c.close();
+                reclaimed(before - getFileSize(db));
+                synchronized (this) {
+                    vacuumSteps++;
+                }
+                return freePages > VACUUM_STEP_PAGES;
+            }
+            boolean analyze = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE name='sqlite_stat1'", null) == 0;
+            synchronized (this) {
+                analyze |= writesSinceAnalyze >= ANALYZE_WRITES;
+                if (analyze) {
+                    writesSinceAnalyze = 0;
+                    analyzeCount++;
+                }
+            }
+            if (analyze) {
+                db.execSQL("ANALYZE");
+            }
+            return false;
+        } catch (SQLiteException e) {
+            // Most likely a reader held the database during VACUUM. Try again at the next idle time.
+            Log.w(TAG, "Maintenance failed", e);
+            return false;
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            maintenanceTimer.record(elapsed);
+            synchronized (this) {
+                maintenanceNanos += elapsed;
+            }
+        }
+    }
+
+    private synchronized void reclaimed(long bytes) {
+        if (bytes > 0) {
+            bytesReclaimed.add(bytes);
+        }
+    }
+
+    private static long getFileSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /**
+     * @return The fraction of the database file that was free pages when last measured.
+     */
+    public synchronized double getFragmentation() {
+        return fragmentation;
+    }
+
+    /**
+     * @return The bytes returned to the file system by maintenance in this process.
+     */
+    public long getBytesReclaimed() {
+        return bytesReclaimed.get();
+    }
+
+    /**
+     * @return The total time spent on maintenance in this process, in nanoseconds.
+     */
+    public synchronized long getMaintenanceTime() {
+        return maintenanceNanos;
+    }
+
+    public synchronized int getVacuumSteps() {
+        return vacuumSteps;
+    }
+
+    public synchronized int getAnalyzeCount() {
+        return analyzeCount;
+    }
+}
@@ -0,0 +1,122 @@
+package com.michael_monaghan.mpgtracker;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.util.Locale;
+
+/**
+ * Formats numbers the way the entry list shows them, with the locale's grouping separators and at most one decimal,
+ * into a char array so binding a row does not allocate.
+ */
+class DecimalFormatter {
+
+    /**
+     * The most chars format writes.
+     */
+    static final int MAX_LENGTH = 64;
+
+    // Larger numbers are formatted by String.format, since their tenths do not fit in a long.
+    private static final float LARGEST_FIXED = 1e15f;
+
+    private final Locale locale;
+    private final char zeroDigit;
+    private final char groupingSeparator;
+    private final char decimalSeparator;
+    private final int groupingSize;
+
+    DecimalFormatter(Locale locale) {
+        this.locale = locale;
+        DecimalFormatSymbols symbols = DecimalFormatSymbols.getInstance(locale);
+        zeroDigit = symbols.getZeroDigit();
+        groupingSeparator = symbols.getGroupingSeparator();
+        decimalSeparator = symbols.getDecimalSeparator();
+        NumberFormat numberFormat = NumberFormat.getIntegerInstance(locale);
+        groupingSize = numberFormat instanceof DecimalFormat ? ((DecimalFormat) numberFormat).getGroupingSize() : 3;
+    }
+
+    /**
+     * Writes a whole number without a decimal, and any other number rounded up to one decimal.
+     * @param number The number to format.
+     * @param buffer The array to write to. It must have MAX_LENGTH chars free after offset.
+     * @param offset Where to start writing.
+     * @return The offset after the last char written.
+     */
+    int format(float number, char[] buffer, int offset) {
+        if (Float.isNaN(number) || Float.isInfinite(number) || Math.abs(number) >= LARGEST_FIXED) {
+            String formatted = String.format(locale, "%,.1f", number);
+            formatted.getChars(0, formatted.length(), buffer, offset);
+            return offset + formatted.length();
+        }
+        boolean negative = number < 0;
+        boolean whole = number == (int) number;
+        long integer;
+        int fraction = 0;
+        if (whole) {
+            integer = Math.abs((long) (int) number);
+        } else {
+            // Round up, then half up to one decimal.
+            long tenths = (long) Math.floor(Math.abs((double) (number + .05f)) * 10 + .5);
+            integer = tenths / 10;
+            fraction = (int) (tenths % 10);
+            negative = number + .05f < 0;
+        }
+        return write(negative, integer, whole, fraction, buffer, offset);
+    }
+
+    /**
+     * Formats a fixed point number like format, rounded up to one decimal without going through a float,
+     * so a value already in tenths is shown as it is.
+     * @param value The number times scale.
+     * @param scale The fixed point scale, such as MileageDatabase.ODOMETER_SCALE.
+     * @param buffer The array to write to. It must have MAX_LENGTH chars free after offset.
+     * @param offset Where to start writing.
+     * @return The offset after the last char written.
+     */
+    int formatFixed(long value, int scale, char[] buffer, int offset) {
+        if (value % scale == 0)
+            return write(value < 0, Math.abs(value / scale), true, 0, buffer, offset);
+        long tenths = value * 10 / scale;
+        if (value * 10 % scale > 0) {
+            tenths++;
+        }
+        return write(tenths < 0, Math.abs(tenths) / 10, false, (int) (Math.abs(tenths) % 10), buffer, offset);
+    }
+
+    private int write(boolean negative, long integer, boolean whole, int fraction, char[] buffer, int offset) {
+        int digits = 1;
+        for (long n = integer; n >= 10; n /= 10) {
+            digits++;
+        }
+        int length = digits;
+        if (groupingSize > 0) {
+            length += (digits - 1) / groupingSize;
+        }
+        if (negative) {
+            length++;
+        }
+        if (!whole) {
+            length += 2;
+        }
+
+        int end = offset + length;
+        int position = end;
+        if (!whole) {
+            buffer[--position] = (char) (zeroDigit + fraction);
+            buffer[--position] = decimalSeparator;
+        }
+        int written = 0;
+        do {
+            if (groupingSize > 0 && written > 0 && written % groupingSize == 0) {
+                buffer[--position] = groupingSeparator;
+            }
+            buffer[--position] = (char) (zeroDigit + (int) (integer % 10));
+            integer /= 10;
+            written++;
+        } while (integer > 0);
+        if (negative) {
+            buffer[--position] = '-';
+        }
+        return end;
+    }
+}
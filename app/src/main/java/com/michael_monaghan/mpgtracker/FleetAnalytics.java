@@ -0,0 +1,259 @@
+package com.michael_monaghan.mpgtracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Builds fleet reports by loading and analysing car histories in parallel, one thread per core.
+ * The cars are split into chunks that are analysed on separate threads and the chunks' results are then merged.
+ * Readers share the database's write-ahead-log connection pool, so they read at the same time as each other and as writes.
+ */
+public class FleetAnalytics {
+
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // Chunks per thread, so a chunk of long histories does not leave the other threads idle.
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final ExecutorService analysers = Executors.newFixedThreadPool(THREADS);
+
+    private FleetAnalytics() {
+    }
+
+    /**
+     * Analyses every car. Blocks until the report is done, so call it off the main thread.
+     * @param mdb The database to read.
+     * @param worstCount The number of cars with the lowest mileage to list.
+     * @return The report.
+     */
+    public static FleetReport analyze(final MileageDatabase mdb, int worstCount) throws InterruptedException, ExecutionException {
+        final String[] carNames = mdb.getCarNames();
+        final HashMap<String, MileageStatistics> statistics = mdb.getCarStatistics();
+
+        int chunks = Math.min(carNames.length, THREADS * CHUNKS_PER_THREAD);
+        ArrayList<Future<CarReport[]>> futures = new ArrayList<Future<CarReport[]>>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int from = (int) ((long) carNames.length * i / chunks);
+            final int to = (int) ((long) carNames.length * (i + 1) / chunks);
+            futures.add(analysers.submit(new Callable<CarReport[]>() {
+                @Override
+                public CarReport[] call() {
+                    CarReport[] reports = new CarReport[to - from];
+                    for (int car = from; car < to; car++) {
+                        MileageStatistics carStatistics = statistics.get(carNames[car]);
+                        reports[car - from] = new CarReport(carNames[car], mdb.loadMileageHistory(carNames[car]),
+                                carStatistics != null ? carStatistics : new MileageStatistics(0, 0, 0));
+                    }
+                    return reports;
+                }
+            }));
+        }
+
+        CarReport[] cars = new CarReport[carNames.length];
+        int position = 0;
+        try {
+            for (Future<CarReport[]> future : futures) {
+                CarReport[] reports = future.get();
+                System.arraycopy(reports, 0, cars, position, reports.length);
+                position += reports.length;
+            }
+        } finally {
+            for (Future<CarReport[]> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return new FleetReport(cars, worstCount);
+    }
+
+    /**
+     * The mileage series and trend of one car.
+     */
+    public static class CarReport {
+        private final String carName;
+        private final MileageStatistics statistics;
+        private final float[] odometers;
+        private final float[] mileages;
+        private final double trend;
+
+        CarReport(String carName, MileageHistory history, MileageStatistics statistics) {
+            this.carName = carName;
+            this.statistics = statistics;
+            int known = 0;
+            for (int i = 0; i < history.size(); i++) {
+                if (!history.unknownMileage(i)) {
+                    known++;
+                }
+            }
+            odometers = new float[known];
+            mileages = new float[known];
+            // Oldest first.
+            for (int i = history.size() - 1, j = 0; i >= 0; i--) {
+                if (!history.unknownMileage(i)) {
+                    odometers[j] = history.getOdometer(i);
+                    mileages[j++] = history.getMileage(i);
+                }
+            }
+            trend = slope(odometers, mileages) * 1000;
+        }
+
+        /**
+         * @return The least squares slope of y over x, or 0 with fewer than two distinct x.
+         */
+        private static double slope(float[] x, float[] y) {
+            int n = x.length;
+            if (n < 2)
+                return 0;
+            double meanX = 0, meanY = 0;
+            for (int i = 0; i < n; i++) {
+                meanX += x[i];
+                meanY += y[i];
+            }
+            meanX /= n;
+            meanY /= n;
+            double covariance = 0, variance = 0;
+            for (int i = 0; i < n; i++) {
+                covariance += (x[i] - meanX) * (y[i] - meanY);
+                variance += (x[i] - meanX) * (x[i] - meanX);
+            }
+            return variance == 0 ? 0 : covariance / variance;
+        }
+
+        public String getCarName() {
+            return carName;
+        }
+
+        /**
+         * @return The car's lifetime totals.
+         */
+        public MileageStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * @return The odometer of each full tank with a known mileage, oldest first. Shared, do not modify.
+         */
+        public float[] getOdometers() {
+            return odometers;
+        }
+
+        /**
+         * @return The mileage of each full tank in getOdometers. Shared, do not modify.
+         */
+        public float[] getMileages() {
+            return mileages;
+        }
+
+        /**
+         * @return The change in mileage per 1000 miles driven, fitted over the series.
+         */
+        public double getTrend() {
+            return trend;
+        }
+    }
+
+    /**
+     * Aggregates over every car in the fleet.
+     */
+    public static class FleetReport {
+        private final CarReport[] cars;
+        private final CarReport[] worst;
+        private final MileageStatistics statistics;
+        private final double[] sortedMileages;
+        private final double trend;
+
+        FleetReport(CarReport[] cars, int worstCount) {
+            this.cars = cars;
+            int segments = 0;
+            double distance = 0, gas = 0, weightedTrend = 0;
+            ArrayList<CarReport> known = new ArrayList<CarReport>(cars.length);
+            for (CarReport car : cars) {
+                MileageStatistics carStatistics = car.getStatistics();
+                segments += carStatistics.getSegmentCount();
+                distance += carStatistics.getDistance();
+                gas += carStatistics.getGasFilled();
+                weightedTrend += car.getTrend() * car.getMileages().length;
+                if (!carStatistics.unknownMileage()) {
+                    known.add(car);
+                }
+            }
+            statistics = new MileageStatistics(segments, distance, gas);
+
+            int series = 0;
+            for (CarReport car : cars) {
+                series += car.getMileages().length;
+            }
+            trend = series == 0 ? 0 : weightedTrend / series;
+
+            CarReport[] byMileage = known.toArray(new CarReport[known.size()]);
+            Arrays.sort(byMileage, new Comparator<CarReport>() {
+                @Override
+                public int compare(CarReport a, CarReport b) {
+                    return Double.compare(a.getStatistics().getMileage(), b.getStatistics().getMileage());
+                }
+            });
+            sortedMileages = new double[byMileage.length];
+            for (int i = 0; i < byMileage.length; i++) {
+                sortedMileages[i] = byMileage[i].getStatistics().getMileage();
+            }
+            worst = Arrays.copyOf(byMileage, Math.min(worstCount, byMileage.length));
+        }
+
+        /**
+         * @return A report per car, in the order of MileageDatabase.getCarNames. Shared, do not modify.
+         */
+        public CarReport[] getCars() {
+            return cars;
+        }
+
+        /**
+         * @return The fleet's totals. Its mileage is the fleet's distance over its gas.
+         */
+        public MileageStatistics getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * @return The mean of the cars' lifetime mileages, counting each car once.
+         */
+        public double getMeanMileage() {
+            if (sortedMileages.length == 0)
+                return 0;
+            double sum = 0;
+            for (double mileage : sortedMileages) {
+                sum += mileage;
+            }
+            return sum / sortedMileages.length;
+        }
+
+        /**
+         * @param fraction Between 0 and 1, such as .5 for the median.
+         * @return The lifetime mileage below which that fraction of the cars fall, by nearest rank.
+         */
+        public double getMileagePercentile(double fraction) {
+            if (sortedMileages.length == 0)
+                return 0;
+            int rank = (int) Math.ceil(fraction * sortedMileages.length) - 1;
+            return sortedMileages[Math.max(0, Math.min(sortedMileages.length - 1, rank))];
+        }
+
+        /**
+         * @return The cars with the lowest lifetime mileage, lowest first. Shared, do not modify.
+         */
+        public CarReport[] getWorstCars() {
+            return worst;
+        }
+
+        /**
+         * @return The cars' trends averaged by the length of their series, in mileage per 1000 miles.
+         */
+        public double getTrend() {
+            return trend;
+        }
+    }
+}
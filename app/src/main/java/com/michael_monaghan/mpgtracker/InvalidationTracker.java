@@ -0,0 +1,167 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Records which cars the writes to a MileageDatabase touched and tells the observers of those cars on the main thread.
+ * Writes are told in one batch DEBOUNCE_MILLIS after the first of them, so an import or a sync that writes many
+ * times tells each car once. Each car also has a version that every write to it moves on, so a reader can tell
+ * whether what it shows already has a write in it.
+ * Writes may be recorded on any thread. Observers are added, removed and told on the main thread.
+ */
+public class InvalidationTracker {
+
+    static final long DEBOUNCE_MILLIS = 100;
+
+    private static final Metrics.Counter flushes = Metrics.counter("invalidation.flushes");
+    private static final Metrics.Counter notifications = Metrics.counter("invalidation.notifications");
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Observers by car, and observers of the car list. Main thread only.
+    private final HashMap<String, ArrayList<Observer>> observers = new HashMap<String, ArrayList<Observer>>();
+    private final ArrayList<CarsObserver> carsObservers = new ArrayList<CarsObserver>();
+
+    // Writes not told yet, guarded by this.
+    private final HashSet<String> invalidated = new HashSet<String>();
+    private boolean carsInvalidated = false;
+    private boolean allInvalidated = false;
+    private boolean flushPosted = false;
+
+    // Writes to each car, and writes to every car, guarded by this.
+    private final HashMap<String, Long> versions = new HashMap<String, Long>();
+    private long allVersion = 0;
+
+    /**
+     * Records a write to a car.
+     * @param carName The car written to.
+     * @return The car's version after the write.
+     */
+    synchronized long invalidate(String carName) {
+        Long version = versions.get(carName);
+        versions.put(carName, version == null ? 1 : version + 1);
+        invalidated.add(carName);
+        postFlush();
+        return getVersion(carName);
+    }
+
+    /**
+     * Records that a car was added or deleted.
+     */
+    synchronized void invalidateCars() {
+        carsInvalidated = true;
+        postFlush();
+    }
+
+    /**
+     * Records that the database was changed by something other than its MileageDatabase, so any car may have changed.
+     */
+    synchronized void invalidateAll() {
+        allVersion++;
+        allInvalidated = true;
+        carsInvalidated = true;
+        postFlush();
+    }
+
+    /**
+     * @param carName Car name.
+     * @return A number that is higher after every write to the car.
+     */
+    public synchronized long getVersion(String carName) {
+        Long version = versions.get(carName);
+        return allVersion + (version == null ? 0 : version);
+    }
+
+    private void postFlush() {
+        if (!flushPosted) {
+            flushPosted = true;
+            handler.postDelayed(flush, DEBOUNCE_MILLIS);
+        }
+    }
+
+    /**
+     * Tells the observers of the cars written to since the last flush.
+     */
+    private void flush() {
+        String[] carNames;
+        boolean cars;
+        synchronized (this) {
+            if (allInvalidated) {
+                carNames = observers.keySet().toArray(new String[observers.size()]);
+            } else {
+                carNames = invalidated.toArray(new String[invalidated.size()]);
+            }
+            cars = carsInvalidated;
+            invalidated.clear();
+            carsInvalidated = false;
+            allInvalidated = false;
+            flushPosted = false;
+        }
+        flushes.increment();
+        // Copied, as observers may remove themselves when told.
+        if (cars) {
+            for (CarsObserver observer : new ArrayList<CarsObserver>(carsObservers)) {
+                observer.onCarsInvalidated();
+            }
+        }
+        for (String carName : carNames) {
+            ArrayList<Observer> carObservers = observers.get(carName);
+            if (carObservers == null)
+                continue;
+            for (Observer observer : new ArrayList<Observer>(carObservers)) {
+                notifications.increment();
+                observer.onInvalidated(carName);
+            }
+        }
+    }
+
+    /**
+     * @param carName The car to observe.
+     * @param observer Told after writes to the car.
+     */
+    public void addObserver(String carName, Observer observer) {
+        ArrayList<Observer> carObservers = observers.get(carName);
+        if (carObservers == null) {
+            carObservers = new ArrayList<Observer>();
+            observers.put(carName, carObservers);
+        }
+        carObservers.add(observer);
+    }
+
+    public void removeObserver(String carName, Observer observer) {
+        ArrayList<Observer> carObservers = observers.get(carName);
+        if (carObservers != null && carObservers.remove(observer) && carObservers.isEmpty()) {
+            observers.remove(carName);
+        }
+    }
+
+    /**
+     * @param observer Told after cars are added or deleted.
+     */
+    public void addCarsObserver(CarsObserver observer) {
+        carsObservers.add(observer);
+    }
+
+    public void removeCarsObserver(CarsObserver observer) {
+        carsObservers.remove(observer);
+    }
+
+    public static interface Observer {
+        public void onInvalidated(String carName);
+    }
+
+    public static interface CarsObserver {
+        public void onCarsInvalidated();
+    }
+}
@@ -0,0 +1,195 @@
+package com.michael_monaghan.mpgtracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A query of a car's data that is delivered again whenever a write touches the car, wherever the write came from.
+ * Each car is loaded once on a LoadScheduler however many observers it has, and all of them are handed the same
+ * result. Writes to other cars do not reload it, and writes close together reload it once. An observer that applies
+ * a write itself can say so with Subscription.setVersion, and the car is not reloaded for it.
+ * Observers are added, cancelled and told on the main thread.
+ */
+public class LiveQuery<T> {
+
+    private final InvalidationTracker tracker;
+    private final LoadScheduler<Result<T>> scheduler;
+    // Observed cars, by name.
+    private final HashMap<String, CarQuery> queries = new HashMap<String, CarQuery>();
+
+    /**
+     * @param mdb The database whose writes reload the query.
+     * @param loader Loads a car's data. Called on a pool thread.
+     */
+    public LiveQuery(MileageDatabase mdb, final LoadScheduler.Loader<T> loader) {
+        tracker = mdb.getInvalidationTracker();
+        scheduler = new LoadScheduler<Result<T>>(new LoadScheduler.Loader<Result<T>>() {
+            @Override
+            public Result<T> load(String carName) {
+                // Read first, so the result has at least every write of the version it is delivered with.
+                long version = tracker.getVersion(carName);
+                return new Result<T>(loader.load(carName), version);
+            }
+        });
+    }
+
+    /**
+     * Loads a car and delivers it again after every write to it until the subscription is cancelled.
+     * @param carName The car to observe.
+     * @param observer Told of the car's data on the main thread.
+     * @return The subscription, which can be cancelled.
+     */
+    public Subscription observe(String carName, Observer<T> observer) {
+        CarQuery query = queries.get(carName);
+        if (query == null) {
+            query = new CarQuery(carName);
+            queries.put(carName, query);
+            tracker.addObserver(carName, query);
+        }
+        Subscription subscription = new Subscription(query, observer);
+        query.subscriptions.add(subscription);
+        // A new observer has nothing yet, so the car is loaded even if a result was delivered before.
+        query.load();
+        return subscription;
+    }
+
+    /**
+     * Cancels every subscription and stops the threads once the running loads finish.
+     */
+    public void close() {
+        for (CarQuery query : queries.values()) {
+            tracker.removeObserver(query.carName, query);
+        }
+        queries.clear();
+        scheduler.close();
+    }
+
+    /**
+     * @return The LoadScheduler the cars are loaded on, for its statistics.
+     */
+    public LoadScheduler<Result<T>> getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * The observers of one car, which share its loads.
+     */
+    private class CarQuery implements InvalidationTracker.Observer, LoadScheduler.Callback<Result<T>> {
+        final String carName;
+        final ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
+        LoadScheduler<Result<T>>.Request request;
+
+        CarQuery(String carName) {
+            this.carName = carName;
+        }
+
+        void load() {
+            // Replaces a request that has not been delivered, so it is loaded once.
+            request = scheduler.load(carName, this);
+        }
+
+        @Override
+        public void onInvalidated(String carName) {
+            // Loaded only if some observer does not have the writes already.
+            long version = tracker.getVersion(carName);
+            for (Subscription subscription : subscriptions) {
+                if (subscription.version < version) {
+                    load();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void onLoaded(String carName, Result<T> result) {
+            request = null;
+            // Copied, as observers may cancel when told.
+            for (Subscription subscription : new ArrayList<Subscription>(subscriptions)) {
+                if (subscription.version < result.version) {
+                    subscription.version = result.version;
+                    subscription.observer.onChanged(carName, result.value, result.version);
+                }
+            }
+        }
+
+        @Override
+        public void onLoadFailed(String carName, Throwable error) {
+            request = null;
+            for (Subscription subscription : new ArrayList<Subscription>(subscriptions)) {
+                subscription.observer.onFailed(carName, error);
+            }
+        }
+
+        void remove(Subscription subscription) {
+            if (!subscriptions.remove(subscription) || !subscriptions.isEmpty())
+                return;
+            if (request != null) {
+                request.cancel();
+            }
+            tracker.removeObserver(carName, this);
+            queries.remove(carName);
+        }
+    }
+
+    public class Subscription {
+        private final CarQuery query;
+        private final Observer<T> observer;
+        // The version the observer has every write up to, or -1 before its first result.
+        private long version = -1;
+
+        private Subscription(CarQuery query, Observer<T> observer) {
+            this.query = query;
+            this.observer = observer;
+        }
+
+        /**
+         * @return The car's version the observer has every write up to, or -1 before its first result.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Tells the query the observer has every write up to version, such as after applying the diff of its own
+         * write, so the car is not loaded again for those writes.
+         */
+        public void setVersion(long version) {
+            this.version = Math.max(this.version, version);
+        }
+
+        /**
+         * Stops the car's data from being delivered to the observer. Safe to call more than once.
+         */
+        public void cancel() {
+            query.remove(this);
+        }
+    }
+
+    /**
+     * A load of a car and the car's version when it started.
+     */
+    public static class Result<T> {
+        private final T value;
+        private final long version;
+
+        private Result(T value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    public static interface Observer<T> {
+        /**
+         * Called with the car's data when it has writes the observer does not have.
+         * @param carName The car observed.
+         * @param result The car's data, shared with the car's other observers.
+         * @param version The car's version when it was loaded. The result has every write up to it.
+         */
+        public void onChanged(String carName, T result, long version);
+
+        /**
+         * Called when the car could not be loaded. The next write to the car tries again.
+         */
+        public void onFailed(String carName, Throwable error);
+    }
+}
@@ -0,0 +1,267 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs loads of a car's data on a small pool of threads, delivering only the latest result for each car.
+ * A request made while another for the same car is waiting replaces it, one car is never loaded twice at once,
+ * and a request that is cancelled or replaced before it starts is never run.
+ * Requests are made and results delivered on the main thread.
+ */
+public class LoadScheduler<T> {
+
+    private static final String TAG = "LoadScheduler";
+    private static final int THREADS = 2;
+
+    private final Loader<T> loader;
+    private final ThreadPoolExecutor executor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // The request whose result will be delivered, by car.
+    private final HashMap<String, Request> latest = new HashMap<String, Request>();
+    // Loads waiting to start, by car. At most one per car.
+    private final HashMap<String, Job> queued = new HashMap<String, Job>();
+    // Cars with a load running.
+    private final HashSet<String> running = new HashSet<String>();
+
+    // Statistics
+    private int completedLoads = 0;
+    private int coalescedLoads = 0;
+    private int droppedLoads = 0;
+    private int wastedLoads = 0;
+    private int failedLoads = 0;
+
+    public LoadScheduler(Loader<T> loader) {
+        this.loader = loader;
+        executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Requests a load of a car. Any earlier request for the car that has not been delivered is superseded.
+     * @param carName The car to load.
+     * @param callback Called on the main thread with the result.
+     * @return The request, which can be cancelled.
+     */
+    public synchronized Request load(String carName, Callback<T> callback) {
+        Request request = new Request(carName, callback);
+        latest.put(carName, request);
+        Job job = queued.get(carName);
+        if (job != null) {
+            job.request = request;
+            coalescedLoads++;
+        } else {
+            job = new Job(carName, request);
+            queued.put(carName, job);
+            if (!running.contains(carName)) {
+                submit(job);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Cancels every request and stops the threads once the running loads finish.
+     */
+    public synchronized void close() {
+        latest.clear();
+        queued.clear();
+        executor.shutdown();
+    }
+
+    /**
+     * @return The number of cars with a load waiting to start.
+     */
+    public synchronized int getQueueDepth() {
+        return queued.size();
+    }
+
+    /**
+     * @return The number of loads whose results were delivered.
+     */
+    public synchronized int getCompletedLoads() {
+        return completedLoads;
+    }
+
+    /**
+     * @return The number of requests merged into a load that was already waiting.
+     */
+    public synchronized int getCoalescedLoads() {
+        return coalescedLoads;
+    }
+
+    /**
+     * @return The number of loads skipped because they were superseded or cancelled before they started.
+     */
+    public synchronized int getDroppedLoads() {
+        return droppedLoads;
+    }
+
+    /**
+     * @return The number of loads that ran but whose results were superseded or cancelled before delivery.
+     */
+    public synchronized int getWastedLoads() {
+        return wastedLoads;
+    }
+
+    /**
+     * @return The number of loads that threw.
+     */
+    public synchronized int getFailedLoads() {
+        return failedLoads;
+    }
+
+    private void submit(Job job) {
+        job.submitted = true;
+        executor.execute(job);
+    }
+
+    private synchronized Request start(Job job) {
+        if (queued.get(job.carName) == job) {
+            queued.remove(job.carName);
+        }
+        if (latest.get(job.carName) != job.request) {
+            droppedLoads++;
+            return null;
+        }
+        running.add(job.carName);
+        return job.request;
+    }
+
+    private synchronized void finish(String carName) {
+        running.remove(carName);
+        Job next = queued.get(carName);
+        if (next != null && !next.submitted && !executor.isShutdown()) {
+            submit(next);
+        }
+    }
+
+    private void deliver(Request request, T result) {
+        synchronized (this) {
+            if (latest.get(request.carName) != request) {
+                wastedLoads++;
+                return;
+            }
+            latest.remove(request.carName);
+            completedLoads++;
+        }
+        request.callback.onLoaded(request.carName, result);
+    }
+
+    private void deliverFailure(Request request, Throwable error) {
+        synchronized (this) {
+            if (latest.get(request.carName) != request)
+                return;
+            latest.remove(request.carName);
+        }
+        request.callback.onLoadFailed(request.carName, error);
+    }
+
+    /**
+     * A load waiting for or running on a thread, delivering to the latest request merged into it.
+     */
+    private class Job implements Runnable {
+        final String carName;
+        Request request;
+        boolean submitted = false;
+
+        Job(String carName, Request request) {
+            this.carName = carName;
+            this.request = request;
+        }
+
+        @Override
+        public void run() {
+            final Request started = start(this);
+            if (started == null)
+                return;
+            try {
+                final T result = loader.load(carName);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(started, result);
+                    }
+                });
+            } catch (RuntimeException e) {
+                fail(started, e);
+            } catch (OutOfMemoryError e) {
+                // A history too long to load must not leave the caller waiting forever.
+                fail(started, e);
+            } finally {
+                finish(carName);
+            }
+        }
+
+        private void fail(final Request started, final Throwable error) {
+            Log.e(TAG, "Could not load " + carName, error);
+            synchronized (LoadScheduler.this) {
+                failedLoads++;
+            }
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    deliverFailure(started, error);
+                }
+            });
+        }
+    }
+
+    public class Request {
+        private final String carName;
+        private final Callback<T> callback;
+
+        private Request(String carName, Callback<T> callback) {
+            this.carName = carName;
+            this.callback = callback;
+        }
+
+        /**
+         * Stops the result from being delivered, and the load from running if it has not started.
+         */
+        public void cancel() {
+            synchronized (LoadScheduler.this) {
+                if (latest.get(carName) != this)
+                    return;
+                latest.remove(carName);
+                Job job = queued.get(carName);
+                if (job != null && job.request == this && !job.submitted) {
+                    queued.remove(carName);
+                }
+            }
+        }
+
+        /**
+         * @return Whether the result has been neither delivered nor cancelled.
+         */
+        public boolean isPending() {
+            synchronized (LoadScheduler.this) {
+                return latest.get(carName) == this;
+            }
+        }
+    }
+
+    /**
+     * Loads a car's data. Called on a pool thread.
+     */
+    public static interface Loader<T> {
+        public T load(String carName);
+    }
+
+    public static interface Callback<T> {
+        public void onLoaded(String carName, T result);
+
+        /**
+         * Called instead of onLoaded when the load threw. The error has been logged.
+         */
+        public void onLoadFailed(String carName, Throwable error);
+    }
+}
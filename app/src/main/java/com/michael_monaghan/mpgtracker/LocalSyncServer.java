@@ -0,0 +1,50 @@
+package com.michael_monaghan.mpgtracker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * An in-process stand-in for the fleet server, for trying SyncClient without a network.
+ * Keeps every change it receives in memory in arrival order; a change's server sequence is its position plus one.
+ * A retried request is stored once, since changes at or below a device's last stored sequence are skipped.
+ */
+public class LocalSyncServer implements SyncClient.Transport {
+
+    private final ArrayList<MileageChange> changes = new ArrayList<MileageChange>();
+    private final ArrayList<String> origins = new ArrayList<String>();
+    // The last local sequence stored, by device.
+    private final HashMap<String, Long> acknowledged = new HashMap<String, Long>();
+
+    @Override
+    public synchronized byte[] exchange(byte[] message) throws IOException {
+        SyncClient.Request request = SyncClient.readRequest(message);
+        Long last = acknowledged.get(request.deviceId);
+        long stored = last == null ? 0 : last;
+        for (MileageChange change : request.changes) {
+            if (change.getSequence() <= stored)
+                continue;
+            changes.add(change.withSequence(changes.size() + 1));
+            origins.add(request.deviceId);
+            stored = change.getSequence();
+        }
+        acknowledged.put(request.deviceId, stored);
+
+        ArrayList<MileageChange> remote = new ArrayList<MileageChange>();
+        long sequence = Math.max(0, Math.min(request.remoteSequence, changes.size()));
+        while (sequence < changes.size() && remote.size() < SyncClient.BATCH_SIZE) {
+            if (!origins.get((int) sequence).equals(request.deviceId)) {
+                remote.add(changes.get((int) sequence));
+            }
+            sequence++;
+        }
+        return SyncClient.writeResponse(stored, sequence, sequence < changes.size(), remote.toArray(new MileageChange[remote.size()]));
+    }
+
+    /**
+     * @return The number of changes stored from every device.
+     */
+    public synchronized int size() {
+        return changes.size();
+    }
+}
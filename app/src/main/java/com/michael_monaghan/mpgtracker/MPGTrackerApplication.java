@@ -0,0 +1,72 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.app.Application;
+import android.util.Log;
+
+import michael_monaghan.mpgtracker.BuildConfig;
+
+/**
+ * Owns the MileageDatabase connection for the lifetime of the application.
+ * The application's reference is never released. Android kills the process without calling onTerminate, and every
+ * committed write is already in the database file, so the connection is simply closed with the process.
+ */
+public class MPGTrackerApplication extends Application {
+
+    private static final String TAG = "Startup";
+
+    private static final Metrics.Timer firstRowTimer = Metrics.timer("startup.first_row");
+    private static final Metrics.Timer liveRowsTimer = Metrics.timer("startup.live_rows");
+
+    private MileageDatabase mileageDatabase;
+
+    // When the process started, and which of its first rows have been drawn.
+    private long startTime;
+    private boolean firstRowDrawn = false;
+    private boolean liveRowsDrawn = false;
+
+    @Override
+    public void onCreate() {
+        startTime = System.nanoTime();
+        super.onCreate();
+        mileageDatabase = new MileageDatabase(this).acquireReference();
+    }
+
+    /**
+     * Runs database maintenance once the UI is hidden, while the user is not waiting on the database.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            mileageDatabase.getMaintenance().runSoon();
+        }
+    }
+
+    /**
+     * Records the time from the start of the process to the first rows drawn, from the startup snapshot or from
+     * the database. Only the first rows of each kind in a process count, so the times compare across releases.
+     * Called on the main thread.
+     * @param live Whether the rows came from the database.
+     */
+    public void onRowsDrawn(boolean live) {
+        long elapsed = System.nanoTime() - startTime;
+        if (!firstRowDrawn) {
+            firstRowDrawn = true;
+            firstRowTimer.record(elapsed);
+            Log.i(TAG, "Release " + BuildConfig.VERSION_NAME + " drew its first row " + (live ? "from the database" : "from the startup snapshot")
+                    + " after " + elapsed / 1000000 + " ms");
+        }
+        if (live && !liveRowsDrawn) {
+            liveRowsDrawn = true;
+            liveRowsTimer.record(elapsed);
+            Log.i(TAG, "Release " + BuildConfig.VERSION_NAME + " drew its rows from the database after " + elapsed / 1000000 + " ms");
+        }
+    }
+
+    /**
+     * @return The application wide MileageDatabase. Components should hold a reference while they use it.
+     */
+    public MileageDatabase getMileageDatabase() {
+        return mileageDatabase;
+    }
+}
@@ -16,26 +16,46 @@ import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
 
+import michael_monaghan.mpgtracker.BuildConfig;
 import michael_monaghan.mpgtracker.R;
 
 
 public class MainActivity extends Activity implements ActionBar.OnNavigationListener {
 
+    // Histories longer than this are paged instead of loaded whole.
+    private static final int PAGED_HISTORY_SIZE = 2000;
+    private static final int PAGE_SIZE = 100;
+
+    private static final Metrics.Timer loadToRenderTimer = Metrics.timer("ui.load_to_render");
+
     // Database
     private MileageDatabase mdb;
 
     // Current Car
-    private String[] carNames;
+    private String[] carNames = new String[0];
     private int carIndex = 0;
-
-    // Loaders
-    LoadMileageEntriesTask lastEntriesLoader;
+    // The car whose rows are shown from the startup snapshot until its live rows load, or null.
+    private String snapshotCarName;
+
+    // Queries of the car observed, delivered again after every write to it.
+    private LiveQuery<MileageHistory> entriesQuery;
+    private LiveQuery<MileageHistory>.Subscription entriesSubscription;
+    private LiveQuery<ChartPyramid> chartQuery;
+    private LiveQuery<ChartPyramid>.Subscription chartSubscription;
+    private String observedCarName;
+    // Whether the observed car's rows have been delivered.
+    private boolean entriesLoaded = false;
 
     // Views
     private ListView list;
     private ProgressBar loading;
+    private MileageChart chart;
 
     // Adapters
     private MileageEntriesAdapter entriesAdapter;
@@ -43,6 +63,9 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
     //ViewHandlers
     private UserEntryViewHandler userEntryViewHandler;
 
+    // Set when destroyed so callbacks of writes still running are ignored.
+    private boolean destroyed = false;
+
 
 
 
@@ -54,19 +77,25 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
         setContentView(R.layout.activity_main);
         list = (ListView) findViewById(R.id.list);
         loading = (ProgressBar) findViewById(R.id.loading);
-        showLoading();
 
         // Set up Database
-        mdb = new MileageDatabase(this);
-        carNames = mdb.getCarNames();
-
-        // Set up action bar
-        ActionBar ab = getActionBar();
-        ab.setNavigationMode(ActionBar.NAVIGATION_MODE_LIST);
-        ArrayAdapter<String> carsAdapter = new ArrayAdapter<String>(ab.getThemedContext(), android.R.layout.simple_spinner_item, carNames);
-
-        carsAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        ab.setListNavigationCallbacks(carsAdapter, this);
+        mdb = ((MPGTrackerApplication) getApplication()).getMileageDatabase().acquireReference();
+        new LoadCarNamesTask().execute();
+        mdb.getInvalidationTracker().addCarsObserver(carsObserver);
+        // The adapter changes the histories it is given, so this query must have no other observers.
+        entriesQuery = new LiveQuery<MileageHistory>(mdb, new LoadScheduler.Loader<MileageHistory>() {
+            @Override
+            public MileageHistory load(String carName) {
+                return loadMileageHistory(carName);
+            }
+        });
+        chartQuery = new LiveQuery<ChartPyramid>(mdb, new LoadScheduler.Loader<ChartPyramid>() {
+            @Override
+            public ChartPyramid load(String carName) {
+                // The whole history, even when the list is paged.
+                return ChartPyramid.of(mdb.loadMileageHistory(carName));
+            }
+        });
 
         // Set up cars list
         entriesAdapter = new MileageEntriesAdapter(this);
@@ -77,15 +106,87 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
                 performAddEntry(entry);
             }
         });
+        chart = (MileageChart) getLayoutInflater().inflate(R.layout.mileage_chart, null);
+        list.addHeaderView(chart);
         list.addHeaderView(inputView);
         registerForContextMenu(list);
         list.setAdapter(entriesAdapter);
+
+        // Draw the first screen from the last session while the database opens.
+        StartupSnapshot snapshot = StartupSnapshot.read(this);
+        if (snapshot != null) {
+            showSnapshot(snapshot);
+        } else {
+            showLoading();
+        }
+    }
+
+    /**
+     * Shows the cars and rows of the startup snapshot. The rows stay until the car's live rows load.
+     */
+    private void showSnapshot(StartupSnapshot snapshot) {
+        carNames = snapshot.getCarNames();
+        carIndex = snapshot.getCarIndex();
+        if (snapshot.getRows().size() == 0) {
+            showLoading();
+        } else {
+            snapshotCarName = snapshot.getCarName();
+            entriesAdapter.setMileageHistory(snapshot.getRows());
+            hideLoading();
+            list.post(new Runnable() {
+                @Override
+                public void run() {
+                    reportRowsDrawn(false);
+                }
+            });
+        }
+        setUpCarNavigation();
+    }
+
+    /**
+     * Sets up the action bar's car list once the car names are loaded.
+     */
+    private void setUpCarNavigation() {
+        ActionBar ab = getActionBar();
+        ab.setNavigationMode(ActionBar.NAVIGATION_MODE_LIST);
+        ArrayAdapter<String> carsAdapter = new ArrayAdapter<String>(ab.getThemedContext(), android.R.layout.simple_spinner_item, carNames);
+
+        carsAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        ab.setListNavigationCallbacks(carsAdapter, this);
+        if (carIndex < carNames.length) {
+            ab.setSelectedNavigationItem(carIndex);
+        }
+    }
+
+    /**
+     * Saves the cars and the first rows shown for the next cold start.
+     */
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (carNames.length == 0)
+            return;
+        // While another car loads, the adapter still holds the rows of the last one.
+        boolean rowsShown = !isLoadingEntries() || carNames[carIndex].equals(snapshotCarName);
+        MileageHistory rows = rowsShown ? entriesAdapter.copyFirstRows(StartupSnapshot.ROWS) : new MileageHistory(0);
+        new WriteSnapshotTask(StartupSnapshot.getFile(this)).execute(new StartupSnapshot(carNames, carIndex, rows));
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        destroyed = true;
+        mdb.getInvalidationTracker().removeCarsObserver(carsObserver);
+        entriesQuery.close();
+        chartQuery.close();
+        mdb.releaseReference();
     }
 
     @Override
     public void onCreateContextMenu(ContextMenu menu, View v, ContextMenu.ContextMenuInfo menuInfo) {
         super.onCreateContextMenu(menu, v, menuInfo);
-        if (((AdapterView.AdapterContextMenuInfo)menuInfo).id != -1) {
+        // Entries still being added have negative ids until they are written.
+        if (((AdapterView.AdapterContextMenuInfo)menuInfo).id >= 0) {
             menu.add(Menu.NONE, 0, Menu.NONE, R.string.delete);
         }
     }
@@ -94,15 +195,15 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
     public boolean onContextItemSelected(MenuItem item) {
         AdapterView.AdapterContextMenuInfo menuInfo = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
         Toast.makeText(this, R.string.entry_deleted, Toast.LENGTH_SHORT).show();
-        performDeleteEntry(menuInfo.id);
+        performDeleteEntry((MileageDatabase.MileageEntry) list.getItemAtPosition(menuInfo.position));
         return true;
     }
 
     @Override
     public boolean onNavigationItemSelected(int i, long l) {
         if (i < carNames.length) {
-            loadCarMileageEntries(carNames[i]);
             carIndex = i;
+            observeCar(carNames[i]);
         } else {
             showLoading();
             performAddNewCar();
@@ -115,53 +216,239 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
     }
 
     private void performAddEntry(MileageDatabase.UserEntry entry) {
+        if (carNames.length == 0)
+            return;
         userEntryViewHandler.clear();
-        mdb.addEntry(carNames[carIndex], entry);
+        long pendingId = isLoadingEntries() ? -1 : entriesAdapter.showPendingInsert(entry);
+        mdb.addEntryAsync(carNames[carIndex], entry, new EntryWriteCallback(carNames[carIndex], pendingId));
         Toast.makeText(this, R.string.entry_added, Toast.LENGTH_LONG).show();
-        loadCarMileageEntries();
     }
 
-    private void performDeleteEntry(long id) {
-        mdb.deleteEntry(carNames[carIndex], id);
-        loadCarMileageEntries();
+    private void performDeleteEntry(MileageDatabase.MileageEntry entry) {
+        long pendingId = isLoadingEntries() ? -1 : entriesAdapter.showPendingDelete(entry);
+        mdb.deleteEntryAsync(carNames[carIndex], entry.getId(), new EntryWriteCallback(carNames[carIndex], pendingId));
     }
 
-    private void loadCarMileageEntries() {
-        loadCarMileageEntries(carNames[carIndex]);
+    private boolean isLoadingEntries() {
+        return !entriesLoaded;
     }
 
+    /**
+     * Replaces a write shown in the list with the changes the database made. If the write could not be shown or
+     * its history was not loaded, the car's query delivers it instead.
+     */
+    private class EntryWriteCallback implements MileageDatabase.WriteCallback<MileageCalculator.Diff> {
+
+        private final String carName;
+        private final long pendingId;
+
+        EntryWriteCallback(String carName, long pendingId) {
+            this.carName = carName;
+            this.pendingId = pendingId;
+        }
+
+        @Override
+        public void onWriteComplete(MileageCalculator.Diff diff) {
+            if (destroyed || !carName.equals(observedCarName))
+                return;
+            if (diff != null && pendingId != -1 && !isLoadingEntries() && entriesAdapter.confirmWrite(pendingId, diff)
+                    && diff.getVersion() == entriesSubscription.getVersion() + 1) {
+                // The rows have every write up to this one, so the car is not loaded again for it.
+                entriesSubscription.setVersion(diff.getVersion());
+            }
+        }
+
+        @Override
+        public void onWriteFailed(Throwable error) {
+            Log.e(MainActivity.this.toString(), "Write failed.", error);
+            if (destroyed)
+                return;
+            Toast.makeText(MainActivity.this, R.string.entry_not_saved, Toast.LENGTH_LONG).show();
+            if (pendingId != -1) {
+                entriesAdapter.cancelWrite(pendingId);
+            }
+        }
+    }
+
+    /**
+     * Reloads the car names when cars are added or deleted, by sync or an import as well as here.
+     */
+    private final InvalidationTracker.CarsObserver carsObserver = new InvalidationTracker.CarsObserver() {
+        @Override
+        public void onCarsInvalidated() {
+            if (!destroyed) {
+                new LoadCarNamesTask().execute();
+            }
+        }
+    };
 
     /**
-     * Loads a MileageDatabase
+     * Loads the car names off the main thread, then shows them in the action bar.
      */
-    private class LoadMileageEntriesTask extends AsyncTask<String, Void, MileageDatabase.MileageEntry[]> {
+    private class LoadCarNamesTask extends AsyncTask<Void, Void, String[]> {
 
         @Override
-        protected MileageDatabase.MileageEntry[] doInBackground(String... strings) {
-            Log.d(this.toString(), "Loading...");
-            return mdb.getMileageEntries(strings[0]);
+        protected String[] doInBackground(Void... voids) {
+            return mdb.getCarNames();
         }
-        
+
         @Override
-        protected void onPostExecute(MileageDatabase.MileageEntry[] entries) {
-            updateCarMileageEntries(entries);
+        protected void onPostExecute(String[] names) {
+            if (destroyed || Arrays.equals(names, carNames))
+                return;
+            // The cars changed since the startup snapshot. Stay on the same car if it is still there.
+            int index = carIndex < carNames.length ? Arrays.asList(names).indexOf(carNames[carIndex]) : -1;
+            if (index == -1 && snapshotCarName != null) {
+                snapshotCarName = null;
+                showLoading();
+            }
+            carNames = names;
+            carIndex = Math.max(index, 0);
+            setUpCarNavigation();
+            if (carNames.length != 0) {
+                observeCar(carNames[carIndex]);
+            }
         }
     }
 
-    private void loadCarMileageEntries(String carName) {
-        showLoading();
-        if (lastEntriesLoader != null) {
-            lastEntriesLoader.cancel(false);
+    /**
+     * Writes the startup snapshot off the main thread.
+     */
+    private static class WriteSnapshotTask extends AsyncTask<StartupSnapshot, Void, Void> {
+
+        private final File file;
+
+        WriteSnapshotTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Void doInBackground(StartupSnapshot... snapshots) {
+            try {
+                snapshots[0].write(file);
+            } catch (IOException e) {
+                Log.w("StartupSnapshot", "Could not write the startup snapshot", e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Loads a car's history. Called on a LoadScheduler thread.
+     * @return The history, or null when it is long enough to be paged instead.
+     */
+    private MileageHistory loadMileageHistory(String carName) {
+        MileageHistory cached = mdb.getCachedMileageHistory(carName);
+        if (cached != null) {
+            return cached;
+        }
+        Log.d(this.toString(), "Loading...");
+        if (mdb.getEntryCount(carName) > PAGED_HISTORY_SIZE) {
+            return null;
+        }
+        return mdb.getMileageHistory(carName);
+    }
+
+    /**
+     * Shows a car's rows and chart, and keeps them up to date with every write to it until another car is observed.
+     * Does nothing if the car is already observed.
+     */
+    private void observeCar(String carName) {
+        if (carName.equals(observedCarName))
+            return;
+        if (entriesSubscription != null) {
+            entriesSubscription.cancel();
+        }
+        if (chartSubscription != null) {
+            chartSubscription.cancel();
+            chartSubscription = null;
+        }
+        if (observedCarName != null) {
+            chart.setPyramid(null);
+        }
+        observedCarName = carName;
+        entriesLoaded = false;
+        if (!carName.equals(snapshotCarName)) {
+            showLoading();
         }
-        lastEntriesLoader = new LoadMileageEntriesTask();
-        lastEntriesLoader.execute(carName);
+        final long start = loadToRenderTimer.start();
+        entriesSubscription = entriesQuery.observe(carName, new LiveQuery.Observer<MileageHistory>() {
+            @Override
+            public void onChanged(String carName, MileageHistory history, long version) {
+                if (!entriesLoaded) {
+                    entriesLoaded = true;
+                    // Runs after the layout and draw the new data schedules.
+                    list.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            loadToRenderTimer.stop(start);
+                            reportRowsDrawn(true);
+                        }
+                    });
+                    snapshotCarName = null;
+                    // The chart waits for the rows so it does not slow them down.
+                    observeChart(carName);
+                }
+                if (BuildConfig.DEBUG) {
+                    LoadScheduler<?> scheduler = entriesQuery.getScheduler();
+                    Log.d(MainActivity.this.toString(), "Loaded " + carName + " at version " + version + ", wasted loads "
+                            + scheduler.getWastedLoads() + ", dropped loads " + scheduler.getDroppedLoads());
+                }
+                if (history == null) {
+                    MileagePager pager = entriesAdapter.getMileagePager();
+                    if (pager != null && pager.getCarName().equals(carName)) {
+                        // Keeps the pages and scroll position shown until the changed pages are in.
+                        pager.invalidate();
+                    } else {
+                        entriesAdapter.setMileagePager(new MileagePager(mdb, carName, PAGE_SIZE));
+                    }
+                    hideLoading();
+                } else {
+                    updateCarMileageEntries(history);
+                }
+            }
+
+            @Override
+            public void onFailed(String carName, Throwable error) {
+                Toast.makeText(MainActivity.this, R.string.entries_not_loaded, Toast.LENGTH_LONG).show();
+                // Rows from the startup snapshot are better than none.
+                if (!entriesLoaded && !carName.equals(snapshotCarName)) {
+                    entriesAdapter.setMileageHistory(null);
+                }
+                hideLoading();
+            }
+        });
     }
 
-    private void updateCarMileageEntries(MileageDatabase.MileageEntry[] entries) {
-        entriesAdapter.setMileageEntries(entries);
+    /**
+     * Builds the car's chart off the main thread, and again after every write to it.
+     * The chart keeps showing the last one until the next is done.
+     */
+    private void observeChart(String carName) {
+        chartSubscription = chartQuery.observe(carName, new LiveQuery.Observer<ChartPyramid>() {
+            @Override
+            public void onChanged(String carName, ChartPyramid pyramid, long version) {
+                chart.setPyramid(pyramid);
+            }
+
+            @Override
+            public void onFailed(String carName, Throwable error) {
+                chart.setPyramid(null);
+            }
+        });
+    }
+
+    private void updateCarMileageEntries(MileageHistory history) {
+        entriesAdapter.setMileageHistory(history);
         hideLoading();
     }
 
+    private void reportRowsDrawn(boolean live) {
+        if (!destroyed) {
+            ((MPGTrackerApplication) getApplication()).onRowsDrawn(live);
+        }
+    }
+
     private void showLoading() {
         loading.setVisibility(loading.VISIBLE);
         list.setVisibility(list.GONE);
@@ -172,6 +459,17 @@ public class MainActivity extends Activity implements ActionBar.OnNavigationList
         list.setVisibility(list.VISIBLE);
     }
 
+    /**
+     * Adds the metrics to adb shell dumpsys activity.
+     */
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("Metrics:");
+        Metrics.dump(prefix + "  ", writer);
+    }
+
 /*
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -0,0 +1,202 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the hot paths, cheap enough to leave on.
+ * Timers and counters are registered once in static fields and updated without locks. A timer only
+ * reads the clock on every sampleInterval-th call, so frequent operations cost one increment otherwise.
+ * Dump them with dumpToLog, dumpToFile, or adb shell dumpsys activity on MainActivity.
+ */
+public class Metrics {
+
+    private static final String TAG = "Metrics";
+
+    private static final ArrayList<Timer> timers = new ArrayList<Timer>();
+    private static final ArrayList<Counter> counters = new ArrayList<Counter>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Registers a timer that times every call.
+     */
+    public static Timer timer(String name) {
+        return timer(name, 1);
+    }
+
+    /**
+     * Registers a timer.
+     * @param name The name it is dumped with.
+     * @param sampleInterval Time one call in this many.
+     */
+    public static Timer timer(String name, int sampleInterval) {
+        Timer timer = new Timer(name, sampleInterval);
+        synchronized (timers) {
+            timers.add(timer);
+        }
+        return timer;
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = new Counter(name);
+        synchronized (counters) {
+            counters.add(counter);
+        }
+        return counter;
+    }
+
+    /**
+     * Writes every timer and counter, one per line.
+     */
+    public static void dump(String prefix, PrintWriter writer) {
+        synchronized (timers) {
+            for (Timer timer : timers) {
+                writer.print(prefix);
+                timer.dump(writer);
+                writer.println();
+            }
+        }
+        synchronized (counters) {
+            for (Counter counter : counters) {
+                writer.print(prefix);
+                writer.print(counter.name);
+                writer.print(": ");
+                writer.println(counter.get());
+            }
+        }
+    }
+
+    public static void dumpToLog() {
+        StringWriter out = new StringWriter();
+        dump("", new PrintWriter(out));
+        for (String line : out.toString().split("\n")) {
+            Log.i(TAG, line);
+        }
+    }
+
+    public static void dumpToFile(File file) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            dump("", writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * A histogram of durations in power of two buckets of nanoseconds.
+     */
+    public static class Timer {
+        private static final int BUCKETS = 48;
+
+        private final String name;
+        private final int sampleInterval;
+        private final AtomicInteger calls = new AtomicInteger();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong samples = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Timer(String name, int sampleInterval) {
+            this.name = name;
+            this.sampleInterval = sampleInterval;
+        }
+
+        /**
+         * @return A start time to pass to stop, or -1 if this call is not sampled.
+         */
+        public long start() {
+            if (sampleInterval > 1 && calls.getAndIncrement() % sampleInterval != 0)
+                return -1;
+            return System.nanoTime();
+        }
+
+        public void stop(long start) {
+            if (start != -1) {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0)
+                return;
+            int bucket = Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(nanos | 1));
+            buckets.incrementAndGet(bucket);
+            samples.incrementAndGet();
+            total.addAndGet(nanos);
+            long currentMax;
+            while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            }
+        }
+
+        /**
+         * @return The upper bound, in nanoseconds, of the bucket holding the given fraction of samples.
+         */
+        long percentile(double fraction) {
+            long count = samples.get();
+            long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0)
+                    return 1L << (i + 1);
+            }
+            return 0;
+        }
+
+        private void dump(PrintWriter writer) {
+            long count = samples.get();
+            writer.print(name);
+            writer.print(": samples=");
+            writer.print(count);
+            if (count == 0)
+                return;
+            writer.print(" mean=");
+            writer.print(formatMicros(total.get() / count));
+            writer.print(" p50<");
+            writer.print(formatMicros(percentile(.5)));
+            writer.print(" p90<");
+            writer.print(formatMicros(percentile(.9)));
+            writer.print(" p99<");
+            writer.print(formatMicros(percentile(.99)));
+            writer.print(" max=");
+            writer.print(formatMicros(max.get()));
+        }
+
+        private static String formatMicros(long nanos) {
+            return (nanos / 1000) + "us";
+        }
+    }
+
+    public static class Counter {
+        private final String name;
+        private final AtomicLong count = new AtomicLong();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        public void add(long n) {
+            count.addAndGet(n);
+        }
+
+        public void increment() {
+            count.incrementAndGet();
+        }
+
+        public long get() {
+            return count.get();
+        }
+    }
+}
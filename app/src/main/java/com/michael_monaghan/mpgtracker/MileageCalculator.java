@@ -0,0 +1,224 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+/**
+ * Keeps a car's computed mileage history and updates it incrementally.
+ * The mileage of a full tank only depends on the entries down to the next full tank (its segment),
+ * so inserting, editing or deleting an entry only recomputes the one or two segments it touches.
+ * Its AnomalyDetector flags suspect entries as they change, also without walking the history.
+ */
+public class MileageCalculator {
+
+    private final MileageHistory history;
+    private final AnomalyDetector detector = new AnomalyDetector();
+
+    /**
+     * Computes the mileage of a whole history.
+     * @param databaseEntries Entries sorted by odometer, highest first.
+     */
+    public MileageCalculator(DatabaseEntry[] databaseEntries) {
+        this(MileageHistory.of(databaseEntries));
+    }
+
+    /**
+     * Computes the mileage of a whole history and keeps it.
+     * @param history A history sorted by odometer, highest first. It is owned by the calculator from now on.
+     */
+    public MileageCalculator(MileageHistory history) {
+        this.history = history;
+        history.computeMileage();
+        detector.scan(history);
+    }
+
+    /**
+     * @return A copy of the computed history.
+     */
+    public synchronized MileageHistory getMileageHistory() {
+        return history.copy();
+    }
+
+    /**
+     * @return The computed history as MileageEntries sorted by odometer, highest first.
+     */
+    public synchronized MileageEntry[] getMileageEntries() {
+        return history.toMileageEntries();
+    }
+
+    public synchronized int size() {
+        return history.size();
+    }
+
+    /**
+     * Adds an entry to the history.
+     * @param entry The entry that was added to the database.
+     * @return The changes to apply to a displayed copy of the history.
+     */
+    public synchronized Diff insert(DatabaseEntry entry) {
+        Diff diff = new Diff();
+        insert(entry, diff);
+        return diff;
+    }
+
+    /**
+     * Replaces the entry with the same id, moving it if its odometer changed.
+     * @param odometer The odometer the entry had before the edit, in tenths of a mile.
+     * @param entry The edited entry.
+     * @return The changes to apply to a displayed copy of the history.
+     */
+    public synchronized Diff update(int odometer, DatabaseEntry entry) {
+        Diff diff = new Diff();
+        delete(odometer, entry.getId(), diff);
+        insert(entry, diff);
+        return diff;
+    }
+
+    /**
+     * Removes an entry from the history.
+     * @param odometer The odometer of the deleted entry in tenths of a mile.
+     * @param id The id of the deleted entry.
+     * @return The changes to apply to a displayed copy of the history.
+     */
+    public synchronized Diff delete(int odometer, long id) {
+        Diff diff = new Diff();
+        delete(odometer, id, diff);
+        return diff;
+    }
+
+    private void insert(DatabaseEntry entry, Diff diff) {
+        if (entry instanceof MileageEntry) {
+            // Only the entry is inserted; its mileage and flags are computed here.
+            entry = new DatabaseEntry(entry.getId(), entry.getOdometerTenths(), entry.getGasMilliGallons(), entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt());
+        }
+        int position = history.insertionIndex(entry.getOdometerTenths(), entry.getId());
+        history.insert(position, entry);
+        diff.shift(position);
+        diff.insertedPosition = position;
+        detector.checkOrder(history, position);
+        diff.insertedEntry = history.getEntry(position);
+
+        if (entry.hasFullTank()) {
+            diff.change(position, recompute(position));
+        }
+        int above = history.fullTankAbove(position);
+        if (above != -1) {
+            diff.change(above, recompute(above));
+        }
+        recheckOrder(position - 1, diff);
+        recheckOrder(position + 1, diff);
+    }
+
+    private void delete(int odometer, long id, Diff diff) {
+        int position = history.indexOf(odometer, id);
+        if (position == -1)
+            return;
+        detector.leave(history, position);
+        history.remove(position);
+        diff.removedPosition = position;
+
+        int above = history.fullTankAbove(position);
+        if (above != -1) {
+            diff.change(above, recompute(above));
+        }
+        recheckOrder(position - 1, diff);
+        recheckOrder(position, diff);
+    }
+
+    /**
+     * Computes the mileage of the full tank at index from its segment and judges it.
+     * @return The new MileageEntry at index.
+     */
+    private MileageEntry recompute(int index) {
+        detector.leave(history, index);
+        history.computeMileage(index);
+        detector.join(history, index);
+        return history.getEntry(index);
+    }
+
+    /**
+     * Rechecks a neighbour of a changed row, recording it in diff if its flag changed.
+     */
+    private void recheckOrder(int index, Diff diff) {
+        if (detector.checkOrder(history, index)) {
+            diff.change(index, history.getEntry(index));
+        }
+    }
+
+    /**
+     * Describes how one insert, update or delete changed the history.
+     * Apply the removal, then the insertion, then the changed positions.
+     */
+    public static class Diff {
+        private int removedPosition = -1;
+        private int insertedPosition = -1;
+        private MileageEntry insertedEntry;
+        // An update touches at most two segments and four neighbours.
+        private final int[] changedPositions = new int[8];
+        private final MileageEntry[] changedEntries = new MileageEntry[8];
+        private int changedCount = 0;
+        private long version;
+
+        private void shift(int insertedPosition) {
+            for (int i = 0; i < changedCount; i++) {
+                if (changedPositions[i] >= insertedPosition)
+                    changedPositions[i]++;
+            }
+        }
+
+        private void change(int position, MileageEntry entry) {
+            for (int i = 0; i < changedCount; i++) {
+                if (changedPositions[i] == position) {
+                    changedEntries[i] = entry;
+                    return;
+                }
+            }
+            changedPositions[changedCount] = position;
+            changedEntries[changedCount++] = entry;
+        }
+
+        /**
+         * @return The position of the removed entry, or -1 if nothing was removed.
+         */
+        public int getRemovedPosition() {
+            return removedPosition;
+        }
+
+        /**
+         * @return The position of the inserted entry after the removal, or -1 if nothing was inserted.
+         */
+        public int getInsertedPosition() {
+            return insertedPosition;
+        }
+
+        public MileageEntry getInsertedEntry() {
+            return insertedEntry;
+        }
+
+        public int getChangedCount() {
+            return changedCount;
+        }
+
+        /**
+         * @return The position, after the removal and insertion, of the i-th changed entry.
+         */
+        public int getChangedPosition(int i) {
+            return changedPositions[i];
+        }
+
+        public MileageEntry getChangedEntry(int i) {
+            return changedEntries[i];
+        }
+
+        /**
+         * @return The car's InvalidationTracker version after the write.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        void setVersion(long version) {
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.UserEntry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * One record of the change log MileageDatabase keeps for sync.
+ * Cars are named by their name and entries by a key that is the same on every device, so a change can be applied anywhere.
+ */
+public class MileageChange {
+
+    // Operations
+    public static final int ADD_CAR = 1;
+    public static final int DELETE_CAR = 2;
+    public static final int INSERT_ENTRY = 3;
+    public static final int EDIT_ENTRY = 4;
+    public static final int DELETE_ENTRY = 5;
+
+    // Flags
+    private static final byte FULL_TANK = 1;
+    private static final byte MISSING_PREVIOUS_ENTRY = 1 << 1;
+
+    private final long sequence;
+    private final int operation;
+    private final String carName;
+    private final String entryKey;
+    private final UserEntry entry;
+
+    MileageChange(long sequence, int operation, String carName, String entryKey, UserEntry entry) {
+        this.sequence = sequence;
+        this.operation = operation;
+        this.carName = carName;
+        this.entryKey = entryKey;
+        this.entry = entry;
+    }
+
+    /**
+     * @return The position of the change in the log it was read from. Later changes have higher sequences.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getOperation() {
+        return operation;
+    }
+
+    public String getCarName() {
+        return carName;
+    }
+
+    /**
+     * @return The key of the changed entry, or null for changes to a car.
+     */
+    public String getEntryKey() {
+        return entryKey;
+    }
+
+    /**
+     * @return The inserted or edited entry, or null for deletes and changes to a car.
+     */
+    public UserEntry getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return Whether the operation carries an entry.
+     */
+    static boolean hasEntry(int operation) {
+        return operation == INSERT_ENTRY || operation == EDIT_ENTRY;
+    }
+
+    static boolean hasEntryKey(int operation) {
+        return operation == INSERT_ENTRY || operation == EDIT_ENTRY || operation == DELETE_ENTRY;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(sequence);
+        out.writeByte(operation);
+        out.writeUTF(carName);
+        if (hasEntryKey(operation)) {
+            out.writeUTF(entryKey);
+        }
+        if (hasEntry(operation)) {
+            out.writeInt(entry.getOdometerTenths());
+            out.writeInt(entry.getGasMilliGallons());
+            out.writeByte((entry.hasFullTank() ? FULL_TANK : 0) | (entry.missingPreviousEntry() ? MISSING_PREVIOUS_ENTRY : 0));
+            out.writeLong(entry.whatTimeIsIt());
+        }
+    }
+
+    static MileageChange read(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        int operation = in.readByte();
+        if (operation < ADD_CAR || operation > DELETE_ENTRY)
+            throw new IOException("Unknown change operation " + operation);
+        String carName = in.readUTF();
+        String entryKey = hasEntryKey(operation) ? in.readUTF() : null;
+        UserEntry entry = null;
+        if (hasEntry(operation)) {
+            int odometer = in.readInt();
+            int gasFilled = in.readInt();
+            byte flags = in.readByte();
+            long time = in.readLong();
+            entry = new UserEntry(odometer, gasFilled, (flags & FULL_TANK) != 0, (flags & MISSING_PREVIOUS_ENTRY) != 0, time);
+        }
+        return new MileageChange(sequence, operation, carName, entryKey, entry);
+    }
+
+    /**
+     * @return A copy with a different sequence, such as the one a server gives it.
+     */
+    MileageChange withSequence(long sequence) {
+        return new MileageChange(sequence, operation, carName, entryKey, entry);
+    }
+}
@@ -0,0 +1,237 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.Locale;
+
+/**
+ * Draws a car's mileage over its odometer from a ChartPyramid, and pans and zooms it by touch.
+ * Each frame draws about one bucket per PIXELS_PER_BUCKET pixels from the pyramid level that fits, so pan and zoom
+ * cost the same however long the history is. Everything a frame draws with is allocated when the size changes.
+ */
+public class MileageChart extends View {
+
+    // Width of a bucket on screen.
+    private static final int PIXELS_PER_BUCKET = 2;
+    // Fewest full tanks the chart zooms in to.
+    private static final int MIN_VISIBLE_POINTS = 4;
+    // Room left above and below the mileage, as a fraction of its range.
+    private static final float MILEAGE_MARGIN = .1f;
+
+    private static final Metrics.Timer drawTimer = Metrics.timer("chart.draw");
+
+    private ChartPyramid pyramid;
+    // The odometer range shown.
+    private float viewStart, viewEnd;
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final DecimalFormatter formatter = new DecimalFormatter(Locale.getDefault());
+    private final char[] label = new char[DecimalFormatter.MAX_LENGTH];
+    // Line segments of the frame being drawn, four floats each.
+    private float[] lines = new float[0];
+
+    private final GestureDetector gestureDetector;
+    private final ScaleGestureDetector scaleGestureDetector;
+
+    public MileageChart(Context context) {
+        this(context, null);
+    }
+
+    public MileageChart(Context context, AttributeSet attributes) {
+        super(context, attributes);
+        float density = context.getResources().getDisplayMetrics().density;
+        linePaint.setColor(Color.DKGRAY);
+        linePaint.setStrokeWidth(1.5f * density);
+        textPaint.setColor(Color.GRAY);
+        textPaint.setTextSize(12 * context.getResources().getDisplayMetrics().scaledDensity);
+        gestureDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                return hasLine();
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent down, MotionEvent move, float distanceX, float distanceY) {
+                if (Math.abs(distanceX) < Math.abs(distanceY))
+                    return false;
+                getParent().requestDisallowInterceptTouchEvent(true);
+                float shift = distanceX * (viewEnd - viewStart) / getChartWidth();
+                setViewport(viewStart + shift, viewEnd + shift);
+                return true;
+            }
+        });
+        scaleGestureDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                if (!hasLine())
+                    return false;
+                getParent().requestDisallowInterceptTouchEvent(true);
+                // Keep the odometer under the focus where it is.
+                float fraction = (detector.getFocusX() - getPaddingLeft()) / getChartWidth();
+                float focus = viewStart + fraction * (viewEnd - viewStart);
+                float span = (viewEnd - viewStart) / detector.getScaleFactor();
+                span = Math.max(span, getMinSpan());
+                setViewport(focus - fraction * span, focus + (1 - fraction) * span);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Shows a new pyramid. The zoom is kept, moved inside the new odometer range, unless the chart was showing everything.
+     * @param pyramid The pyramid to draw, or null to draw nothing.
+     */
+    public void setPyramid(ChartPyramid pyramid) {
+        boolean whole = !hasLine() || viewStart <= getFirstOdometer() && viewEnd >= getLastOdometer();
+        this.pyramid = pyramid;
+        if (!hasLine()) {
+            viewStart = viewEnd = 0;
+        } else if (whole) {
+            viewStart = getFirstOdometer();
+            viewEnd = getLastOdometer();
+        } else {
+            setViewport(viewStart, viewEnd);
+        }
+        invalidate();
+    }
+
+    /**
+     * Shows an odometer range, moved and shrunk to fit in the pyramid's range.
+     */
+    private void setViewport(float start, float end) {
+        float first = getFirstOdometer();
+        float last = getLastOdometer();
+        float span = Math.min(end - start, last - first);
+        if (start < first) {
+            start = first;
+        } else if (start + span > last) {
+            start = last - span;
+        }
+        viewStart = start;
+        viewEnd = start + span;
+        invalidate();
+    }
+
+    /**
+     * @return Whether there are at least two full tanks to draw a line between.
+     */
+    private boolean hasLine() {
+        return pyramid != null && pyramid.getPoints() >= 2;
+    }
+
+    private float getFirstOdometer() {
+        return pyramid.getStartOdometer(0, 0);
+    }
+
+    private float getLastOdometer() {
+        return pyramid.getEndOdometer(0, pyramid.getPoints() - 1);
+    }
+
+    private float getMinSpan() {
+        int points = pyramid.getPoints();
+        if (points <= MIN_VISIBLE_POINTS)
+            return getLastOdometer() - getFirstOdometer();
+        return (getLastOdometer() - getFirstOdometer()) * MIN_VISIBLE_POINTS / points;
+    }
+
+    private int getChartWidth() {
+        return Math.max(getWidth() - getPaddingLeft() - getPaddingRight(), 1);
+    }
+
+    private int getMaxBuckets() {
+        return getChartWidth() / PIXELS_PER_BUCKET;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        boolean handled = scaleGestureDetector.onTouchEvent(event);
+        if (!scaleGestureDetector.isInProgress()) {
+            handled |= gestureDetector.onTouchEvent(event);
+        }
+        return handled || super.onTouchEvent(event);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        // A bucket draws at most a line to the bucket before it and a line over its range. A few buckets
+        // past each edge are drawn so the line runs off the chart.
+        lines = new float[(getMaxBuckets() + 4) * 2 * 4];
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (!hasLine())
+            return;
+        long start = drawTimer.start();
+        int maxBuckets = getMaxBuckets();
+        int visiblePoints = pyramid.indexOf(0, viewEnd) - pyramid.indexOf(0, viewStart) + 1;
+        int level = pyramid.levelFor(visiblePoints, maxBuckets);
+        int first = Math.max(pyramid.indexOf(level, viewStart) - 1, 0);
+        int last = Math.min(pyramid.indexOf(level, viewEnd), pyramid.size(level) - 1);
+        last = Math.min(last, first + maxBuckets + 3);
+
+        float low = Float.MAX_VALUE, high = -Float.MAX_VALUE;
+        for (int i = first; i <= last; i++) {
+            low = Math.min(low, pyramid.getMinMileage(level, i));
+            high = Math.max(high, pyramid.getMaxMileage(level, i));
+        }
+        float margin = high > low ? (high - low) * MILEAGE_MARGIN : 1;
+        low -= margin;
+        high += margin;
+
+        float left = getPaddingLeft();
+        float top = getPaddingTop();
+        float xScale = getChartWidth() / (viewEnd - viewStart);
+        float yScale = (getHeight() - getPaddingBottom() - top) / (high - low);
+        int count = 0;
+        float previousX = 0, previousY = 0;
+        for (int i = first; i <= last; i++) {
+            float x = left + ((pyramid.getStartOdometer(level, i) + pyramid.getEndOdometer(level, i)) / 2 - viewStart) * xScale;
+            float yMin = top + (high - pyramid.getMinMileage(level, i)) * yScale;
+            float yMax = top + (high - pyramid.getMaxMileage(level, i)) * yScale;
+            float y = (yMin + yMax) / 2;
+            if (i > first) {
+                count = putLine(count, previousX, previousY, x, y);
+            }
+            if (yMin != yMax) {
+                count = putLine(count, x, yMin, x, yMax);
+            }
+            previousX = x;
+            previousY = y;
+        }
+
+        canvas.save();
+        canvas.clipRect(left, top, getWidth() - getPaddingRight(), getHeight() - getPaddingBottom());
+        canvas.drawLines(lines, 0, count, linePaint);
+        canvas.restore();
+        drawLabel(canvas, high - margin, top - textPaint.ascent());
+        drawLabel(canvas, low + margin, getHeight() - getPaddingBottom() - textPaint.descent());
+        drawTimer.stop(start);
+    }
+
+    private int putLine(int count, float x1, float y1, float x2, float y2) {
+        if (count + 4 > lines.length)
+            return count;
+        lines[count++] = x1;
+        lines[count++] = y1;
+        lines[count++] = x2;
+        lines[count++] = y2;
+        return count;
+    }
+
+    private void drawLabel(Canvas canvas, float mileage, float y) {
+        int length = formatter.format(mileage, label, 0);
+        canvas.drawText(label, 0, length, getPaddingLeft(), y, textPaint);
+    }
+}
@@ -3,65 +3,438 @@ package com.michael_monaghan.mpgtracker;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
+import android.util.LruCache;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Created by Michael on 8/9/2014.
  * Provides access to the Mileage Database stored on the device.
- * Uses an SQLite3 database and stores each car's data in a separate table
+ * Uses an SQLite3 database with a cars table and a single entries table keyed by car id.
  */
 public class MileageDatabase {
 
     private final Context context;
     private MileageDatabaseOpenHelper openHelper;
 
+    // Connection
+    private SQLiteDatabase database;
+    private int references = 0;
+    // Compiled write statements by SQL, closed with the connection.
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<String, SQLiteStatement>();
+
+    // Runs writes submitted with submitWrite one at a time, in order. Exists while there are references.
+    private ExecutorService writeExecutor;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Car registry, loaded from the cars table on first use, and the same cars by id.
+    private LinkedHashMap<String, Long> carIds;
+    private HashMap<Long, String> carNamesById;
+    private String[] carNames;
+    // Names this database in the keys of the entries it creates. Loaded from the sync_state table on first use.
+    private String deviceId;
+
+    // Computed mileage histories of recently loaded cars, by car id, weighed by their number of entries.
+    private final LruCache<Long, CachedCalculator> calculators = new LruCache<Long, CachedCalculator>(HISTORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long carId, CachedCalculator cached) {
+            return cached.weight;
+        }
+    };
+    // Incremented by every write so a history loaded during a write is not kept.
+    private long writeCount = 0;
+
+    private final DatabaseMaintenance maintenance;
+    private final InvalidationTracker invalidationTracker = new InvalidationTracker();
+
+    // Metrics
+    private static final Metrics.Timer queryTimer = Metrics.timer("database.query");
+    private static final Metrics.Timer cursorWalkTimer = Metrics.timer("database.cursor_walk");
+    private static final Metrics.Timer insertTimer = Metrics.timer("database.insert");
+    private static final Metrics.Timer deleteTimer = Metrics.timer("database.delete");
+    private static final Metrics.Timer updateTimer = Metrics.timer("database.update");
+    private static final Metrics.Counter rowsScanned = Metrics.counter("database.rows_scanned");
+    static final Metrics.Counter entriesAllocated = Metrics.counter("entries.allocated");
+
+    private static final String CARS_TABLE = "cars";
+    private static final String ENTRIES_TABLE = "entries";
+    private static final String ENTRIES_CAR_ODOMETER_INDEX = "entries_car_odometer";
+    private static final String ENTRIES_HISTORY_INDEX = "entries_history";
+    private static final String ENTRIES_TIME_INDEX = "entries_time";
+    private static final String SEGMENTS_TABLE = "segments";
+    private static final String SEGMENT_TOTALS_TABLE = "segment_totals";
+    private static final String CHANGES_TABLE = "changes";
+    private static final String SYNC_KEYS_TABLE = "sync_keys";
+    private static final String SYNC_STATE_TABLE = "sync_state";
+
+    private static final String NAME_COLUMN = "name";
+    private static final String CAR_ID_COLUMN = "car_id";
     private static final String TIME_COLUMN = "time";
     private static final String ODOMETER_COLUMN = "odometer";
     private static final String GAS_FILLED_COLUMN = "gas_filled";
     private static final String FULL_TANK_COLUMN = "full_tank";
     private static final String MISSING_PREVIOUS_ENTRY_COLUMN = "missing_previous_entry";
-    private static final String ID_COLUMN = "rowid";
+    private static final String ID_COLUMN = "_id";
+    private static final String SEGMENTS_COLUMN = "segments";
+    private static final String DISTANCE_COLUMN = "distance";
+    private static final String GAS_COLUMN = "gas";
+    private static final String SEQUENCE_COLUMN = "sequence";
+    private static final String OPERATION_COLUMN = "operation";
+    private static final String CAR_NAME_COLUMN = "car_name";
+    private static final String ENTRY_KEY_COLUMN = "entry_key";
+    private static final String ENTRY_ID_COLUMN = "entry_id";
+    private static final String KEY_COLUMN = "key";
+    private static final String VALUE_COLUMN = "value";
+
+    // Keys of the sync_state table.
+    private static final String DEVICE_ID_KEY = "device_id";
+    private static final String REMOTE_SEQUENCE_KEY = "remote_sequence";
+
+    private static final String[] HISTORY_COLUMNS = {ID_COLUMN, ODOMETER_COLUMN, GAS_FILLED_COLUMN, FULL_TANK_COLUMN, MISSING_PREVIOUS_ENTRY_COLUMN, TIME_COLUMN};
+    // Ties are broken by id so full loads and pages agree on the order.
+    private static final String HISTORY_ORDER = ODOMETER_COLUMN + " DESC, " + ID_COLUMN;
+
+    private static final String INSERT_ENTRY_SQL = "INSERT INTO " + ENTRIES_TABLE + "(" + CAR_ID_COLUMN + ", " + ODOMETER_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    private static final String UPDATE_ENTRY_SQL = "UPDATE " + ENTRIES_TABLE + " SET " + ODOMETER_COLUMN + "=?, " + GAS_FILLED_COLUMN + "=?, " + FULL_TANK_COLUMN + "=?, " + MISSING_PREVIOUS_ENTRY_COLUMN + "=?, " + TIME_COLUMN + "=? WHERE " + ID_COLUMN + "=? AND " + CAR_ID_COLUMN + "=?";
+    private static final String ENTRY_ODOMETER_SQL = "SELECT " + ODOMETER_COLUMN + " FROM " + ENTRIES_TABLE + " WHERE " + ID_COLUMN + "=? AND " + CAR_ID_COLUMN + "=?";
+    private static final String DELETE_ENTRY_SQL = "DELETE FROM " + ENTRIES_TABLE + " WHERE " + ID_COLUMN + "=? AND " + CAR_ID_COLUMN + "=?";
+    private static final String DELETE_CAR_ENTRIES_SQL = "DELETE FROM " + ENTRIES_TABLE + " WHERE " + CAR_ID_COLUMN + "=?";
+    private static final String DELETE_CAR_SQL = "DELETE FROM " + CARS_TABLE + " WHERE " + ID_COLUMN + "=?";
+    private static final String CAR_SELECTION = CAR_ID_COLUMN + "=?";
+    private static final String INSERT_CHANGE_SQL = "INSERT INTO " + CHANGES_TABLE + "(" + OPERATION_COLUMN + ", " + CAR_NAME_COLUMN + ", " + ENTRY_KEY_COLUMN + ", " + ODOMETER_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final String INSERT_SYNC_KEY_SQL = "INSERT OR REPLACE INTO " + SYNC_KEYS_TABLE + "(" + ENTRY_ID_COLUMN + ", " + ENTRY_KEY_COLUMN + ") VALUES (?, ?)";
+    private static final String DELETE_SYNC_KEY_SQL = "DELETE FROM " + SYNC_KEYS_TABLE + " WHERE " + ENTRY_ID_COLUMN + "=?";
+    private static final String DELETE_CAR_SYNC_KEYS_SQL = "DELETE FROM " + SYNC_KEYS_TABLE + " WHERE " + ENTRY_ID_COLUMN + " IN (SELECT " + ID_COLUMN + " FROM " + ENTRIES_TABLE + " WHERE " + CAR_ID_COLUMN + "=?)";
+
+    /**
+     * Odometers are stored as integer tenths of a mile.
+     */
+    public static final int ODOMETER_SCALE = 10;
+
+    /**
+     * Gas is stored as integer thousandths of a gallon.
+     */
+    public static final int GAS_SCALE = 1000;
+
+    /**
+     * Number of rows committed per transaction by addEntries when no batch size is given.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Number of entries of computed history kept in memory across all cars.
+     * A history longer than this is not kept at all.
+     */
+    public static final int HISTORY_CACHE_SIZE = 20000;
+
+
+    /**
+     * @return value multiplied by scale and rounded to the nearest integer.
+     */
+    static int toFixed(float value, int scale) {
+        return (int) Math.round((double) value * scale);
+    }
 
+    /**
+     * Converts a decimal typed by the user without going through a float, so no digit is lost.
+     * @return value multiplied by scale and rounded half up to the nearest integer.
+     */
+    static int toFixed(String value, int scale) {
+        return new BigDecimal(value.trim()).multiply(BigDecimal.valueOf(scale)).setScale(0, RoundingMode.HALF_UP).intValue();
+    }
 
     public MileageDatabase(Context context) {
         this.context = context;
         openHelper = new MileageDatabaseOpenHelper(context);
+        maintenance = new DatabaseMaintenance(this);
+    }
+
+    /**
+     * Takes a reference to the database connection.
+     * The connection stays open until every reference has been released.
+     * @return this MileageDatabase.
+     */
+    public synchronized MileageDatabase acquireReference() {
+        if (references++ == 0 && writeExecutor == null) {
+            writeExecutor = Executors.newSingleThreadExecutor();
+        }
+        return this;
+    }
+
+    /**
+     * Releases a reference taken with acquireReference. Closes the connection when the last one is released,
+     * after the writes already submitted have run.
+     */
+    public synchronized void releaseReference() {
+        if (references == 0)
+            throw new IllegalStateException("MileageDatabase has no references to release.");
+        if (--references == 0) {
+            maintenance.cancel();
+            ExecutorService executor = writeExecutor;
+            writeExecutor = null;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+            executor.shutdown();
+        }
     }
 
-    private SQLiteDatabase getWritableDatabase() {
-        return openHelper.getWritableDatabase();
+    private synchronized void close() {
+        if (references != 0)
+            return;
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        openHelper.close();
+        database = null;
     }
 
-    private SQLiteDatabase getReadableDatabase() {
-        return openHelper.getReadableDatabase();
+    /**
+     * Runs a write on the database's write thread. Writes run one at a time in the order they are submitted,
+     * so a read started from a callback sees every write submitted before it.
+     * @param write The write to run.
+     * @param callback Called on the main thread when the write has run, may be null.
+     * @return A Future of the write's result.
+     */
+    public synchronized <T> Future<T> submitWrite(Callable<T> write, final WriteCallback<T> callback) {
+        if (writeExecutor == null)
+            throw new IllegalStateException("MileageDatabase has no references.");
+        FutureTask<T> task = new FutureTask<T>(write) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled())
+                    return;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        T result;
+                        try {
+                            result = get();
+                        } catch (ExecutionException e) {
+                            callback.onWriteFailed(e.getCause());
+                            return;
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        callback.onWriteComplete(result);
+                    }
+                });
+            }
+        };
+        writeExecutor.execute(task);
+        return task;
     }
 
     /**
-     * @return the names of the car tables in the database.
+     * Adds an entry to a car on the write thread.
+     * @see #addEntry(String, UserEntry)
      */
-    public String[] getCarNames() {
-        SQLiteDatabase db = getReadableDatabase();
-        String[] names = getCarNames(db);
-        db.close();
-        return names;
+    public Future<MileageCalculator.Diff> addEntryAsync(final String carName, final UserEntry entry, WriteCallback<MileageCalculator.Diff> callback) {
+        return submitWrite(new Callable<MileageCalculator.Diff>() {
+            @Override
+            public MileageCalculator.Diff call() {
+                return addEntry(carName, entry);
+            }
+        }, callback);
     }
-    private static String[] getCarNames(SQLiteDatabase db) {
-        Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'", null);
 
-        c.moveToFirst();
-        String[] s = new String[c.getCount() - 1]; // There exists a table called android_metadata that is ignored.
-        int index = c.getColumnIndex("name");
-        int i = 0;
-        while (!c.isAfterLast()) {
-            String name = c.getString(index);
-            if (!name.equals("android_metadata"))
-                s[i++] = name;
-            c.moveToNext();
+    /**
+     * Deletes an entry from a car on the write thread.
+     * @see #deleteEntry(String, long)
+     */
+    public Future<MileageCalculator.Diff> deleteEntryAsync(final String carName, final long id, WriteCallback<MileageCalculator.Diff> callback) {
+        return submitWrite(new Callable<MileageCalculator.Diff>() {
+            @Override
+            public MileageCalculator.Diff call() {
+                return deleteEntry(carName, id);
+            }
+        }, callback);
+    }
+
+    /**
+     * Edits an entry on the write thread.
+     * @see #editEntry(DatabaseEntry, String)
+     */
+    public Future<MileageCalculator.Diff> editEntryAsync(final DatabaseEntry entry, final String carName, WriteCallback<MileageCalculator.Diff> callback) {
+        return submitWrite(new Callable<MileageCalculator.Diff>() {
+            @Override
+            public MileageCalculator.Diff call() {
+                return editEntry(entry, carName);
+            }
+        }, callback);
+    }
+
+    /**
+     * Runs vacuum and ANALYZE on this database when it is idle.
+     * @return The maintenance of this database.
+     */
+    public DatabaseMaintenance getMaintenance() {
+        return maintenance;
+    }
+
+    /**
+     * @return Tells observers which cars were written to.
+     */
+    public InvalidationTracker getInvalidationTracker() {
+        return invalidationTracker;
+    }
+
+    /**
+     * Records a write, so a history loaded during it is not kept and maintenance waits for the database to be idle again.
+     */
+    private void wrote() {
+        writeCount++;
+        maintenance.onWrite();
+    }
+
+    /**
+     * Records a write to a car, and tells the car's observers.
+     * @return The car's version after the write.
+     */
+    private long wrote(String carName) {
+        wrote();
+        return invalidationTracker.invalidate(carName);
+    }
+
+    /**
+     * Marks a diff as having the writes up to version, so a reader that applied it can skip reloading them.
+     */
+    private static MileageCalculator.Diff versioned(MileageCalculator.Diff diff, long version) {
+        if (diff != null) {
+            diff.setVersion(version);
+        }
+        return diff;
+    }
+
+    /**
+     * @return The shared connection, opened on first use and kept until the last reference is released.
+     */
+    synchronized SQLiteDatabase getDatabase() {
+        if (database == null) {
+            database = openHelper.getWritableDatabase();
+        }
+        return database;
+    }
+
+    /**
+     * Returns a statement compiled once per connection. Callers must hold the lock on this MileageDatabase
+     * while binding and executing it, because the statement is shared.
+     * @param sql One of the write statements.
+     * @return The compiled statement with its bindings cleared.
+     */
+    private synchronized SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = getDatabase().compileStatement(sql);
+            statements.put(sql, statement);
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    /**
+     * @return The car registry, mapping car names to ids in the order the cars were added.
+     */
+    private synchronized LinkedHashMap<String, Long> getCarIds() {
+        if (carIds == null) {
+            carIds = loadCarIds(getDatabase());
+            carNamesById = new HashMap<Long, String>(carIds.size() * 2);
+            for (Map.Entry<String, Long> car : carIds.entrySet()) {
+                carNamesById.put(car.getValue(), car.getKey());
+            }
+            carNames = null;
+        }
+        return carIds;
+    }
+
+    private static LinkedHashMap<String, Long> loadCarIds(SQLiteDatabase db) {
+        Cursor c = db.query(CARS_TABLE, new String[]{ID_COLUMN, NAME_COLUMN}, null, null, null, null, ID_COLUMN);
+
+        LinkedHashMap<String, Long> ids = new LinkedHashMap<String, Long>(c.getCount() * 2);
+        int id = c.getColumnIndex(ID_COLUMN);
+        int name = c.getColumnIndex(NAME_COLUMN);
+        while (c.moveToNext()) {
+            ids.put(c.getString(name), c.getLong(id));
         }
         c.close();
-        return s;
+        return ids;
+    }
+
+    /**
+     * @param carName Car name.
+     * @return The car's id or -1 if it does not exist.
+     */
+    private synchronized long getCarId(String carName) {
+        Long id = getCarIds().get(carName);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Drops the in-memory car registry so it is reloaded from the database on next use.
+     * Call this after the database file has been changed by something other than this MileageDatabase.
+     */
+    public synchronized void invalidateCars() {
+        carIds = null;
+        carNamesById = null;
+        carNames = null;
+        calculators.evictAll();
+        invalidationTracker.invalidateAll();
+    }
+
+    /**
+     * @return the names of the cars in the database. The array is shared and must not be modified.
+     */
+    public synchronized String[] getCarNames() {
+        if (carNames == null) {
+            LinkedHashMap<String, Long> ids = getCarIds();
+            carNames = ids.keySet().toArray(new String[ids.size()]);
+        }
+        return carNames;
+    }
+
+    /**
+     * @param carId The id of a car.
+     * @return The name of the car, or null if there is none.
+     */
+    synchronized String getCarName(long carId) {
+        getCarIds();
+        return carNamesById.get(carId);
+    }
+
+    /**
+     * @param carName Car name.
+     * @return Whether the car exists.
+     */
+    public synchronized boolean carExists(String carName) {
+        return getCarIds().containsKey(carName);
     }
 
     /**
@@ -69,96 +442,334 @@ public class MileageDatabase {
      * @param carName The name of the car to add
      * @return Whether the car already exists.
      */
-    public boolean addCar(String carName) {
-        SQLiteDatabase db = getWritableDatabase();
-        boolean exists = addCar(db, carName);
-        db.close();
-        return exists;
+    public synchronized boolean addCar(String carName) {
+        if (carExists(carName))
+            return true;
+        SQLiteDatabase db = getDatabase();
+        long id;
+        db.beginTransaction();
+        try {
+            id = insertCar(db, carName);
+            if (id != -1) {
+                logChange(getStatement(INSERT_CHANGE_SQL), MileageChange.ADD_CAR, carName, null, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (id != -1) {
+            carIds.put(carName, id);
+            carNamesById.put(id, carName);
+            carNames = null;
+            wrote(carName);
+            invalidationTracker.invalidateCars();
+        }
+        return false;
+    }
+
+    /**
+     * Deletes a car and all of its entries.
+     * @param carName The name of the car to delete.
+     * @return Whether the car existed.
+     */
+    public synchronized boolean deleteCar(String carName) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return false;
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            executeUpdateDelete(getStatement(DELETE_CAR_SYNC_KEYS_SQL), carId);
+            executeUpdateDelete(getStatement(DELETE_CAR_ENTRIES_SQL), carId);
+            executeUpdateDelete(getStatement(DELETE_CAR_SQL), carId);
+            logChange(getStatement(INSERT_CHANGE_SQL), MileageChange.DELETE_CAR, carName, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        carIds.remove(carName);
+        carNamesById.remove(carId);
+        carNames = null;
+        calculators.remove(carId);
+        wrote(carName);
+        invalidationTracker.invalidateCars();
+        return true;
     }
 
     private static boolean addCar(SQLiteDatabase db, String carName) {
         if (carExists(db, carName))
             return true;
         else {
-            db.execSQL("CREATE TABLE '" + carName + "'(" + ODOMETER_COLUMN + " REAL, " + GAS_FILLED_COLUMN + " REAL, " + FULL_TANK_COLUMN + " INTEGER, " + MISSING_PREVIOUS_ENTRY_COLUMN + " INTEGER, " + TIME_COLUMN + " INTEGER);");
+            insertCar(db, carName);
             return false;
         }
     }
 
+    private static long insertCar(SQLiteDatabase db, String carName) {
+        ContentValues cv = new ContentValues();
+        cv.put(NAME_COLUMN, carName);
+        return db.insert(CARS_TABLE, null, cv);
+    }
+
     /**
-     * Checks if the car table carName exists
+     * Checks if the car carName exists
      * @param db A readable database.
-     * @param carName Car table name.
+     * @param carName Car name.
      * @return Whether it exists.
      */
     private static boolean carExists(SQLiteDatabase db, String carName) {
-        String [] names = getCarNames(db);
-        for (String n : names) {
-            if (carName.equals(n)) {
-                return true;
-            }
-        }
-        return false;
+        return getCarId(db, carName) != -1;
     }
 
     /**
-     * Adds an entry to a car's table.
-     * @param carName The name of the car's table.
+     * Looks up the id of a car in the cars table.
+     * @param db A readable database.
+     * @param carName Car name.
+     * @return The car's id or -1 if it does not exist.
+     */
+    private static long getCarId(SQLiteDatabase db, String carName) {
+        Cursor c = db.query(CARS_TABLE, new String[]{ID_COLUMN}, NAME_COLUMN + "=?", new String[]{carName}, null, null, null);
+        long id = c.moveToFirst() ? c.getLong(0) : -1;
+        c.close();
+        return id;
+    }
+
+    /**
+     * Adds an entry to a car.
+     * Writes on the calling thread, so the main thread should use the async version.
+     * @param carName The name of the car.
      * @param entry The UserEntry to add.
+     * @return The changes to the car's mileage history, or null if the history is not loaded.
      */
-    public void addEntry(String carName, UserEntry entry) {
-        SQLiteDatabase db = getWritableDatabase();
-        addEntry(db, carName, entry);
-        db.close();
+    public synchronized MileageCalculator.Diff addEntry(String carName, UserEntry entry) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return null;
+        long start = insertTimer.start();
+        SQLiteDatabase db = getDatabase();
+        long id;
+        db.beginTransaction();
+        try {
+            id = addEntry(getStatement(INSERT_ENTRY_SQL), carId, entry);
+            if (id != -1) {
+                logChange(getStatement(INSERT_CHANGE_SQL), MileageChange.INSERT_ENTRY, carName, getDeviceId() + "/" + id, entry);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insertTimer.stop(start);
+        long version = wrote(carName);
+        MileageCalculator calculator = getCachedCalculator(carId);
+        if (id == -1 || calculator == null)
+            return null;
+        MileageCalculator.Diff diff = calculator.insert(new DatabaseEntry(id, entry.getOdometerTenths(), entry.getGasMilliGallons(), entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt()));
+        cacheCalculator(carId, calculator);
+        return versioned(diff, version);
     }
 
     private static void addEntry(SQLiteDatabase db, String carName, UserEntry entry) {
+        long carId = getCarId(db, carName);
+        if (carId != -1) {
+            SQLiteStatement insert = db.compileStatement(INSERT_ENTRY_SQL);
+            addEntry(insert, carId, entry);
+            insert.close();
+        }
+    }
 
-        ContentValues cv = new ContentValues();
-        cv.put(ODOMETER_COLUMN, entry.getOdometer());
-        cv.put(GAS_FILLED_COLUMN, entry.getGasFilled());
-        cv.put(FULL_TANK_COLUMN, entry.hasFullTank());
-        cv.put(TIME_COLUMN, entry.whatTimeIsIt());
-        cv.put(MISSING_PREVIOUS_ENTRY_COLUMN, entry.missingPreviousEntry());
-        db.insert("'" + carName + "'", null, cv);
+    private static long addEntry(SQLiteStatement insert, long carId, UserEntry entry) {
+        bindEntry(insert, carId, entry);
+        return insert.executeInsert();
+    }
+
+    /**
+     * Adds many entries to a car using one compiled statement, committing every DEFAULT_BATCH_SIZE rows.
+     * @param carName The name of the car.
+     * @param entries The UserEntries to add.
+     * @return The number of entries added.
+     */
+    public int addEntries(String carName, Iterable<? extends UserEntry> entries) {
+        return addEntries(carName, entries.iterator(), DEFAULT_BATCH_SIZE, null);
     }
 
-    public void deleteEntry(String carName, DatabaseEntry entry) {
-        deleteEntry(carName, entry.getId());
+    /**
+     * Adds entries to a car as they are read from an iterator, so the source never has to be held in memory.
+     * @param carName The name of the car.
+     * @param entries The UserEntries to add.
+     * @param batchSize The number of rows committed per transaction.
+     * @param listener Notified after each batch commits, may be null.
+     * @return The number of entries added.
+     */
+    public int addEntries(String carName, Iterator<? extends UserEntry> entries, int batchSize, ImportProgressListener listener) {
+        if (batchSize < 1)
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return 0;
+        try {
+            return addEntries(getDatabase(), carId, carName, getDeviceId(), entries, batchSize, listener);
+        } finally {
+            synchronized (this) {
+                calculators.remove(carId);
+                wrote(carName);
+            }
+        }
+    }
+
+    private static int addEntries(SQLiteDatabase db, long carId, String carName, String deviceId, Iterator<? extends UserEntry> entries, int batchSize, ImportProgressListener listener) {
+        long start = System.nanoTime();
+        int rows = 0;
+        SQLiteStatement insert = db.compileStatement(INSERT_ENTRY_SQL);
+        SQLiteStatement log = db.compileStatement(INSERT_CHANGE_SQL);
+        try {
+            while (entries.hasNext()) {
+                db.beginTransaction();
+                try {
+                    for (int i = 0; i < batchSize && entries.hasNext(); i++) {
+                        UserEntry entry = entries.next();
+                        bindEntry(insert, carId, entry);
+                        long id = insert.executeInsert();
+                        if (id >= 0) {
+                            logChange(log, MileageChange.INSERT_ENTRY, carName, deviceId + "/" + id, entry);
+                            rows++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (listener != null) {
+                    long elapsed = System.nanoTime() - start;
+                    listener.onProgress(rows, elapsed == 0 ? 0 : rows * 1e9f / elapsed);
+                }
+            }
+        } finally {
+            insert.close();
+            log.close();
+        }
+        return rows;
     }
 
-    public void deleteEntry(String carName, long id) {
-        SQLiteDatabase db = getWritableDatabase();
-        deleteEntry(db, carName, id);
-        db.close();
+    /**
+     * Binds an entry to a statement compiled from INSERT_ENTRY_SQL.
+     */
+    private static void bindEntry(SQLiteStatement insert, long carId, UserEntry entry) {
+        insert.bindLong(1, carId);
+        insert.bindLong(2, entry.getOdometerTenths());
+        insert.bindLong(3, entry.getGasMilliGallons());
+        insert.bindLong(4, entry.hasFullTank() ? 1 : 0);
+        insert.bindLong(5, entry.missingPreviousEntry() ? 1 : 0);
+        insert.bindLong(6, entry.whatTimeIsIt());
     }
 
-    private static void deleteEntry(SQLiteDatabase db, String carName, DatabaseEntry entry) {
-        deleteEntry(db, carName, entry.getId());
+    public MileageCalculator.Diff deleteEntry(String carName, DatabaseEntry entry) {
+        return deleteEntry(carName, entry.getId());
     }
 
-    private static void deleteEntry(SQLiteDatabase db, String carName, long id) {
-        db.delete("'" + carName + "'", ID_COLUMN + "=" + id, null);
+    /**
+     * Deletes an entry from a car.
+     * Writes on the calling thread, so the main thread should use the async version.
+     * @param carName The name of the car.
+     * @param id The id of the entry.
+     * @return The changes to the car's mileage history, or null if the history is not loaded.
+     */
+    public synchronized MileageCalculator.Diff deleteEntry(String carName, long id) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return null;
+        long start = deleteTimer.start();
+        SQLiteDatabase db = getDatabase();
+        int odometer;
+        db.beginTransaction();
+        try {
+            // The cached history finds the row by its odometer.
+            odometer = getOdometer(getStatement(ENTRY_ODOMETER_SQL), carId, id);
+            String key = getEntryKey(id);
+            if (deleteEntry(getStatement(DELETE_ENTRY_SQL), carId, id) != 0) {
+                executeUpdateDelete(getStatement(DELETE_SYNC_KEY_SQL), id);
+                logChange(getStatement(INSERT_CHANGE_SQL), MileageChange.DELETE_ENTRY, carName, key, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        deleteTimer.stop(start);
+        long version = wrote(carName);
+        MileageCalculator calculator = getCachedCalculator(carId);
+        if (calculator == null)
+            return null;
+        MileageCalculator.Diff diff = calculator.delete(odometer, id);
+        cacheCalculator(carId, calculator);
+        return versioned(diff, version);
     }
 
     /**
-     * Returns all of the Entries from a car's table.
-     * @param carName The name of the car's table.
+     * @return The odometer of an entry of a car in tenths of a mile, or -1 if the car has no entry with id.
+     */
+    private static int getOdometer(SQLiteStatement select, long carId, long id) {
+        select.bindLong(1, id);
+        select.bindLong(2, carId);
+        try {
+            return (int) select.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    private static int deleteEntry(SQLiteStatement delete, long carId, long id) {
+        delete.bindLong(1, id);
+        delete.bindLong(2, carId);
+        return delete.executeUpdateDelete();
+    }
+
+    private static int executeUpdateDelete(SQLiteStatement statement, long id) {
+        statement.bindLong(1, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Returns all of the Entries of a car.
+     * @param carName The name of the car.
      * @return An DatabaseEntry array of all the entries.
      */
     public DatabaseEntry[] getEntries(String carName) {
-        SQLiteDatabase db = getReadableDatabase();
-        DatabaseEntry[] entries = getEntries(db, carName);
-        db.close();
-        return entries;
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return new DatabaseEntry[0];
+        return getEntries(getDatabase(), carId);
     }
 
-    private static DatabaseEntry[] getEntries(SQLiteDatabase db, String carName) {
-        String [] columns = {ID_COLUMN, ODOMETER_COLUMN, GAS_FILLED_COLUMN, FULL_TANK_COLUMN, MISSING_PREVIOUS_ENTRY_COLUMN, TIME_COLUMN};
-        Cursor c = db.query("'" + carName + "'", columns, null, null, null, null, ODOMETER_COLUMN + " DESC");
+    private static DatabaseEntry[] getEntries(SQLiteDatabase db, long carId) {
+        return readEntries(db.query(ENTRIES_TABLE, HISTORY_COLUMNS, CAR_SELECTION, new String[]{Long.toString(carId)}, null, null, HISTORY_ORDER));
+    }
 
+    /**
+     * Returns the entries of a car in a time range, such as a month or a year, in history order.
+     * The range is found with a seek on the time index.
+     * @param carName The name of the car.
+     * @param fromTime The first time in the range, in milliseconds.
+     * @param toTime The time after the range, in milliseconds.
+     * @return A DatabaseEntry array of the entries in the range.
+     */
+    public DatabaseEntry[] getEntries(String carName, long fromTime, long toTime) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return new DatabaseEntry[0];
+        return readEntries(getDatabase().query(ENTRIES_TABLE, HISTORY_COLUMNS,
+                CAR_SELECTION + " AND " + TIME_COLUMN + ">=? AND " + TIME_COLUMN + "<?",
+                new String[]{Long.toString(carId), Long.toString(fromTime), Long.toString(toTime)}, null, null, HISTORY_ORDER));
+    }
+
+    /**
+     * Reads and closes a cursor over HISTORY_COLUMNS.
+     */
+    private static DatabaseEntry[] readEntries(Cursor c) {
+        long start = queryTimer.start();
+        // The query runs when the cursor is first counted.
         int count = c.getCount();
+        queryTimer.stop(start);
         if (count == 0) {
+            c.close();
             return new DatabaseEntry[0];
         }
 
@@ -170,90 +781,623 @@ public class MileageDatabase {
         int time = c.getColumnIndex(TIME_COLUMN);
         int noEnt = c.getColumnIndex(MISSING_PREVIOUS_ENTRY_COLUMN);
 
+        start = cursorWalkTimer.start();
         c.moveToPosition(0);
         for (int i = 0; i < count; i++) {
-            entries[i] = new DatabaseEntry(c.getLong(id), c.getFloat(odo), c.getFloat(gas), c.getInt(full) == 1, c.getInt(noEnt) == 1, c.getLong(time));
+            entries[i] = new DatabaseEntry(c.getLong(id), c.getInt(odo), c.getInt(gas), c.getInt(full) == 1, c.getInt(noEnt) == 1, c.getLong(time));
             c.moveToNext();
         }
         c.close();
+        cursorWalkTimer.stop(start);
+        rowsScanned.add(count);
+        entriesAllocated.add(count);
 
         return entries;
     }
 
-    public void editEntry(DatabaseEntry databaseEntry, String carName) {
-        SQLiteDatabase db = getWritableDatabase();
-        editEntry(db, databaseEntry, carName);
-        db.close();
+    /**
+     * Reads a car's entries straight from the cursor into a MileageHistory, without an object per row.
+     */
+    private static MileageHistory getMileageHistory(SQLiteDatabase db, long carId) {
+        Cursor c = db.query(ENTRIES_TABLE, HISTORY_COLUMNS, CAR_SELECTION, new String[]{Long.toString(carId)}, null, null, HISTORY_ORDER);
+        return readMileageHistory(c);
     }
 
-    private static void editEntry(SQLiteDatabase db, DatabaseEntry databaseEntry, String carName) {
-        ContentValues cv = new ContentValues();
-        cv.put(ODOMETER_COLUMN, databaseEntry.getOdometer());
-        cv.put(GAS_FILLED_COLUMN, databaseEntry.getGasFilled());
-        cv.put(FULL_TANK_COLUMN, databaseEntry.hasFullTank());
-        cv.put(MISSING_PREVIOUS_ENTRY_COLUMN, databaseEntry.missingPreviousEntry());
-        cv.put(TIME_COLUMN, databaseEntry.whatTimeIsIt());
-        db.update(carName, cv,ID_COLUMN + "=" + databaseEntry.getId(), null);
+    /**
+     * Returns a cursor over the entries of a car, or of every car, for streaming them out.
+     * The columns are car_id, odometer, gas_filled, full_tank, missing_previous_entry and time,
+     * grouped by car and in history order within each car.
+     * @param carName The name of the car, or null for every car.
+     * @return The cursor, which the caller must close.
+     */
+    Cursor queryEntries(String carName) {
+        String[] columns = {CAR_ID_COLUMN, ODOMETER_COLUMN, GAS_FILLED_COLUMN, FULL_TANK_COLUMN, MISSING_PREVIOUS_ENTRY_COLUMN, TIME_COLUMN};
+        if (carName == null) {
+            return getDatabase().query(ENTRIES_TABLE, columns, null, null, null, null, CAR_ID_COLUMN + ", " + HISTORY_ORDER);
+        }
+        long carId = getCarId(carName);
+        return getDatabase().query(ENTRIES_TABLE, columns, CAR_SELECTION, new String[]{Long.toString(carId)}, null, null, HISTORY_ORDER);
     }
 
-    public MileageEntry[] getMileageEntries(String carName) {
-        return getMileageEntries(getEntries(carName));
+    /**
+     * Returns the entries of a car with odometers in a range, with their mileage.
+     * The lowest full tank in the range gets its mileage from the entries below the range,
+     * which are read by seeking back to the full tank that ends its segment.
+     * @param carName The name of the car.
+     * @param fromOdometer The lowest odometer in the range.
+     * @param toOdometer The highest odometer in the range.
+     * @return The car's MileageHistory over the range, sorted by odometer, highest first.
+     */
+    public MileageHistory getMileageHistory(String carName, float fromOdometer, float toOdometer) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return new MileageHistory(0);
+        SQLiteDatabase db = getDatabase();
+        String car = Long.toString(carId);
+        int fromTenths = toFixed(fromOdometer, ODOMETER_SCALE);
+        String from = Integer.toString(fromTenths);
+        String to = Integer.toString(toFixed(toOdometer, ODOMETER_SCALE));
+        Cursor end = db.query(ENTRIES_TABLE, new String[]{ODOMETER_COLUMN, ID_COLUMN},
+                CAR_SELECTION + " AND " + FULL_TANK_COLUMN + "=1 AND " + ODOMETER_COLUMN + "<?",
+                new String[]{car, from}, null, null, HISTORY_ORDER, "1");
+        Cursor c;
+        if (end.moveToFirst()) {
+            String endOdometer = Long.toString(end.getLong(0));
+            c = db.query(ENTRIES_TABLE, HISTORY_COLUMNS,
+                    CAR_SELECTION + " AND " + ODOMETER_COLUMN + "<=? AND (" + ODOMETER_COLUMN + ">? OR " + ODOMETER_COLUMN + "=? AND " + ID_COLUMN + "<=?)",
+                    new String[]{car, to, endOdometer, endOdometer, Long.toString(end.getLong(1))}, null, null, HISTORY_ORDER);
+        } else {
+            // No segment ends below the range, so the entries below can not change any mileage in it.
+            c = db.query(ENTRIES_TABLE, HISTORY_COLUMNS,
+                    CAR_SELECTION + " AND " + ODOMETER_COLUMN + "<=? AND " + ODOMETER_COLUMN + ">=?",
+                    new String[]{car, to, from}, null, null, HISTORY_ORDER);
+        }
+        end.close();
+        MileageHistory history = readMileageHistory(c);
+        history.computeMileage();
+        history.truncate(history.insertionIndex(fromTenths));
+        return history;
     }
 
-    public static MileageEntry[] getMileageEntries(DatabaseEntry[] entries) {
-        if (entries.length == 0) {
-            return new MileageEntry[0];
-        }
-
-        MileageEntry[] mileageEntries = new MileageEntry[entries.length];
-
-        boolean lastFullTankIndexValid = false;
-        int lastFullTankIndex = 0;
-        float gasSinceFullTank = 0;
-        for (int i = 0; i < entries.length; i++) {
-            if (entries[i].hasFullTank()) {
-                if (lastFullTankIndexValid) {
-                    float mileage;
-                    if (gasSinceFullTank != 0) {
-                        mileage = (entries[lastFullTankIndex].getOdometer() - entries[i].getOdometer()) / gasSinceFullTank;
-                    } else {
-                        mileage = 0;
+    /**
+     * @see #getMileageHistory(String, float, float)
+     */
+    public MileageEntry[] getMileageEntries(String carName, float fromOdometer, float toOdometer) {
+        return getMileageHistory(carName, fromOdometer, toOdometer).toMileageEntries();
+    }
+
+    /**
+     * Returns the first page of a car's entries, in the same order as getMileageHistory.
+     * @param carName The name of the car.
+     * @param pageSize The maximum number of entries in the page.
+     * @return The page, with mileage not yet computed.
+     */
+    public MileageHistory getEntriesPage(String carName, int pageSize) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return new MileageHistory(0);
+        Cursor c = getDatabase().query(ENTRIES_TABLE, HISTORY_COLUMNS, CAR_SELECTION, new String[]{Long.toString(carId)}, null, null, HISTORY_ORDER, Integer.toString(pageSize));
+        return readMileageHistory(c);
+    }
+
+    /**
+     * Returns the page of a car's entries that follows the entry (afterOdometer, afterId).
+     * The page is found by seeking the (car_id, odometer DESC) index, so a page costs the same however deep it is.
+     * @param carName The name of the car.
+     * @param afterOdometer The odometer, in tenths of a mile, of the last entry of the previous page.
+     * @param afterId The id of the last entry of the previous page.
+     * @param pageSize The maximum number of entries in the page.
+     * @return The page, with mileage not yet computed.
+     */
+    public MileageHistory getEntriesPage(String carName, int afterOdometer, long afterId, int pageSize) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return new MileageHistory(0);
+        String odometer = Integer.toString(afterOdometer);
+        Cursor c = getDatabase().query(ENTRIES_TABLE, HISTORY_COLUMNS,
+                CAR_SELECTION + " AND " + ODOMETER_COLUMN + "<=? AND (" + ODOMETER_COLUMN + "<? OR " + ID_COLUMN + ">?)",
+                new String[]{Long.toString(carId), odometer, odometer, Long.toString(afterId)}, null, null, HISTORY_ORDER, Integer.toString(pageSize));
+        return readMileageHistory(c);
+    }
+
+    /**
+     * Returns the lifetime totals of a car, kept up to date by triggers so reading them does not touch its entries.
+     * @param carName The name of the car.
+     * @return The totals over every full tank segment of the car with a known mileage.
+     */
+    public MileageStatistics getStatistics(String carName) {
+        long carId = getCarId(carName);
+        Cursor c = getDatabase().query(SEGMENT_TOTALS_TABLE, new String[]{SEGMENTS_COLUMN, DISTANCE_COLUMN, GAS_COLUMN},
+                CAR_SELECTION, new String[]{Long.toString(carId)}, null, null, null);
+        return readStatistics(c);
+    }
+
+    /**
+     * Returns the totals of a car's most recent full tank segments.
+     * @param carName The name of the car.
+     * @param segments The number of segments, counting back from the highest odometer.
+     * @return The totals over those segments.
+     */
+    public MileageStatistics getRecentStatistics(String carName, int segments) {
+        long carId = getCarId(carName);
+        Cursor c = getDatabase().rawQuery("SELECT COUNT(*), SUM(" + DISTANCE_COLUMN + "), SUM(" + GAS_COLUMN + ") FROM"
+                + " (SELECT " + DISTANCE_COLUMN + ", " + GAS_COLUMN + " FROM " + SEGMENTS_TABLE + " WHERE " + CAR_SELECTION
+                + " ORDER BY " + ODOMETER_COLUMN + " DESC LIMIT ?)", new String[]{Long.toString(carId), Integer.toString(segments)});
+        return readStatistics(c);
+    }
+
+    /**
+     * @return The totals over every car, summed from the per car totals.
+     */
+    public MileageStatistics getFleetStatistics() {
+        Cursor c = getDatabase().rawQuery("SELECT SUM(" + SEGMENTS_COLUMN + "), SUM(" + DISTANCE_COLUMN + "), SUM(" + GAS_COLUMN + ") FROM " + SEGMENT_TOTALS_TABLE, null);
+        return readStatistics(c);
+    }
+
+    /**
+     * Returns the lifetime totals of every car in one query, for dashboards over the whole fleet.
+     * @return The totals by car name. Cars without a known mileage are left out.
+     */
+    public HashMap<String, MileageStatistics> getCarStatistics() {
+        HashMap<Long, String> names = new HashMap<Long, String>();
+        synchronized (this) {
+            for (Map.Entry<String, Long> car : getCarIds().entrySet()) {
+                names.put(car.getValue(), car.getKey());
+            }
+        }
+        Cursor c = getDatabase().query(SEGMENT_TOTALS_TABLE, new String[]{CAR_ID_COLUMN, SEGMENTS_COLUMN, DISTANCE_COLUMN, GAS_COLUMN},
+                SEGMENTS_COLUMN + ">0", null, null, null, null);
+        HashMap<String, MileageStatistics> statistics = new HashMap<String, MileageStatistics>(c.getCount() * 2);
+        while (c.moveToNext()) {
+            String name = names.get(c.getLong(0));
+            if (name != null) {
+                statistics.put(name, new MileageStatistics(c.getInt(1), (double) c.getLong(2) / ODOMETER_SCALE, (double) c.getLong(3) / GAS_SCALE));
+            }
+        }
+        c.close();
+        return statistics;
+    }
+
+    /**
+     * Reads and closes a cursor over a segment count, distance in tenths of a mile and gas in thousandths of a gallon.
+     */
+    private static MileageStatistics readStatistics(Cursor c) {
+        MileageStatistics statistics;
+        if (c.moveToFirst()) {
+            statistics = new MileageStatistics(c.getInt(0), (double) c.getLong(1) / ODOMETER_SCALE, (double) c.getLong(2) / GAS_SCALE);
+        } else {
+            statistics = new MileageStatistics(0, 0, 0);
+        }
+        c.close();
+        return statistics;
+    }
+
+    /**
+     * @param carName The name of the car.
+     * @return The number of entries of the car.
+     */
+    public long getEntryCount(String carName) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return 0;
+        return DatabaseUtils.queryNumEntries(getDatabase(), ENTRIES_TABLE, CAR_SELECTION, new String[]{Long.toString(carId)});
+    }
+
+    /**
+     * Reads and closes a cursor over HISTORY_COLUMNS.
+     */
+    private static MileageHistory readMileageHistory(Cursor c) {
+        long start = queryTimer.start();
+        // The query runs when the cursor is first counted.
+        int count = c.getCount();
+        queryTimer.stop(start);
+        start = cursorWalkTimer.start();
+        MileageHistory history = new MileageHistory(count);
+        int id = c.getColumnIndex(ID_COLUMN);
+        int odo = c.getColumnIndex(ODOMETER_COLUMN);
+        int gas = c.getColumnIndex(GAS_FILLED_COLUMN);
+        int full = c.getColumnIndex(FULL_TANK_COLUMN);
+        int time = c.getColumnIndex(TIME_COLUMN);
+        int noEnt = c.getColumnIndex(MISSING_PREVIOUS_ENTRY_COLUMN);
+        while (c.moveToNext()) {
+            history.add(c.getLong(id), c.getInt(odo), c.getInt(gas), c.getInt(full) == 1, c.getInt(noEnt) == 1, c.getLong(time));
+        }
+        c.close();
+        cursorWalkTimer.stop(start);
+        rowsScanned.add(count);
+
+        return history;
+    }
+
+    /**
+     * Replaces an entry of a car with databaseEntry.
+     * @param databaseEntry The edited entry.
+     * @param carName The name of the car.
+     * @return The changes to the car's mileage history, or null if the history is not loaded or the entry does not exist.
+     */
+    public synchronized MileageCalculator.Diff editEntry(DatabaseEntry databaseEntry, String carName) {
+        long carId = getCarId(carName);
+        if (carId == -1)
+            return null;
+        long start = updateTimer.start();
+        SQLiteDatabase db = getDatabase();
+        int odometer;
+        int updated;
+        db.beginTransaction();
+        try {
+            odometer = getOdometer(getStatement(ENTRY_ODOMETER_SQL), carId, databaseEntry.getId());
+            updated = editEntry(getStatement(UPDATE_ENTRY_SQL), carId, databaseEntry);
+            if (updated != 0) {
+                logChange(getStatement(INSERT_CHANGE_SQL), MileageChange.EDIT_ENTRY, carName, getEntryKey(databaseEntry.getId()), databaseEntry);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        updateTimer.stop(start);
+        long version = wrote(carName);
+        MileageCalculator calculator = getCachedCalculator(carId);
+        // An entry that is already gone must not come back in the cached history.
+        if (updated != 1 || calculator == null)
+            return null;
+        MileageCalculator.Diff diff = calculator.update(odometer, databaseEntry);
+        cacheCalculator(carId, calculator);
+        return versioned(diff, version);
+    }
+
+    private static int editEntry(SQLiteStatement update, long carId, DatabaseEntry databaseEntry) {
+        update.bindLong(1, databaseEntry.getOdometerTenths());
+        update.bindLong(2, databaseEntry.getGasMilliGallons());
+        update.bindLong(3, databaseEntry.hasFullTank() ? 1 : 0);
+        update.bindLong(4, databaseEntry.missingPreviousEntry() ? 1 : 0);
+        update.bindLong(5, databaseEntry.whatTimeIsIt());
+        update.bindLong(6, databaseEntry.getId());
+        update.bindLong(7, carId);
+        return update.executeUpdateDelete();
+    }
+
+    /**
+     * Appends a record to the change log. Called inside the transaction of the write it records.
+     */
+    private static void logChange(SQLiteStatement log, int operation, String carName, String entryKey, UserEntry entry) {
+        log.clearBindings();
+        log.bindLong(1, operation);
+        log.bindString(2, carName);
+        if (entryKey != null) {
+            log.bindString(3, entryKey);
+        }
+        if (entry != null) {
+            log.bindLong(4, entry.getOdometerTenths());
+            log.bindLong(5, entry.getGasMilliGallons());
+            log.bindLong(6, entry.hasFullTank() ? 1 : 0);
+            log.bindLong(7, entry.missingPreviousEntry() ? 1 : 0);
+            log.bindLong(8, entry.whatTimeIsIt());
+        }
+        log.executeInsert();
+    }
+
+    /**
+     * @return The id that names this database in the keys of the entries it creates.
+     */
+    synchronized String getDeviceId() {
+        if (deviceId == null) {
+            deviceId = getSyncState(getDatabase(), DEVICE_ID_KEY);
+        }
+        return deviceId;
+    }
+
+    /**
+     * @return The key an entry is known by on every device: the key it was synced with, or this device's id and its own id.
+     */
+    private synchronized String getEntryKey(long id) {
+        Cursor c = getDatabase().query(SYNC_KEYS_TABLE, new String[]{ENTRY_KEY_COLUMN}, ENTRY_ID_COLUMN + "=?", new String[]{Long.toString(id)}, null, null, null);
+        String key = c.moveToFirst() ? c.getString(0) : null;
+        c.close();
+        return key != null ? key : getDeviceId() + "/" + id;
+    }
+
+    /**
+     * @return The id of the entry with a key, or -1 if it is not in this database.
+     */
+    private static long findEntry(SQLiteDatabase db, String deviceId, String key) {
+        if (key.startsWith(deviceId + "/")) {
+            try {
+                return Long.parseLong(key.substring(deviceId.length() + 1));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        Cursor c = db.query(SYNC_KEYS_TABLE, new String[]{ENTRY_ID_COLUMN}, ENTRY_KEY_COLUMN + "=?", new String[]{key}, null, null, null);
+        long id = c.moveToFirst() ? c.getLong(0) : -1;
+        c.close();
+        return id;
+    }
+
+    /**
+     * Reads the oldest changes that have not been acknowledged, in the order they were made.
+     * Reads a range of the change log's primary key, so the cost depends on the changes read and not on the database size.
+     * @param limit The most changes to read.
+     */
+    MileageChange[] getChanges(int limit) {
+        Cursor c = getDatabase().query(CHANGES_TABLE, new String[]{SEQUENCE_COLUMN, OPERATION_COLUMN, CAR_NAME_COLUMN, ENTRY_KEY_COLUMN,
+                ODOMETER_COLUMN, GAS_FILLED_COLUMN, FULL_TANK_COLUMN, MISSING_PREVIOUS_ENTRY_COLUMN, TIME_COLUMN},
+                null, null, null, null, SEQUENCE_COLUMN, Integer.toString(limit));
+        MileageChange[] changes = new MileageChange[c.getCount()];
+        int i = 0;
+        while (c.moveToNext()) {
+            int operation = c.getInt(1);
+            UserEntry entry = MileageChange.hasEntry(operation) ? new UserEntry(c.getInt(4), c.getInt(5), c.getInt(6) == 1, c.getInt(7) == 1, c.getLong(8)) : null;
+            changes[i++] = new MileageChange(c.getLong(0), operation, c.getString(2), c.isNull(3) ? null : c.getString(3), entry);
+        }
+        c.close();
+        return changes;
+    }
+
+    /**
+     * Drops the changes up to and including sequence from the change log, once a server has stored them.
+     */
+    synchronized void acknowledgeChanges(long sequence) {
+        getDatabase().delete(CHANGES_TABLE, SEQUENCE_COLUMN + "<=?", new String[]{Long.toString(sequence)});
+    }
+
+    /**
+     * @return The server sequence of the last remote change applied.
+     */
+    synchronized long getRemoteSequence() {
+        return Long.parseLong(getSyncState(getDatabase(), REMOTE_SEQUENCE_KEY));
+    }
+
+    /**
+     * Applies changes made on other devices in one transaction, together with the server sequence they bring this
+     * database up to. They are not added to the change log, so they are never sent back.
+     * A change to an entry this database does not have is applied as an insert, unless the entry was created here,
+     * in which case it was deleted here and stays deleted.
+     * @param changes The changes, in server order.
+     * @param remoteSequence The server sequence of the last change.
+     */
+    synchronized void applyRemoteChanges(MileageChange[] changes, long remoteSequence) {
+        SQLiteDatabase db = getDatabase();
+        String deviceId = getDeviceId();
+        HashSet<Long> changedCars = new HashSet<Long>();
+        HashSet<String> changedCarNames = new HashSet<String>();
+        boolean carsChanged = false;
+        db.beginTransaction();
+        try {
+            for (MileageChange change : changes) {
+                long carId = getCarId(db, change.getCarName());
+                switch (change.getOperation()) {
+                    case MileageChange.ADD_CAR:
+                        if (carId == -1) {
+                            insertCar(db, change.getCarName());
+                            carsChanged = true;
+                        }
+                        break;
+                    case MileageChange.DELETE_CAR:
+                        if (carId != -1) {
+                            executeUpdateDelete(getStatement(DELETE_CAR_SYNC_KEYS_SQL), carId);
+                            executeUpdateDelete(getStatement(DELETE_CAR_ENTRIES_SQL), carId);
+                            executeUpdateDelete(getStatement(DELETE_CAR_SQL), carId);
+                            changedCars.add(carId);
+                            changedCarNames.add(change.getCarName());
+                            carsChanged = true;
+                        }
+                        break;
+                    case MileageChange.INSERT_ENTRY:
+                    case MileageChange.EDIT_ENTRY: {
+                        if (carId == -1) {
+                            carId = insertCar(db, change.getCarName());
+                            carsChanged = true;
+                        }
+                        UserEntry entry = change.getEntry();
+                        long id = findEntry(db, deviceId, change.getEntryKey());
+                        if (id != -1) {
+                            editEntry(getStatement(UPDATE_ENTRY_SQL), carId, new DatabaseEntry(id, entry.getOdometerTenths(), entry.getGasMilliGallons(),
+                                    entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt()));
+                        } else if (!change.getEntryKey().startsWith(deviceId + "/")) {
+                            id = addEntry(getStatement(INSERT_ENTRY_SQL), carId, entry);
+                            SQLiteStatement insertKey = getStatement(INSERT_SYNC_KEY_SQL);
+                            insertKey.bindLong(1, id);
+                            insertKey.bindString(2, change.getEntryKey());
+                            insertKey.executeInsert();
+                        }
+                        changedCars.add(carId);
+                        changedCarNames.add(change.getCarName());
+                        break;
                     }
-                    mileageEntries[lastFullTankIndex] = new MileageEntry(entries[lastFullTankIndex], mileage);
-                }
-                if (entries[i].missingPreviousEntry()) {
-                    mileageEntries[i] = new MileageEntry(entries [i]);
-                    lastFullTankIndexValid = false;
-                } else {
-                    lastFullTankIndex = i;
-                    lastFullTankIndexValid = true;
-                }
-                gasSinceFullTank = entries[i].getGasFilled();
-            } else {
-                if (entries[i].missingPreviousEntry()) {
-                    mileageEntries[lastFullTankIndex] = new MileageEntry(entries[lastFullTankIndex]);
-                    lastFullTankIndexValid = false;
-                } else {
-                    if (lastFullTankIndexValid) {
-                        gasSinceFullTank += entries[i].getGasFilled();
+                    case MileageChange.DELETE_ENTRY: {
+                        long id = findEntry(db, deviceId, change.getEntryKey());
+                        if (carId != -1 && id != -1) {
+                            deleteEntry(getStatement(DELETE_ENTRY_SQL), carId, id);
+                            executeUpdateDelete(getStatement(DELETE_SYNC_KEY_SQL), id);
+                            changedCars.add(carId);
+                            changedCarNames.add(change.getCarName());
+                        }
+                        break;
                     }
                 }
-                mileageEntries[i] = new MileageEntry(entries[i]);
             }
+            setSyncState(db, REMOTE_SEQUENCE_KEY, Long.toString(remoteSequence));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (carsChanged) {
+            carIds = null;
+            carNamesById = null;
+            carNames = null;
+        }
+        for (long carId : changedCars) {
+            calculators.remove(carId);
+        }
+        if (changes.length != 0) {
+            wrote();
+        }
+        for (String carName : changedCarNames) {
+            invalidationTracker.invalidate(carName);
         }
-        if (lastFullTankIndexValid) {
-            mileageEntries[lastFullTankIndex] = new MileageEntry(entries[lastFullTankIndex]);
+        if (carsChanged) {
+            invalidationTracker.invalidateCars();
         }
+    }
+
+    private static String getSyncState(SQLiteDatabase db, String key) {
+        Cursor c = db.query(SYNC_STATE_TABLE, new String[]{VALUE_COLUMN}, KEY_COLUMN + "=?", new String[]{key}, null, null, null);
+        String value = c.moveToFirst() ? c.getString(0) : null;
+        c.close();
+        return value;
+    }
 
-        return mileageEntries;
+    private static void setSyncState(SQLiteDatabase db, String key, String value) {
+        ContentValues cv = new ContentValues();
+        cv.put(KEY_COLUMN, key);
+        cv.put(VALUE_COLUMN, value);
+        db.insertWithOnConflict(SYNC_STATE_TABLE, null, cv, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Returns the computed mileage history of a car. The history is kept after the first load
+     * and updated incrementally by addEntry, editEntry and deleteEntry.
+     * @param carName The name of the car.
+     * @return The car's MileageEntries sorted by odometer, highest first.
+     */
+    public MileageEntry[] getMileageEntries(String carName) {
+        return getMileageCalculator(carName).getMileageEntries();
+    }
+
+    /**
+     * Returns a copy of the computed mileage history of a car, stored column by column.
+     * @param carName The name of the car.
+     * @return The car's MileageHistory sorted by odometer, highest first.
+     */
+    public MileageHistory getMileageHistory(String carName) {
+        return getMileageCalculator(carName).getMileageHistory();
+    }
+
+    /**
+     * Returns a copy of a car's computed mileage history if it is in memory, without reading the database.
+     * @param carName The name of the car.
+     * @return The car's MileageHistory, or null if it is not cached.
+     */
+    public MileageHistory getCachedMileageHistory(String carName) {
+        long carId = getCarId(carName);
+        MileageCalculator calculator;
+        synchronized (this) {
+            calculator = getCachedCalculator(carId);
+        }
+        return calculator == null ? null : calculator.getMileageHistory();
+    }
+
+    /**
+     * @return The number of lookups, by reads and writes, that found a car's history in memory.
+     */
+    public int getHistoryCacheHits() {
+        return calculators.hitCount();
+    }
+
+    /**
+     * @return The number of lookups, by reads and writes, that did not find a car's history in memory.
+     */
+    public int getHistoryCacheMisses() {
+        return calculators.missCount();
+    }
+
+    /**
+     * @return The number of histories dropped from memory to make room for others, or by invalidateCars.
+     */
+    public int getHistoryCacheEvictions() {
+        return calculators.evictionCount();
+    }
+
+    /**
+     * Returns a car's computed history without adding it to the history cache, for reads over many cars
+     * that would otherwise evict the histories being viewed. Safe to call from several threads at once.
+     * @param carName The name of the car.
+     * @return The car's MileageHistory sorted by odometer, highest first. It is not shared.
+     */
+    MileageHistory loadMileageHistory(String carName) {
+        MileageHistory cached = getCachedMileageHistory(carName);
+        if (cached != null)
+            return cached;
+        long carId = getCarId(carName);
+        MileageHistory history = carId == -1 ? new MileageHistory(0) : getMileageHistory(getDatabase(), carId);
+        history.computeMileage();
+        return history;
+    }
+
+    private MileageCalculator getMileageCalculator(String carName) {
+        long carId = getCarId(carName);
+        long loadedAt;
+        synchronized (this) {
+            MileageCalculator calculator = getCachedCalculator(carId);
+            if (calculator != null)
+                return calculator;
+            loadedAt = writeCount;
+        }
+        // Load outside the lock so writes are not held up by a long history.
+        MileageCalculator calculator = new MileageCalculator(carId == -1 ? new MileageHistory(0) : getMileageHistory(getDatabase(), carId));
+        synchronized (this) {
+            if (carId != -1 && writeCount == loadedAt)
+                cacheCalculator(carId, calculator);
+        }
+        return calculator;
+    }
+
+    private MileageCalculator getCachedCalculator(long carId) {
+        CachedCalculator cached = calculators.get(carId);
+        return cached == null ? null : cached.calculator;
+    }
+
+    /**
+     * Puts a calculator in the history cache, or puts it again after a write so it is weighed by its new size.
+     */
+    private void cacheCalculator(long carId, MileageCalculator calculator) {
+        calculators.put(carId, new CachedCalculator(calculator));
+    }
+
+    /**
+     * A calculator in the history cache with the weight it was put with.
+     * Calculators change size in place, so the cache can not weigh them when they are removed.
+     */
+    private static class CachedCalculator {
+        final MileageCalculator calculator;
+        final int weight;
+
+        CachedCalculator(MileageCalculator calculator) {
+            this.calculator = calculator;
+            weight = calculator.size() + 1;
+        }
+    }
+
+    public static MileageEntry[] getMileageEntries(DatabaseEntry[] entries) {
+        return new MileageCalculator(entries).getMileageEntries();
+    }
+
+    /**
+     * Receives the outcome of a write submitted with submitWrite, on the main thread.
+     */
+    public static interface WriteCallback<T> {
+        public void onWriteComplete(T result);
+
+        public void onWriteFailed(Throwable error);
+    }
+
+    /**
+     * Receives progress from addEntries.
+     */
+    public static interface ImportProgressListener {
+        /**
+         * @param rowsImported The number of rows committed so far.
+         * @param rowsPerSecond The average import rate since the import started.
+         */
+        public void onProgress(int rowsImported, float rowsPerSecond);
     }
 
     public static class DatabaseEntry extends UserEntry {
 
         private final long id;
 
-        DatabaseEntry(long id, float odometer, float gallons_filled, boolean fullTank, boolean noPreviousEntry, long time) {
-            super(odometer, gallons_filled, fullTank, noPreviousEntry, time);
+        DatabaseEntry(long id, int odometer, int gasFilled, boolean fullTank, boolean noPreviousEntry, long time) {
+            super(odometer, gasFilled, fullTank, noPreviousEntry, time);
             this.id = id;
         }
 
@@ -262,27 +1406,61 @@ public class MileageDatabase {
         }
     }
 
+    /**
+     * An entry as the user gives it. The odometer is kept in tenths of a mile and the gas in thousandths of a gallon.
+     */
     public static class UserEntry {
 
-        private final float odometer;
-        private final float gasFilled;
+        private final int odometer;
+        private final int gasFilled;
         private final boolean fullTank;
         private final long time;
         private final boolean noPreviousEntry;
 
-        UserEntry(float odometer, float gallons_filled, boolean fullTank, boolean noPreviousEntry, long time) {
+        /**
+         * @param odometer The odometer in tenths of a mile.
+         * @param gasFilled The gas filled in thousandths of a gallon.
+         */
+        UserEntry(int odometer, int gasFilled, boolean fullTank, boolean noPreviousEntry, long time) {
             this.odometer = odometer;
-            this.gasFilled = gallons_filled;
+            this.gasFilled = gasFilled;
             this.fullTank = fullTank;
             this.time = time;
             this.noPreviousEntry = noPreviousEntry;
         }
 
+        /**
+         * Makes an entry from miles and gallons, rounded to the stored precision.
+         */
+        static UserEntry of(float odometer, float gallons_filled, boolean fullTank, boolean noPreviousEntry, long time) {
+            return new UserEntry(toFixed(odometer, ODOMETER_SCALE), toFixed(gallons_filled, GAS_SCALE), fullTank, noPreviousEntry, time);
+        }
+
+        /**
+         * @return The odometer in miles.
+         */
         public float getOdometer() {
-            return odometer;
+            return (float) ((double) odometer / ODOMETER_SCALE);
         }
 
+        /**
+         * @return The gas filled in gallons.
+         */
         public float getGasFilled() {
+            return (float) ((double) gasFilled / GAS_SCALE);
+        }
+
+        /**
+         * @return The odometer in tenths of a mile.
+         */
+        public int getOdometerTenths() {
+            return odometer;
+        }
+
+        /**
+         * @return The gas filled in thousandths of a gallon.
+         */
+        public int getGasMilliGallons() {
             return gasFilled;
         }
 
@@ -298,34 +1476,270 @@ public class MileageDatabase {
             return /*Adventure*/ time;
         }
 
-        public Boolean missingPreviousEntry() {
+        public boolean missingPreviousEntry() {
             return noPreviousEntry;
         }
     }
 
     private static class MileageDatabaseOpenHelper extends SQLiteOpenHelper {
-        static final int DATABASE_VERSION = 1;
+        static final int DATABASE_VERSION = 6;
         static final String DATABASE_NAME = "Mileage Database.db";
 
         public MileageDatabaseOpenHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
         }
 
+        /**
+         * Creates the cars and entries tables.
+         * Entries of every car live in one table and are found through the (car_id, odometer DESC) index,
+         * so the schema stays the same size no matter how many cars there are.
+         */
+        private static void createSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CARS_TABLE + "(" + ID_COLUMN + " INTEGER PRIMARY KEY, " + NAME_COLUMN + " TEXT NOT NULL UNIQUE);");
+            createEntriesTable(db, ENTRIES_TABLE);
+            db.execSQL("CREATE INDEX " + ENTRIES_CAR_ODOMETER_INDEX + " ON " + ENTRIES_TABLE + "(" + CAR_ID_COLUMN + ", " + ODOMETER_COLUMN + " DESC);");
+        }
+
+        /**
+         * Odometers are stored in tenths of a mile and gas in thousandths of a gallon, so sums and comparisons are exact.
+         * Ids are never reused, as the sync keys of entries are made from them and must never name a different entry.
+         */
+        private static void createEntriesTable(SQLiteDatabase db, String table) {
+            db.execSQL("CREATE TABLE " + table + "(" + ID_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " + CAR_ID_COLUMN + " INTEGER NOT NULL, " + ODOMETER_COLUMN + " INTEGER, " + GAS_FILLED_COLUMN + " INTEGER, " + FULL_TANK_COLUMN + " INTEGER, " + MISSING_PREVIOUS_ENTRY_COLUMN + " INTEGER, " + TIME_COLUMN + " INTEGER);");
+        }
+
+        /**
+         * Moves every version 1 per car table into the cars and entries tables.
+         * The car tables are renamed out of the way first, as a car may be named after one of the new tables.
+         * SQLiteOpenHelper runs onUpgrade inside a transaction so the whole copy commits or rolls back at once.
+         */
+        private static void migrateCarTables(SQLiteDatabase db) {
+            Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table' AND name NOT IN ('android_metadata', 'sqlite_sequence')", null);
+            String[] carNames = new String[c.getCount()];
+            HashSet<String> tables = new HashSet<String>();
+            int i = 0;
+            while (c.moveToNext()) {
+                carNames[i] = c.getString(0);
+                tables.add(carNames[i++]);
+            }
+            c.close();
+
+            String[] carTables = new String[carNames.length];
+            for (i = 0; i < carNames.length; i++) {
+                String carTable = "v1_car_" + i;
+                while (tables.contains(carTable)) {
+                    carTable += "_";
+                }
+                tables.add(carTable);
+                carTables[i] = carTable;
+                db.execSQL("ALTER TABLE " + quoteIdentifier(carNames[i]) + " RENAME TO " + quoteIdentifier(carTable) + ";");
+            }
+
+            createSchema(db);
+            for (i = 0; i < carNames.length; i++) {
+                long carId = insertCar(db, carNames[i]);
+                String quoted = quoteIdentifier(carTables[i]);
+                db.execSQL("INSERT INTO " + ENTRIES_TABLE + "(" + CAR_ID_COLUMN + ", " + ODOMETER_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ")"
+                        + " SELECT " + carId + ", " + ODOMETER_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN
+                        + " FROM " + quoted + " ORDER BY rowid;");
+                db.execSQL("DROP TABLE " + quoted + ";");
+            }
+        }
+
+        /**
+         * Replaces the odometer index with covering indexes for history order and for time ranges,
+         * so loads, pages and ranges are read from an index without touching the table or sorting.
+         * The history index holds _id right after the odometer so ties stay in id order.
+         */
+        private static void createCoveringIndexes(SQLiteDatabase db) {
+            db.execSQL("DROP INDEX IF EXISTS " + ENTRIES_CAR_ODOMETER_INDEX + ";");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ENTRIES_HISTORY_INDEX + " ON " + ENTRIES_TABLE + "(" + CAR_ID_COLUMN + ", "
+                    + ODOMETER_COLUMN + " DESC, " + ID_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", "
+                    + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ");");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + ENTRIES_TIME_INDEX + " ON " + ENTRIES_TABLE + "(" + CAR_ID_COLUMN + ", "
+                    + TIME_COLUMN + ", " + ODOMETER_COLUMN + ", " + ID_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", "
+                    + MISSING_PREVIOUS_ENTRY_COLUMN + ");");
+        }
+
+        /**
+         * Creates the segments table, which holds the distance, gas and mileage of every full tank with a known
+         * mileage, and the per car totals of those segments. Triggers on the entries table recompute the one or
+         * two segments a write touches, the same way MileageHistory does, and triggers on the segments table keep
+         * the totals. Fills both from the existing entries.
+         */
+        private static void createSegmentSchema(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE segments(entry_id INTEGER PRIMARY KEY, car_id INTEGER NOT NULL, odometer INTEGER, distance INTEGER, gas INTEGER, mpg REAL);");
+            db.execSQL("CREATE INDEX segments_car_odometer ON segments(car_id, odometer DESC);");
+            db.execSQL("CREATE TABLE segment_totals(car_id INTEGER PRIMARY KEY, segments INTEGER NOT NULL, distance INTEGER NOT NULL, gas INTEGER NOT NULL);");
+
+            // Each full tank and the full tank that ends its segment, in (odometer DESC, _id) order.
+            db.execSQL("CREATE VIEW segment_ends AS SELECT f._id AS entry_id, f.car_id AS car_id, f.odometer AS odometer,"
+                    + " f.gas_filled AS gas_filled, f.missing_previous_entry AS missing_previous_entry,"
+                    + " (SELECT e._id FROM entries e WHERE e.car_id=f.car_id AND e.full_tank=1 AND e.odometer<=f.odometer"
+                    + " AND (e.odometer<f.odometer OR e._id>f._id) ORDER BY e.odometer DESC, e._id LIMIT 1) AS end_id"
+                    + " FROM entries f WHERE f.full_tank=1;");
+            // Partial fills strictly between a full tank s and the end of its segment e.
+            String between = " FROM entries p WHERE p.car_id=s.car_id AND p.odometer<=s.odometer AND p.odometer>=e.odometer"
+                    + " AND (p.odometer<s.odometer OR p._id>s.entry_id) AND (p.odometer>e.odometer OR p._id<e._id)";
+            db.execSQL("CREATE VIEW computed_segments AS SELECT entry_id, car_id, odometer, distance, gas,"
+                    + " CASE WHEN gas!=0 THEN distance*" + (GAS_SCALE / ODOMETER_SCALE) + ".0/gas ELSE 0 END AS mpg FROM"
+                    + " (SELECT s.entry_id AS entry_id, s.car_id AS car_id, s.odometer AS odometer, s.odometer-e.odometer AS distance,"
+                    + " s.gas_filled+IFNULL((SELECT SUM(p.gas_filled)" + between + "), 0) AS gas,"
+                    + " EXISTS (SELECT 1" + between + " AND p.missing_previous_entry=1) AS broken"
+                    + " FROM segment_ends s JOIN entries e ON e._id=s.end_id WHERE s.missing_previous_entry=0)"
+                    + " WHERE broken=0;");
+
+            db.execSQL("CREATE TRIGGER entries_insert_segments AFTER INSERT ON entries BEGIN "
+                    + refreshSegments("NEW._id, " + fullTankAbove("NEW")) + " END;");
+            db.execSQL("CREATE TRIGGER entries_delete_segments AFTER DELETE ON entries BEGIN "
+                    + refreshSegments("OLD._id, " + fullTankAbove("OLD")) + " END;");
+            db.execSQL("CREATE TRIGGER entries_update_segments AFTER UPDATE ON entries BEGIN "
+                    + refreshSegments("OLD._id, " + fullTankAbove("OLD") + ", NEW._id, " + fullTankAbove("NEW")) + " END;");
+
+            db.execSQL("CREATE TRIGGER segments_insert_totals AFTER INSERT ON segments BEGIN"
+                    + " INSERT OR IGNORE INTO segment_totals(car_id, segments, distance, gas) VALUES (NEW.car_id, 0, 0, 0);"
+                    + " UPDATE segment_totals SET segments=segments+1, distance=distance+NEW.distance, gas=gas+NEW.gas WHERE car_id=NEW.car_id;"
+                    + " END;");
+            db.execSQL("CREATE TRIGGER segments_delete_totals AFTER DELETE ON segments BEGIN"
+                    + " UPDATE segment_totals SET segments=segments-1, distance=distance-OLD.distance, gas=gas-OLD.gas WHERE car_id=OLD.car_id;"
+                    + " END;");
+            db.execSQL("CREATE TRIGGER cars_delete_totals AFTER DELETE ON cars BEGIN"
+                    + " DELETE FROM segment_totals WHERE car_id=OLD._id;"
+                    + " END;");
+
+            db.execSQL("INSERT INTO segments(entry_id, car_id, odometer, distance, gas, mpg)"
+                    + " SELECT entry_id, car_id, odometer, distance, gas, mpg FROM computed_segments;");
+        }
+
+        /**
+         * @param row NEW or OLD in a trigger on the entries table.
+         * @return A query for the closest full tank above row, whose segment row may have joined or left.
+         */
+        private static String fullTankAbove(String row) {
+            return "(SELECT _id FROM entries WHERE car_id=" + row + ".car_id AND full_tank=1 AND odometer>=" + row + ".odometer"
+                    + " AND (odometer>" + row + ".odometer OR _id<" + row + "._id) ORDER BY odometer, _id DESC LIMIT 1)";
+        }
+
+        /**
+         * @param entryIds Ids of full tanks whose segments may have changed.
+         * @return Trigger statements that recompute those segments.
+         */
+        private static String refreshSegments(String entryIds) {
+            return "DELETE FROM segments WHERE entry_id IN (" + entryIds + ");"
+                    + " INSERT INTO segments(entry_id, car_id, odometer, distance, gas, mpg)"
+                    + " SELECT entry_id, car_id, odometer, distance, gas, mpg FROM computed_segments WHERE entry_id IN (" + entryIds + ");";
+        }
+
+        /**
+         * Creates the change log, which records every local write for sync in sequence order, the keys of entries
+         * that came from other devices, and the sync state with a new device id.
+         * Fills the log with the existing cars and entries so the first sync sends them.
+         */
+        private static void createChangeLog(SQLiteDatabase db) {
+            String deviceId = UUID.randomUUID().toString();
+            db.execSQL("CREATE TABLE " + CHANGES_TABLE + "(" + SEQUENCE_COLUMN + " INTEGER PRIMARY KEY AUTOINCREMENT, " + OPERATION_COLUMN + " INTEGER NOT NULL, "
+                    + CAR_NAME_COLUMN + " TEXT NOT NULL, " + ENTRY_KEY_COLUMN + " TEXT, " + ODOMETER_COLUMN + " INTEGER, " + GAS_FILLED_COLUMN + " INTEGER, "
+                    + FULL_TANK_COLUMN + " INTEGER, " + MISSING_PREVIOUS_ENTRY_COLUMN + " INTEGER, " + TIME_COLUMN + " INTEGER);");
+            db.execSQL("CREATE TABLE " + SYNC_KEYS_TABLE + "(" + ENTRY_ID_COLUMN + " INTEGER PRIMARY KEY, " + ENTRY_KEY_COLUMN + " TEXT NOT NULL UNIQUE);");
+            db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE + "(" + KEY_COLUMN + " TEXT PRIMARY KEY, " + VALUE_COLUMN + " TEXT);");
+            setSyncState(db, DEVICE_ID_KEY, deviceId);
+            setSyncState(db, REMOTE_SEQUENCE_KEY, "0");
+
+            db.execSQL("INSERT INTO " + CHANGES_TABLE + "(" + OPERATION_COLUMN + ", " + CAR_NAME_COLUMN + ")"
+                    + " SELECT " + MileageChange.ADD_CAR + ", " + NAME_COLUMN + " FROM " + CARS_TABLE + " ORDER BY " + ID_COLUMN + ";");
+            db.execSQL("INSERT INTO " + CHANGES_TABLE + "(" + OPERATION_COLUMN + ", " + CAR_NAME_COLUMN + ", " + ENTRY_KEY_COLUMN + ", " + ODOMETER_COLUMN + ", "
+                    + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ")"
+                    + " SELECT " + MileageChange.INSERT_ENTRY + ", c." + NAME_COLUMN + ", ? || '/' || e." + ID_COLUMN + ", e." + ODOMETER_COLUMN + ", e." + GAS_FILLED_COLUMN
+                    + ", e." + FULL_TANK_COLUMN + ", e." + MISSING_PREVIOUS_ENTRY_COLUMN + ", e." + TIME_COLUMN
+                    + " FROM " + ENTRIES_TABLE + " e JOIN " + CARS_TABLE + " c ON c." + ID_COLUMN + "=e." + CAR_ID_COLUMN + " ORDER BY e." + ID_COLUMN + ";",
+                    new Object[]{deviceId});
+        }
+
+        /**
+         * Converts the odometer and gas of every entry and logged change from floating point miles and gallons to
+         * fixed point. The entries table is rebuilt so the columns get integer affinity, which means dropping the
+         * segment schema and indexes that depend on it and building them again over the converted values.
+         * The rebuilt table never reuses ids.
+         */
+        private static void migrateToFixedPoint(SQLiteDatabase db) {
+            db.execSQL("DROP TRIGGER IF EXISTS cars_delete_totals;");
+            db.execSQL("DROP VIEW IF EXISTS computed_segments;");
+            db.execSQL("DROP VIEW IF EXISTS segment_ends;");
+            db.execSQL("DROP TABLE IF EXISTS " + SEGMENTS_TABLE + ";");
+            db.execSQL("DROP TABLE IF EXISTS " + SEGMENT_TOTALS_TABLE + ";");
+
+            String odometer = "CAST(ROUND(" + ODOMETER_COLUMN + "*" + ODOMETER_SCALE + ") AS INTEGER)";
+            String gas = "CAST(ROUND(" + GAS_FILLED_COLUMN + "*" + GAS_SCALE + ") AS INTEGER)";
+            String fixedTable = ENTRIES_TABLE + "_fixed";
+            createEntriesTable(db, fixedTable);
+            db.execSQL("INSERT INTO " + fixedTable + "(" + ID_COLUMN + ", " + CAR_ID_COLUMN + ", " + ODOMETER_COLUMN + ", " + GAS_FILLED_COLUMN + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN + ")"
+                    + " SELECT " + ID_COLUMN + ", " + CAR_ID_COLUMN + ", " + odometer + ", " + gas + ", " + FULL_TANK_COLUMN + ", " + MISSING_PREVIOUS_ENTRY_COLUMN + ", " + TIME_COLUMN
+                    + " FROM " + ENTRIES_TABLE + " ORDER BY " + ID_COLUMN + ";");
+            // Also drops the indexes and triggers on the old table.
+            db.execSQL("DROP TABLE " + ENTRIES_TABLE + ";");
+            db.execSQL("ALTER TABLE " + fixedTable + " RENAME TO " + ENTRIES_TABLE + ";");
+            // The old table reused ids, so start after the highest id this device has given out a key for.
+            db.execSQL("DELETE FROM sqlite_sequence WHERE name='" + ENTRIES_TABLE + "';");
+            db.execSQL("INSERT INTO sqlite_sequence(name, seq) SELECT '" + ENTRIES_TABLE + "', MAX("
+                    + "IFNULL((SELECT MAX(" + ID_COLUMN + ") FROM " + ENTRIES_TABLE + "), 0), "
+                    + "IFNULL((SELECT MAX(CAST(substr(c." + ENTRY_KEY_COLUMN + ", length(s." + VALUE_COLUMN + ") + 2) AS INTEGER))"
+                    + " FROM " + CHANGES_TABLE + " c, " + SYNC_STATE_TABLE + " s WHERE s." + KEY_COLUMN + "='" + DEVICE_ID_KEY + "'"
+                    + " AND substr(c." + ENTRY_KEY_COLUMN + ", 1, length(s." + VALUE_COLUMN + ") + 1)=s." + VALUE_COLUMN + " || '/'), 0));");
+            createSegmentSchema(db);
+            createCoveringIndexes(db);
+
+            db.execSQL("UPDATE " + CHANGES_TABLE + " SET " + ODOMETER_COLUMN + "=" + odometer + ", " + GAS_FILLED_COLUMN + "=" + gas
+                    + " WHERE " + ODOMETER_COLUMN + " IS NOT NULL;");
+        }
+
+        private static String quoteIdentifier(String identifier) {
+            return "\"" + identifier.replace("\"", "\"\"") + "\"";
+        }
+
         @Override
         public void onCreate(SQLiteDatabase sqLiteDatabase) {
-            //sqLiteDatabase.execSQL("CREATE TABLE Testing(test TEXT)");
+            createSchema(sqLiteDatabase);
+            createSegmentSchema(sqLiteDatabase);
+            createCoveringIndexes(sqLiteDatabase);
             addCar(sqLiteDatabase, "Test Car 1");
             addCar(sqLiteDatabase, "Test Car 2");
             addCar(sqLiteDatabase, "Test Car 3");
             addCar(sqLiteDatabase, "Test Car 4");
-            addEntry(sqLiteDatabase, "Test Car 2", new UserEntry(10, 4, true, true, System.currentTimeMillis()));
-            addEntry(sqLiteDatabase, "Test Car 2", new UserEntry(35, 3, true, false, System.currentTimeMillis()));
-            addEntry(sqLiteDatabase, "Test Car 2", new UserEntry(40, 1, false, false, System.currentTimeMillis()));
-            addEntry(sqLiteDatabase, "Test Car 2", new UserEntry(50,3,true, false, System.currentTimeMillis()));
+            addEntry(sqLiteDatabase, "Test Car 2", UserEntry.of(10, 4, true, true, System.currentTimeMillis()));
+            addEntry(sqLiteDatabase, "Test Car 2", UserEntry.of(35, 3, true, false, System.currentTimeMillis()));
+            addEntry(sqLiteDatabase, "Test Car 2", UserEntry.of(40, 1, false, false, System.currentTimeMillis()));
+            addEntry(sqLiteDatabase, "Test Car 2", UserEntry.of(50,3,true, false, System.currentTimeMillis()));
+            createChangeLog(sqLiteDatabase);
         }
 
+        /**
+         * Enables write ahead logging so background reads do not block writes on the shared connection.
+         */
         @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int i, int i2) {
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if (oldVersion < 2) {
+                migrateCarTables(sqLiteDatabase);
+            }
+            if (oldVersion < 3) {
+                createSegmentSchema(sqLiteDatabase);
+            }
+            if (oldVersion < 4) {
+                createCoveringIndexes(sqLiteDatabase);
+            }
+            if (oldVersion < 5) {
+                createChangeLog(sqLiteDatabase);
+            }
+            if (oldVersion < 6) {
+                migrateToFixedPoint(sqLiteDatabase);
+            }
         }
     }
 
@@ -333,6 +1747,8 @@ public class MileageDatabase {
 
         private final float mileage;
         private final boolean unknownMileage;
+        private final boolean suspectMileage;
+        private final boolean suspectOdometer;
 
         @Deprecated
         public DatabaseEntry getEntry() {
@@ -347,16 +1763,47 @@ public class MileageDatabase {
             return unknownMileage;
         }
 
+        /**
+         * @return Whether the mileage is far from the car's usual, which often means a mistyped odometer or a missed fill up.
+         */
+        public boolean hasSuspectMileage() {
+            return suspectMileage;
+        }
+
+        /**
+         * @return Whether the time is out of order with the odometer, which often means a mistyped odometer.
+         */
+        public boolean hasSuspectOdometer() {
+            return suspectOdometer;
+        }
+
         MileageEntry(DatabaseEntry databaseEntry, float mileage) {
-            super(databaseEntry.getId(), databaseEntry.getOdometer(), databaseEntry.getGasFilled(), databaseEntry.hasFullTank(), databaseEntry.missingPreviousEntry(), databaseEntry.whatTimeIsIt());
+            super(databaseEntry.getId(), databaseEntry.getOdometerTenths(), databaseEntry.getGasMilliGallons(), databaseEntry.hasFullTank(), databaseEntry.missingPreviousEntry(), databaseEntry.whatTimeIsIt());
             this.mileage = mileage;
             unknownMileage = false;
+            suspectMileage = false;
+            suspectOdometer = false;
         }
 
         MileageEntry(DatabaseEntry databaseEntry) {
-            super(databaseEntry.getId(), databaseEntry.getOdometer(), databaseEntry.getGasFilled(), databaseEntry.hasFullTank(), databaseEntry.missingPreviousEntry(), databaseEntry.whatTimeIsIt());
+            super(databaseEntry.getId(), databaseEntry.getOdometerTenths(), databaseEntry.getGasMilliGallons(), databaseEntry.hasFullTank(), databaseEntry.missingPreviousEntry(), databaseEntry.whatTimeIsIt());
             this.mileage = 0;
             unknownMileage = true;
+            suspectMileage = false;
+            suspectOdometer = false;
+        }
+
+        MileageEntry(long id, int odometer, int gasFilled, boolean fullTank, boolean noPreviousEntry, long time, float mileage, boolean unknownMileage) {
+            this(id, odometer, gasFilled, fullTank, noPreviousEntry, time, mileage, unknownMileage, false, false);
+        }
+
+        MileageEntry(long id, int odometer, int gasFilled, boolean fullTank, boolean noPreviousEntry, long time, float mileage, boolean unknownMileage,
+                     boolean suspectMileage, boolean suspectOdometer) {
+            super(id, odometer, gasFilled, fullTank, noPreviousEntry, time);
+            this.mileage = mileage;
+            this.unknownMileage = unknownMileage;
+            this.suspectMileage = suspectMileage;
+            this.suspectOdometer = suspectOdometer;
         }
     }
 }
@@ -9,6 +9,7 @@ import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import java.util.ArrayList;
 import java.util.Locale;
 
 import michael_monaghan.mpgtracker.R;
@@ -17,16 +18,27 @@ import michael_monaghan.mpgtracker.R;
  * Created by Michael on 8/15/2014.
  * Forms an interface to an array of MileageEntries
  */
-public class MileageEntriesAdapter extends BaseAdapter {
+public class MileageEntriesAdapter extends BaseAdapter implements MileagePager.PageListener {
+
+    private static final Metrics.Timer bindTimer = Metrics.timer("ui.bind", 16);
 
     private final Context context;
     private final LayoutInflater layoutInflater;
-    private MileageDatabase.MileageEntry[] mileageEntries;
+    private MileageHistory mileageHistory = new MileageHistory(0);
+    private MileagePager mileagePager;
     private boolean empty = true;
 
+    // Writes shown before the database has confirmed them, oldest first, and the history as last confirmed.
+    private final ArrayList<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+    private MileageHistory confirmedHistory;
+    // Pending entries get negative ids so they never match an entry in the database.
+    private long nextPendingId = -2;
+
     // Locale info
     final Locale locale = Locale.getDefault();
+    final DecimalFormatter formatter = new DecimalFormatter(locale);
     final String odometerUnits, gasUnits, mpgUnits, unknownMileage;
+    final String anomalyMileage, anomalyOrder, anomalyMileageAndOrder;
 
     public MileageEntriesAdapter(Context context) {
         this.context = context;
@@ -35,28 +47,204 @@ public class MileageEntriesAdapter extends BaseAdapter {
         gasUnits = context.getString(R.string.gas_units);
         mpgUnits = context.getString(R.string.mpg_units);
         unknownMileage = context.getString(R.string.unknown_mileage);
+        anomalyMileage = context.getString(R.string.anomaly_mileage);
+        anomalyOrder = context.getString(R.string.anomaly_order);
+        anomalyMileageAndOrder = context.getString(R.string.anomaly_mileage_and_order);
+    }
+
+    /**
+     * Sets the history to be displayed. The adapter takes ownership of it.
+     * @param history History to be displayed.
+     */
+    public void setMileageHistory(MileageHistory history) {
+        closePager();
+        clearPendingWrites();
+        mileageHistory = history != null ? history : new MileageHistory(0);
+        empty = mileageHistory.size() == 0;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Displays a history page by page as it is scrolled. The adapter takes ownership of the pager.
+     * @param pager Pager over the history to be displayed.
+     */
+    public void setMileagePager(MileagePager pager) {
+        closePager();
+        clearPendingWrites();
+        mileagePager = pager;
+        mileageHistory = null;
+        pager.setPageListener(this);
+        onPageLoaded();
+    }
+
+    /**
+     * @return Whether the adapter is paging through a history instead of holding all of it.
+     */
+    public boolean isPaged() {
+        return mileagePager != null;
+    }
+
+    /**
+     * @return The pager shown, or null if the adapter holds a whole history.
+     */
+    public MileagePager getMileagePager() {
+        return mileagePager;
+    }
+
+    private void closePager() {
+        if (mileagePager != null) {
+            mileagePager.close();
+            mileagePager = null;
+        }
+    }
+
+    @Override
+    public void onPageLoaded() {
+        empty = mileagePager.isComplete() && mileagePager.size() == 0;
+        notifyDataSetChanged();
     }
 
     /**
-     * Sets the entries to be displayed.
-     * @param entries Entries to be displayed.
+     * Applies the changes of one insert, edit or delete to the displayed entries.
+     * @param diff The changes returned by MileageDatabase.
      */
-    public void setMileageEntries(MileageDatabase.MileageEntry[] entries) {
-        if (entries == null || entries.length == 0) {
-            empty = true;
+    public void applyDiff(MileageCalculator.Diff diff) {
+        if (isPaged())
+            throw new IllegalStateException("Diffs can not be applied to a paged history.");
+        if (confirmedHistory == null) {
+            applyDiff(mileageHistory, diff);
         } else {
-            mileageEntries = entries;
-            empty = false;
+            applyDiff(confirmedHistory, diff);
+            replayPendingWrites();
+        }
+        empty = mileageHistory.size() == 0;
+        notifyDataSetChanged();
+    }
+
+    private static void applyDiff(MileageHistory history, MileageCalculator.Diff diff) {
+        if (diff.getRemovedPosition() != -1) {
+            history.remove(diff.getRemovedPosition());
+        }
+        if (diff.getInsertedPosition() != -1) {
+            history.insert(diff.getInsertedPosition(), diff.getInsertedEntry());
+        }
+        for (int i = 0; i < diff.getChangedCount(); i++) {
+            history.set(diff.getChangedPosition(i), diff.getChangedEntry(i));
         }
+    }
+
+    /**
+     * Shows an entry that is still being added to the database.
+     * @param entry The entry being added.
+     * @return The id the entry is shown with until confirmWrite or cancelWrite is called with it,
+     * or -1 if the adapter is paged and can not show it.
+     */
+    public long showPendingInsert(MileageDatabase.UserEntry entry) {
+        if (isPaged())
+            return -1;
+        long id = nextPendingId--;
+        return showPendingWrite(new PendingWrite(id, new MileageDatabase.DatabaseEntry(id, entry.getOdometerTenths(), entry.getGasMilliGallons(),
+                entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt()), null));
+    }
+
+    /**
+     * Hides an entry that is still being deleted from the database.
+     * @param entry The entry being deleted.
+     * @return An id to pass to confirmWrite or cancelWrite, or -1 if the adapter is paged and can not hide it.
+     */
+    public long showPendingDelete(MileageDatabase.DatabaseEntry entry) {
+        if (isPaged())
+            return -1;
+        return showPendingWrite(new PendingWrite(nextPendingId--, null, entry));
+    }
+
+    private long showPendingWrite(PendingWrite write) {
+        if (confirmedHistory == null) {
+            confirmedHistory = mileageHistory.copy();
+        }
+        pendingWrites.add(write);
+        write.applyTo(mileageHistory);
+        empty = mileageHistory.size() == 0;
+        notifyDataSetChanged();
+        return write.id;
+    }
+
+    /**
+     * Replaces the oldest pending write with the changes the database made.
+     * @param id The id returned when the write was shown.
+     * @param diff The changes returned by MileageDatabase.
+     * @return false if the write is no longer shown because the history was replaced, in which case nothing is applied.
+     */
+    public boolean confirmWrite(long id, MileageCalculator.Diff diff) {
+        if (pendingWrites.isEmpty() || pendingWrites.get(0).id != id)
+            return false;
+        pendingWrites.remove(0);
+        applyDiff(confirmedHistory, diff);
+        replayPendingWrites();
+        empty = mileageHistory.size() == 0;
         notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Stops showing a write that failed.
+     * @param id The id returned when the write was shown.
+     */
+    public void cancelWrite(long id) {
+        for (int i = 0; i < pendingWrites.size(); i++) {
+            if (pendingWrites.get(i).id == id) {
+                pendingWrites.remove(i);
+                replayPendingWrites();
+                empty = mileageHistory.size() == 0;
+                notifyDataSetChanged();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the shown history from the confirmed history and the writes still pending.
+     */
+    private void replayPendingWrites() {
+        if (pendingWrites.isEmpty()) {
+            mileageHistory = confirmedHistory;
+            confirmedHistory = null;
+        } else {
+            mileageHistory = confirmedHistory.copy();
+            for (PendingWrite write : pendingWrites) {
+                write.applyTo(mileageHistory);
+            }
+        }
+    }
+
+    private void clearPendingWrites() {
+        pendingWrites.clear();
+        confirmedHistory = null;
+    }
+
+    /**
+     * @return A copy of the first rows shown, at most count, without writes the database has not confirmed.
+     * Empty while the first page of a paged history is loading.
+     */
+    public MileageHistory copyFirstRows(int count) {
+        if (empty) {
+            return new MileageHistory(0);
+        } else if (isPaged()) {
+            MileageHistory page = mileagePager.size() == 0 ? null : mileagePager.getPage(0);
+            return page == null ? new MileageHistory(0) : page.copy(count);
+        } else {
+            return (confirmedHistory != null ? confirmedHistory : mileageHistory).copy(count);
+        }
     }
 
     @Override
     public int getCount() {
         if (empty) {
             return 1;
+        } else if (isPaged()) {
+            return mileagePager.size();
         } else {
-            return mileageEntries.length;
+            return mileageHistory.size();
         }
     }
 
@@ -69,8 +257,11 @@ public class MileageEntriesAdapter extends BaseAdapter {
     public MileageDatabase.MileageEntry getItem(int i) {
         if(empty) {
             return null;
+        } else if (isPaged()) {
+            MileageHistory page = mileagePager.getPage(i);
+            return page == null ? null : page.getEntry(mileagePager.getIndexInPage(i));
         } else {
-            return mileageEntries[i];
+            return mileageHistory.getEntry(i);
         }
     }
 
@@ -78,8 +269,11 @@ public class MileageEntriesAdapter extends BaseAdapter {
     public long getItemId(int i) {
         if (empty) {
             return -1;
+        } else if (isPaged()) {
+            MileageHistory page = mileagePager.getPage(i);
+            return page == null ? -1 : page.getId(mileagePager.getIndexInPage(i));
         } else {
-            return mileageEntries[i].getId();
+            return mileageHistory.getId(i);
         }
     }
 
@@ -105,6 +299,7 @@ public class MileageEntriesAdapter extends BaseAdapter {
                 return view;
             }
         } else {
+            long start = bindTimer.start();
             ViewManager vh;
             if (view == null/* || view.getTag() == null*/) {
                 view = layoutInflater.inflate(R.layout.mileage_entry_list_view_item, viewGroup, false);
@@ -113,7 +308,17 @@ public class MileageEntriesAdapter extends BaseAdapter {
             } else {
                 vh = (ViewManager) view.getTag();
             }
-            vh.setViews(mileageEntries[i]);
+            if (isPaged()) {
+                MileageHistory page = mileagePager.getPage(i);
+                if (page == null) {
+                    vh.setLoading();
+                } else {
+                    vh.setViews(page, mileagePager.getIndexInPage(i));
+                }
+            } else {
+                vh.setViews(mileageHistory, i);
+            }
+            bindTimer.stop(start);
         }
         return view;
     }
@@ -123,44 +328,134 @@ public class MileageEntriesAdapter extends BaseAdapter {
         return empty ? 0 : 1;
     }
 
+    /**
+     * An insert or delete shown before it is written.
+     */
+    private static class PendingWrite {
+        final long id;
+        final MileageDatabase.DatabaseEntry inserted;
+        final MileageDatabase.DatabaseEntry deleted;
+
+        PendingWrite(long id, MileageDatabase.DatabaseEntry inserted, MileageDatabase.DatabaseEntry deleted) {
+            this.id = id;
+            this.inserted = inserted;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Makes the write in history and recomputes the segments it touches, as MileageCalculator does.
+         */
+        void applyTo(MileageHistory history) {
+            int position;
+            if (inserted != null) {
+                position = history.insertionIndex(inserted.getOdometerTenths());
+                history.insert(position, inserted);
+                if (inserted.hasFullTank()) {
+                    history.computeMileage(position);
+                }
+            } else {
+                position = history.indexOf(deleted.getOdometerTenths(), deleted.getId());
+                if (position == -1)
+                    return;
+                history.remove(position);
+            }
+            int above = history.fullTankAbove(position);
+            if (above != -1) {
+                history.computeMileage(above);
+            }
+        }
+    }
+
     private class ViewManager {
         final TextView odometer;
         final TextView gasFilled;
         final ImageView fullTank;
         final TextView mpg;
         final TextView missingEntry;
+        final TextView anomaly;
+        // Each TextView keeps the array it was given, so every view gets its own.
+        final char[] odometerText = new char[DecimalFormatter.MAX_LENGTH + 1 + odometerUnits.length()];
+        final char[] gasFilledText = new char[DecimalFormatter.MAX_LENGTH + 1 + gasUnits.length()];
+        final char[] mpgText = new char[DecimalFormatter.MAX_LENGTH + 1 + mpgUnits.length()];
+        // The row last shown, so rebinding it skips formatting.
+        boolean bound = false;
+        long boundId;
+        int boundOdometer, boundGasFilled;
+        float boundMileage;
+        boolean boundUnknownMileage;
         ViewManager(View view) {
             odometer = (TextView) view.findViewById(R.id.odometer);
             gasFilled = (TextView) view.findViewById(R.id.gas_filled);
             fullTank = (ImageView) view.findViewById(R.id.full_tank);
             mpg = (TextView) view.findViewById(R.id.mpg);
             missingEntry = (TextView) view.findViewById(R.id.missing_entry);
+            anomaly = (TextView) view.findViewById(R.id.anomaly);
         }
-        void setViews(MileageDatabase.MileageEntry entry) {
-            odometer.setText(format(entry.getOdometer()) + " " + odometerUnits);
-            gasFilled.setText(format(entry.getGasFilled()) + " " + gasUnits);
-            if (entry.hasFullTank()) {
+        void setViews(MileageHistory history, int i) {
+            long id = history.getId(i);
+            int odometerValue = history.getOdometerTenths(i);
+            int gasFilledValue = history.getGasMilliGallons(i);
+            float mileageValue = history.getMileage(i);
+            boolean unknown = history.unknownMileage(i);
+            if (!bound || id != boundId || odometerValue != boundOdometer || gasFilledValue != boundGasFilled
+                    || mileageValue != boundMileage || unknown != boundUnknownMileage) {
+                setText(odometer, odometerText, formatter.formatFixed(odometerValue, MileageDatabase.ODOMETER_SCALE, odometerText, 0), odometerUnits);
+                setText(gasFilled, gasFilledText, formatter.formatFixed(gasFilledValue, MileageDatabase.GAS_SCALE, gasFilledText, 0), gasUnits);
+                if (unknown) {
+                    mpg.setText(unknownMileage);
+                } else {
+                    setText(mpg, mpgText, formatter.format(mileageValue, mpgText, 0), mpgUnits);
+                }
+                bound = true;
+                boundId = id;
+                boundOdometer = odometerValue;
+                boundGasFilled = gasFilledValue;
+                boundMileage = mileageValue;
+                boundUnknownMileage = unknown;
+            }
+            if (history.hasFullTank(i)) {
                 fullTank.setVisibility(View.GONE);
             } else {
                 fullTank.setVisibility(View.VISIBLE);
             }
-            if(entry.unknownMileage()){
-                mpg.setText(unknownMileage);
-            } else {
-                mpg.setText(format(entry.getMileage()) + " " + mpgUnits);
-            }
-            if (entry.missingPreviousEntry()) {
+            if (history.missingPreviousEntry(i)) {
                 missingEntry.setVisibility(View.VISIBLE);
             } else {
                 missingEntry.setVisibility(View.GONE);
             }
+            setAnomaly(history.hasSuspectMileage(i), history.hasSuspectOdometer(i));
         }
-        private String format(float number) {
-            if (number == (int) number) {
-                return String.format(locale, "%,d", (int) number);
+        /**
+         * Shows why a row is suspect, or hides the reason if it is not.
+         */
+        private void setAnomaly(boolean suspectMileage, boolean suspectOdometer) {
+            if (suspectMileage || suspectOdometer) {
+                anomaly.setText(suspectMileage && suspectOdometer ? anomalyMileageAndOrder : suspectMileage ? anomalyMileage : anomalyOrder);
+                anomaly.setVisibility(View.VISIBLE);
             } else {
-                return String.format(locale, "%,.1f", number + .05f); // Round up.
+                anomaly.setVisibility(View.GONE);
             }
         }
+        /**
+         * Shows a row whose page is still loading.
+         */
+        void setLoading() {
+            bound = false;
+            odometer.setText(unknownMileage);
+            gasFilled.setText(unknownMileage);
+            fullTank.setVisibility(View.GONE);
+            mpg.setText(unknownMileage);
+            missingEntry.setVisibility(View.GONE);
+            anomaly.setVisibility(View.GONE);
+        }
+
+        /**
+         * Shows the number already formatted at the start of text, followed by units.
+         */
+        private void setText(TextView view, char[] text, int length, String units) {
+            text[length++] = ' ';
+            units.getChars(0, units.length(), text, length);
+            view.setText(text, 0, length + units.length());
+        }
     }
 }
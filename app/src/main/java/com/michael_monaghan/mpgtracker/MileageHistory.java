@@ -0,0 +1,495 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A car's history stored as parallel primitive arrays, sorted by odometer, highest first.
+ * Rows are addressed by index so loading and computing a history does not allocate an object per entry.
+ * Odometers and gas are kept in the database's fixed point units, so segment sums are exact.
+ */
+public class MileageHistory {
+
+    // Flags
+    private static final byte FULL_TANK = 1;
+    private static final byte MISSING_PREVIOUS_ENTRY = 1 << 1;
+    private static final byte KNOWN_MILEAGE = 1 << 2;
+    private static final byte SUSPECT_MILEAGE = 1 << 3;
+    private static final byte SUSPECT_ODOMETER = 1 << 4;
+
+    private static final Metrics.Timer computeTimer = Metrics.timer("mileage.compute");
+
+    private int size = 0;
+    private long[] ids;
+    private int[] odometer;
+    private int[] gas;
+    private byte[] flags;
+    private long[] time;
+    private float[] mpg;
+
+    public MileageHistory(int capacity) {
+        ids = new long[capacity];
+        odometer = new int[capacity];
+        gas = new int[capacity];
+        flags = new byte[capacity];
+        time = new long[capacity];
+        mpg = new float[capacity];
+    }
+
+    /**
+     * Copies entries into a new history.
+     * @param entries Entries sorted by odometer, highest first.
+     * @return A history with mileage not yet computed.
+     */
+    public static MileageHistory of(DatabaseEntry[] entries) {
+        MileageHistory history = new MileageHistory(entries.length);
+        for (DatabaseEntry entry : entries) {
+            history.add(entry.getId(), entry.getOdometerTenths(), entry.getGasMilliGallons(), entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt());
+        }
+        return history;
+    }
+
+    /**
+     * @return A copy that shares no arrays with this history.
+     */
+    public MileageHistory copy() {
+        return copy(size);
+    }
+
+    /**
+     * @return A copy of the first rows, at most count, that shares no arrays with this history.
+     */
+    public MileageHistory copy(int count) {
+        count = Math.min(count, size);
+        MileageHistory copy = new MileageHistory(count);
+        System.arraycopy(ids, 0, copy.ids, 0, count);
+        System.arraycopy(odometer, 0, copy.odometer, 0, count);
+        System.arraycopy(gas, 0, copy.gas, 0, count);
+        System.arraycopy(flags, 0, copy.flags, 0, count);
+        System.arraycopy(time, 0, copy.time, 0, count);
+        System.arraycopy(mpg, 0, copy.mpg, 0, count);
+        copy.size = count;
+        return copy;
+    }
+
+    /**
+     * Writes every row with its computed mileage and flags, to be read back by read.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            out.writeLong(ids[i]);
+            out.writeInt(odometer[i]);
+            out.writeInt(gas[i]);
+            out.writeByte(flags[i]);
+            out.writeLong(time[i]);
+            out.writeFloat(mpg[i]);
+        }
+    }
+
+    /**
+     * @param maxSize The most rows to accept, so a corrupt size does not allocate without bound.
+     * @return A history as written by write, with its mileage already computed.
+     */
+    static MileageHistory read(DataInputStream in, int maxSize) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > maxSize)
+            throw new IOException("Bad history size " + size);
+        MileageHistory history = new MileageHistory(size);
+        for (int i = 0; i < size; i++) {
+            history.ids[i] = in.readLong();
+            history.odometer[i] = in.readInt();
+            history.gas[i] = in.readInt();
+            history.flags[i] = in.readByte();
+            history.time[i] = in.readLong();
+            history.mpg[i] = in.readFloat();
+        }
+        history.size = size;
+        return history;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    public float getOdometer(int index) {
+        return (float) ((double) odometer[index] / MileageDatabase.ODOMETER_SCALE);
+    }
+
+    public float getGasFilled(int index) {
+        return (float) ((double) gas[index] / MileageDatabase.GAS_SCALE);
+    }
+
+    /**
+     * @return The odometer in tenths of a mile.
+     */
+    public int getOdometerTenths(int index) {
+        return odometer[index];
+    }
+
+    /**
+     * @return The gas filled in thousandths of a gallon.
+     */
+    public int getGasMilliGallons(int index) {
+        return gas[index];
+    }
+
+    public boolean hasFullTank(int index) {
+        return (flags[index] & FULL_TANK) != 0;
+    }
+
+    public boolean missingPreviousEntry(int index) {
+        return (flags[index] & MISSING_PREVIOUS_ENTRY) != 0;
+    }
+
+    public long whatTimeIsIt(int index) {
+        return time[index];
+    }
+
+    public float getMileage(int index) {
+        return mpg[index];
+    }
+
+    public boolean unknownMileage(int index) {
+        return (flags[index] & KNOWN_MILEAGE) == 0;
+    }
+
+    /**
+     * @return Whether the row's mileage is far from the car's usual, as flagged by AnomalyDetector.
+     */
+    public boolean hasSuspectMileage(int index) {
+        return (flags[index] & SUSPECT_MILEAGE) != 0;
+    }
+
+    /**
+     * @return Whether the row's time is out of order with its odometer, as flagged by AnomalyDetector.
+     */
+    public boolean hasSuspectOdometer(int index) {
+        return (flags[index] & SUSPECT_ODOMETER) != 0;
+    }
+
+    void setSuspectMileage(int index, boolean suspect) {
+        setFlag(index, SUSPECT_MILEAGE, suspect);
+    }
+
+    void setSuspectOdometer(int index, boolean suspect) {
+        setFlag(index, SUSPECT_ODOMETER, suspect);
+    }
+
+    private void setFlag(int index, byte flag, boolean set) {
+        if (set) {
+            flags[index] |= flag;
+        } else {
+            flags[index] &= ~flag;
+        }
+    }
+
+    /**
+     * @return A MileageEntry copy of the row at index.
+     */
+    public MileageEntry getEntry(int index) {
+        MileageDatabase.entriesAllocated.increment();
+        return new MileageEntry(ids[index], odometer[index], gas[index], hasFullTank(index), missingPreviousEntry(index), time[index], mpg[index], unknownMileage(index),
+                hasSuspectMileage(index), hasSuspectOdometer(index));
+    }
+
+    public MileageEntry[] toMileageEntries() {
+        MileageEntry[] entries = new MileageEntry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = getEntry(i);
+        }
+        return entries;
+    }
+
+    /**
+     * Appends a row. Rows must be appended in descending odometer order.
+     */
+    void add(long id, int odometer, int gas, boolean fullTank, boolean missingPreviousEntry, long time) {
+        ensureCapacity(size + 1);
+        setRow(size++, id, odometer, gas, fullTank, missingPreviousEntry, time);
+    }
+
+    /**
+     * Inserts a row at index, shifting the rows below it down.
+     */
+    void insert(int index, DatabaseEntry entry) {
+        ensureCapacity(size + 1);
+        int moved = size - index;
+        System.arraycopy(ids, index, ids, index + 1, moved);
+        System.arraycopy(odometer, index, odometer, index + 1, moved);
+        System.arraycopy(gas, index, gas, index + 1, moved);
+        System.arraycopy(flags, index, flags, index + 1, moved);
+        System.arraycopy(time, index, time, index + 1, moved);
+        System.arraycopy(mpg, index, mpg, index + 1, moved);
+        size++;
+        set(index, entry);
+    }
+
+    /**
+     * Removes the row at index, shifting the rows below it up.
+     */
+    void remove(int index) {
+        int moved = size - index - 1;
+        System.arraycopy(ids, index + 1, ids, index, moved);
+        System.arraycopy(odometer, index + 1, odometer, index, moved);
+        System.arraycopy(gas, index + 1, gas, index, moved);
+        System.arraycopy(flags, index + 1, flags, index, moved);
+        System.arraycopy(time, index + 1, time, index, moved);
+        System.arraycopy(mpg, index + 1, mpg, index, moved);
+        size--;
+    }
+
+    /**
+     * Drops the rows from size on.
+     */
+    void truncate(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Replaces the row at index. A MileageEntry also replaces the row's mileage and anomaly flags.
+     */
+    void set(int index, DatabaseEntry entry) {
+        setRow(index, entry.getId(), entry.getOdometerTenths(), entry.getGasMilliGallons(), entry.hasFullTank(), entry.missingPreviousEntry(), entry.whatTimeIsIt());
+        if (entry instanceof MileageEntry) {
+            MileageEntry mileageEntry = (MileageEntry) entry;
+            if (!mileageEntry.unknownMileage()) {
+                mpg[index] = mileageEntry.getMileage();
+                flags[index] |= KNOWN_MILEAGE;
+            }
+            setSuspectMileage(index, mileageEntry.hasSuspectMileage());
+            setSuspectOdometer(index, mileageEntry.hasSuspectOdometer());
+        }
+    }
+
+    private void setRow(int index, long id, int odometer, int gas, boolean fullTank, boolean missingPreviousEntry, long time) {
+        ids[index] = id;
+        this.odometer[index] = odometer;
+        this.gas[index] = gas;
+        flags[index] = (byte) ((fullTank ? FULL_TANK : 0) | (missingPreviousEntry ? MISSING_PREVIOUS_ENTRY : 0));
+        this.time[index] = time;
+        mpg[index] = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length)
+            return;
+        int grown = Math.max(capacity, ids.length + (ids.length >> 1) + 1);
+        ids = Arrays.copyOf(ids, grown);
+        odometer = Arrays.copyOf(odometer, grown);
+        gas = Arrays.copyOf(gas, grown);
+        flags = Arrays.copyOf(flags, grown);
+        time = Arrays.copyOf(time, grown);
+        mpg = Arrays.copyOf(mpg, grown);
+    }
+
+    /**
+     * Computes the mileage of every row. Each segment is walked once, so this is linear in the history length.
+     */
+    void computeMileage() {
+        long start = computeTimer.start();
+        for (int i = 0; i < size; i++) {
+            if (hasFullTank(i)) {
+                computeMileage(i);
+            } else {
+                flags[i] &= ~KNOWN_MILEAGE;
+                mpg[i] = 0;
+            }
+        }
+        computeTimer.stop(start);
+    }
+
+    /**
+     * Computes the mileage of the full tank at index from the entries down to the next full tank.
+     */
+    void computeMileage(int index) {
+        flags[index] &= ~KNOWN_MILEAGE;
+        mpg[index] = 0;
+        if (missingPreviousEntry(index))
+            return;
+        long gasSinceFullTank = gas[index];
+        for (int i = index + 1; i < size; i++) {
+            if (hasFullTank(i)) {
+                mpg[index] = mileage(odometer[index] - (long) odometer[i], gasSinceFullTank);
+                flags[index] |= KNOWN_MILEAGE;
+                return;
+            }
+            if (missingPreviousEntry(i))
+                return;
+            gasSinceFullTank += gas[i];
+        }
+    }
+
+    /**
+     * Computes the mileage of a page of a longer history.
+     * @param carried The segment left open by the pages above, or null for the first page.
+     *                It is resolved if this page holds the full tank that ends it.
+     * @param page The index of this page, recorded in the segment it leaves open.
+     * @return The segment of this page's last full tank, or carried if this page has no full tank.
+     */
+    Segment computeMileage(Segment carried, int page) {
+        if (carried != null && carried.isOpen()) {
+            for (int i = 0; i < size; i++) {
+                if (hasFullTank(i)) {
+                    carried.resolve(mileage(carried.odometer - (long) odometer[i], carried.gas), true);
+                    break;
+                }
+                if (missingPreviousEntry(i)) {
+                    carried.resolve(0, false);
+                    break;
+                }
+                carried.gas += gas[i];
+            }
+        }
+        computeMileage();
+
+        int last = size - 1;
+        while (last >= 0 && !hasFullTank(last)) {
+            last--;
+        }
+        if (last == -1)
+            return carried;
+        Segment leaving = new Segment(page, last, odometer[last], gas[last]);
+        if (missingPreviousEntry(last)) {
+            leaving.resolve(0, false);
+        } else {
+            for (int i = last + 1; i < size; i++) {
+                if (missingPreviousEntry(i)) {
+                    leaving.resolve(0, false);
+                    break;
+                }
+                leaving.gas += gas[i];
+            }
+        }
+        return leaving;
+    }
+
+    /**
+     * @param distance The distance in tenths of a mile.
+     * @param gas The gas in thousandths of a gallon.
+     * @return The miles per gallon, or 0 if no gas was filled.
+     */
+    static float mileage(long distance, long gas) {
+        if (gas == 0)
+            return 0;
+        return (float) ((double) distance * MileageDatabase.GAS_SCALE / ((double) gas * MileageDatabase.ODOMETER_SCALE));
+    }
+
+    /**
+     * Sets the mileage of the full tank at index, as resolved from a later page.
+     */
+    void setMileage(int index, Segment segment) {
+        flags[index] &= ~KNOWN_MILEAGE;
+        mpg[index] = 0;
+        if (segment.knownMileage) {
+            mpg[index] = segment.mileage;
+            flags[index] |= KNOWN_MILEAGE;
+        }
+    }
+
+    /**
+     * @return The index of the closest full tank above index, or -1 if there is none.
+     */
+    int fullTankAbove(int index) {
+        for (int i = index - 1; i >= 0; i--) {
+            if (hasFullTank(i))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @param odometer An odometer in tenths of a mile.
+     * @return The index after every row with an odometer of at least odometer.
+     */
+    int insertionIndex(int odometer) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.odometer[mid] >= odometer)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @param odometer An odometer in tenths of a mile.
+     * @param id An entry id.
+     * @return The index where the row (odometer, id) goes in history order, which puts rows with the same odometer
+     *         in id order, as the database does.
+     */
+    int insertionIndex(int odometer, long id) {
+        int low = 0, high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (this.odometer[mid] > odometer || (this.odometer[mid] == odometer && ids[mid] < id))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Finds a row by binary search on its odometer, then among the rows with that odometer.
+     * @param odometer The odometer of the row in tenths of a mile.
+     * @param id The id of the row.
+     * @return The index of the row, or -1 if there is none.
+     */
+    int indexOf(int odometer, long id) {
+        for (int i = insertionIndex(odometer + 1); i < size && this.odometer[i] == odometer; i++) {
+            if (ids[i] == id)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * The state of a full tank's segment while it spans pages of a history.
+     */
+    static class Segment {
+        final int page;
+        final int index;
+        final int odometer;
+        long gas;
+        boolean resolved = false;
+        boolean knownMileage = false;
+        float mileage = 0;
+
+        Segment(int page, int index, int odometer, long gas) {
+            this.page = page;
+            this.index = index;
+            this.odometer = odometer;
+            this.gas = gas;
+        }
+
+        Segment copy() {
+            Segment copy = new Segment(page, index, odometer, gas);
+            copy.resolved = resolved;
+            copy.knownMileage = knownMileage;
+            copy.mileage = mileage;
+            return copy;
+        }
+
+        boolean isOpen() {
+            return !resolved;
+        }
+
+        void resolve(float mileage, boolean known) {
+            this.mileage = mileage;
+            knownMileage = known;
+            resolved = true;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Pages through a car's history a fixed number of entries at a time, so the first rows can be shown
+ * before the rest of the history is read and only a few pages are held in memory.
+ * Pages are loaded in the background and computed on the main thread. A full tank whose segment runs
+ * past the bottom of its page gets its mileage when the page below is computed.
+ */
+public class MileagePager {
+
+    /**
+     * Number of pages kept in memory. Other pages are dropped and reloaded when they are shown again.
+     */
+    private static final int LOADED_PAGES = 4;
+
+    private static final Executor loader = Executors.newSingleThreadExecutor();
+
+    private final MileageDatabase mdb;
+    private final String carName;
+    private final int pageSize;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private PageListener listener;
+
+    private final ArrayList<Page> pages = new ArrayList<Page>();
+    private final ArrayList<Page> loadedPages = new ArrayList<Page>(LOADED_PAGES + 1); // Least recently used first.
+    private final HashSet<Integer> loading = new HashSet<Integer>();
+    private int size = 0;
+    private boolean complete = false;
+    private boolean closed = false;
+    // Incremented by invalidate, so pages loaded before it are dropped. No page is loaded while it reloads.
+    private int generation = 0;
+    private boolean reloading = false;
+
+    public MileagePager(MileageDatabase mdb, String carName, int pageSize) {
+        this.mdb = mdb;
+        this.carName = carName;
+        this.pageSize = pageSize;
+        loadPage(0);
+    }
+
+    public String getCarName() {
+        return carName;
+    }
+
+    public void setPageListener(PageListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Stops delivering pages. Loads already running are ignored when they finish.
+     */
+    public void close() {
+        closed = true;
+        listener = null;
+    }
+
+    /**
+     * Reloads the pages found so far after the history changed. The old pages stay shown until the new ones have
+     * all been read, so the list keeps its place.
+     */
+    public void invalidate() {
+        if (closed)
+            return;
+        final int generation = ++this.generation;
+        final int count = Math.max(pages.size(), 1);
+        reloading = true;
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<MileageHistory> reloaded = new ArrayList<MileageHistory>(count);
+                MileageHistory rows = mdb.getEntriesPage(carName, pageSize);
+                reloaded.add(rows);
+                while (reloaded.size() < count && rows.size() == pageSize) {
+                    int last = rows.size() - 1;
+                    rows = mdb.getEntriesPage(carName, rows.getOdometerTenths(last), rows.getId(last), pageSize);
+                    reloaded.add(rows);
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed || generation != MileagePager.this.generation)
+                            return;
+                        reloading = false;
+                        pages.clear();
+                        loadedPages.clear();
+                        loading.clear();
+                        size = 0;
+                        complete = false;
+                        for (int i = 0; i < reloaded.size(); i++) {
+                            onNewPage(i, reloaded.get(i));
+                        }
+                        if (listener != null) {
+                            listener.onPageLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The number of entries in the pages found so far.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Whether the last page of the history has been found.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Returns the page holding position, loading it if it is not in memory,
+     * and loads the next page when position is within half a page of the end.
+     * @param position A position below size().
+     * @return The page, or null while it is loading.
+     */
+    public MileageHistory getPage(int position) {
+        int index = position / pageSize;
+        if (!complete && position >= size - pageSize / 2) {
+            loadPage(pages.size());
+        }
+        if (index >= pages.size())
+            return null;
+        Page page = pages.get(index);
+        if (page.rows == null) {
+            loadPage(index);
+            return null;
+        }
+        loadedPages.remove(page);
+        loadedPages.add(page);
+        return page.rows;
+    }
+
+    /**
+     * @return The index of position within its page.
+     */
+    public int getIndexInPage(int position) {
+        return position % pageSize;
+    }
+
+    private void loadPage(final int index) {
+        if (closed || reloading || loading.contains(index) || index > pages.size())
+            return;
+        loading.add(index);
+        final int generation = this.generation;
+        final Page previous = index == 0 ? null : pages.get(index - 1);
+        final Page page = index < pages.size() ? pages.get(index) : null;
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final MileageHistory rows;
+                if (previous == null) {
+                    rows = mdb.getEntriesPage(carName, pageSize);
+                } else {
+                    rows = mdb.getEntriesPage(carName, previous.lastOdometer, previous.lastId, pageSize);
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (closed || generation != MileagePager.this.generation)
+                            return;
+                        loading.remove(index);
+                        if (page == null) {
+                            onNewPage(index, rows);
+                        } else {
+                            onReloadedPage(page, rows);
+                        }
+                        if (listener != null) {
+                            listener.onPageLoaded();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void onNewPage(int index, MileageHistory rows) {
+        if (rows.size() < pageSize) {
+            complete = true;
+        }
+        if (rows.size() == 0)
+            return;
+        Page page = new Page();
+        page.size = rows.size();
+        page.lastOdometer = rows.getOdometerTenths(rows.size() - 1);
+        page.lastId = rows.getId(rows.size() - 1);
+        MileageHistory.Segment carried = index == 0 ? null : pages.get(index - 1).leaving;
+        page.entering = carried == null ? null : carried.copy();
+        page.leaving = rows.computeMileage(carried, index);
+        pages.add(page);
+        size += page.size;
+        if (carried != null && carried.resolved) {
+            // This page ended the segment of a full tank on a page above.
+            Page owner = pages.get(carried.page);
+            if (owner.rows != null) {
+                owner.rows.setMileage(carried.index, carried);
+            }
+        }
+        keep(page, rows);
+    }
+
+    private void onReloadedPage(Page page, MileageHistory rows) {
+        rows.computeMileage(page.entering == null ? null : page.entering.copy(), pages.indexOf(page));
+        if (page.leaving != null && page.leaving.resolved && pages.get(page.leaving.page) == page) {
+            rows.setMileage(page.leaving.index, page.leaving);
+        }
+        keep(page, rows);
+    }
+
+    private void keep(Page page, MileageHistory rows) {
+        page.rows = rows;
+        loadedPages.remove(page);
+        loadedPages.add(page);
+        if (loadedPages.size() > LOADED_PAGES) {
+            loadedPages.remove(0).rows = null;
+        }
+    }
+
+    private static class Page {
+        int size;
+        // Key of the last entry, where the next page starts.
+        int lastOdometer;
+        long lastId;
+        // Segment state when the page was first computed, and the segment it left open.
+        MileageHistory.Segment entering;
+        MileageHistory.Segment leaving;
+        // Null when the page has been dropped from memory.
+        MileageHistory rows;
+    }
+
+    public static interface PageListener {
+        public void onPageLoaded();
+    }
+}
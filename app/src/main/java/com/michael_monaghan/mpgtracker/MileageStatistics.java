@@ -0,0 +1,49 @@
+package com.michael_monaghan.mpgtracker;
+
+/**
+ * Totals over a set of full tank segments, such as a car's lifetime or the whole fleet.
+ */
+public class MileageStatistics {
+
+    private final int segmentCount;
+    private final double distance;
+    private final double gasFilled;
+
+    MileageStatistics(int segmentCount, double distance, double gasFilled) {
+        this.segmentCount = segmentCount;
+        this.distance = distance;
+        this.gasFilled = gasFilled;
+    }
+
+    /**
+     * @return The number of full tank segments with a known mileage.
+     */
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * @return The distance driven over the segments.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return The gas filled over the segments.
+     */
+    public double getGasFilled() {
+        return gasFilled;
+    }
+
+    /**
+     * @return The distance over the gas of all the segments, which weights each segment by its gas.
+     */
+    public double getMileage() {
+        return gasFilled != 0 ? distance / gasFilled : 0;
+    }
+
+    public boolean unknownMileage() {
+        return segmentCount == 0;
+    }
+}
@@ -0,0 +1,678 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.database.Cursor;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.ImportProgressListener;
+import com.michael_monaghan.mpgtracker.MileageDatabase.UserEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Exports and imports entries as CSV or as fixed width binary records. Files are streamed, so any length
+ * is handled in constant memory: exports write cursor rows through one buffer to a FileChannel, and imports
+ * parse a memory mapped window of the file straight into MileageDatabase.addEntries.
+ */
+public class MileageTransfer {
+
+    public static enum Format {
+        /**
+         * One row per entry: car,odometer,gas_filled,full_tank,missing_previous_entry,time
+         */
+        CSV,
+        /**
+         * A header naming the cars, then one BINARY_RECORD_SIZE record per entry.
+         */
+        BINARY
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String CSV_HEADER = "car,odometer,gas_filled,full_tank,missing_previous_entry,time\n";
+    // Longest CSV row that can be imported, so a row is never split by the end of a mapped window.
+    private static final int MAX_ROW_LENGTH = 4096;
+
+    private static final int BINARY_MAGIC = 0x4D504754; // MPGT
+    private static final int BINARY_VERSION = 1;
+    // Car index, odometer, gas filled, flags and time.
+    private static final int BINARY_RECORD_SIZE = 4 + 4 + 4 + 1 + 8;
+    private static final byte FULL_TANK = 1;
+    private static final byte MISSING_PREVIOUS_ENTRY = 1 << 1;
+    // Most cars a binary file may list. The limit on a car name is MAX_ROW_LENGTH, as in CSV.
+    private static final int MAX_BINARY_CARS = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Bytes of a file mapped at a time while importing.
+    private static final int MAP_SIZE = 16 * 1024 * 1024;
+    // Rows written between progress reports while exporting.
+    private static final int PROGRESS_INTERVAL = MileageDatabase.DEFAULT_BATCH_SIZE;
+
+    // Decimal places of the database's fixed point odometer and gas.
+    private static final int ODOMETER_DECIMALS = 1;
+    private static final int GAS_DECIMALS = 3;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L};
+    // Most digits parseFixed accumulates, so the value still fits a long once scaled.
+    private static final int MAX_FIXED_DIGITS = 15;
+
+    private MileageTransfer() {
+    }
+
+    /**
+     * Writes the entries of a car, or of every car, to a file.
+     * @param mdb The database to export from.
+     * @param carName The name of the car, or null for every car.
+     * @param file The file to write. It is replaced if it exists.
+     * @param format The format to write.
+     * @param listener Notified with the rows written so far and the rate, may be null.
+     * @return The number of entries written.
+     */
+    public static int exportEntries(MileageDatabase mdb, String carName, File file, Format format, ImportProgressListener listener) throws IOException {
+        String[] carNames = carName == null ? mdb.getCarNames() : new String[]{carName};
+        Cursor c = mdb.queryEntries(carName);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            int rows;
+            if (format == Format.CSV) {
+                rows = writeCsv(mdb, c, channel, buffer, listener);
+            } else {
+                rows = writeBinary(mdb, carNames, c, channel, buffer, listener);
+            }
+            flush(channel, buffer);
+            return rows;
+        } finally {
+            c.close();
+            out.close();
+        }
+    }
+
+    private static int writeCsv(MileageDatabase mdb, Cursor c, FileChannel channel, ByteBuffer buffer, ImportProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        putAscii(buffer, CSV_HEADER);
+        long carId = -1;
+        byte[] car = null;
+        int rows = 0;
+        while (c.moveToNext()) {
+            if (c.getLong(0) != carId) {
+                carId = c.getLong(0);
+                String carName = mdb.getCarName(carId);
+                car = carName == null ? null : quoteCsv(carName).getBytes(UTF_8);
+            }
+            if (car == null)
+                continue; // A car deleted since the query started.
+            ensureRoom(channel, buffer, car.length + 96);
+            buffer.put(car);
+            buffer.put((byte) ',');
+            putFixed(buffer, c.getLong(1), ODOMETER_DECIMALS);
+            buffer.put((byte) ',');
+            putFixed(buffer, c.getLong(2), GAS_DECIMALS);
+            buffer.put((byte) ',');
+            buffer.put((byte) (c.getInt(3) != 0 ? '1' : '0'));
+            buffer.put((byte) ',');
+            buffer.put((byte) (c.getInt(4) != 0 ? '1' : '0'));
+            buffer.put((byte) ',');
+            putLong(buffer, c.getLong(5));
+            buffer.put((byte) '\n');
+            if (++rows % PROGRESS_INTERVAL == 0) {
+                reportProgress(listener, rows, start);
+            }
+        }
+        reportProgress(listener, rows, start);
+        return rows;
+    }
+
+    private static int writeBinary(MileageDatabase mdb, String[] carNames, Cursor c, FileChannel channel, ByteBuffer buffer, ImportProgressListener listener) throws IOException {
+        long start = System.nanoTime();
+        buffer.putInt(BINARY_MAGIC);
+        buffer.putInt(BINARY_VERSION);
+        buffer.putInt(carNames.length);
+        for (String carName : carNames) {
+            byte[] name = carName.getBytes(UTF_8);
+            ensureRoom(channel, buffer, 4 + name.length);
+            buffer.putInt(name.length);
+            buffer.put(name);
+        }
+        long carId = -1;
+        int carIndex = -1;
+        int rows = 0;
+        while (c.moveToNext()) {
+            if (c.getLong(0) != carId) {
+                carId = c.getLong(0);
+                String carName = mdb.getCarName(carId);
+                carIndex = carName == null ? -1 : Arrays.asList(carNames).indexOf(carName);
+            }
+            if (carIndex == -1)
+                continue; // A car added since the header was written, or deleted since the query started.
+            ensureRoom(channel, buffer, BINARY_RECORD_SIZE);
+            buffer.putInt(carIndex);
+            buffer.putInt(c.getInt(1));
+            buffer.putInt(c.getInt(2));
+            buffer.put((byte) ((c.getInt(3) != 0 ? FULL_TANK : 0) | (c.getInt(4) != 0 ? MISSING_PREVIOUS_ENTRY : 0)));
+            buffer.putLong(c.getLong(5));
+            if (++rows % PROGRESS_INTERVAL == 0) {
+                reportProgress(listener, rows, start);
+            }
+        }
+        reportProgress(listener, rows, start);
+        return rows;
+    }
+
+    private static String quoteCsv(String value) {
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 && value.indexOf('\r') == -1)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static void putAscii(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+    }
+
+    private static void putLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                putAscii(buffer, Long.toString(value));
+                return;
+            }
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long divisor = 1;
+        while (value / divisor >= 10) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + value / divisor % 10));
+        }
+    }
+
+    /**
+     * Writes a fixed point value as an exact decimal, without trailing zeros after the point.
+     * @param decimals The number of decimal places in value.
+     */
+    private static void putFixed(ByteBuffer buffer, long value, int decimals) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            value = -value;
+        }
+        long scale = POWERS_OF_TEN[decimals];
+        putLong(buffer, value / scale);
+        long fraction = value % scale;
+        if (fraction == 0)
+            return;
+        buffer.put((byte) '.');
+        for (scale /= 10; fraction != 0; scale /= 10) {
+            buffer.put((byte) ('0' + fraction / scale));
+            fraction %= scale;
+        }
+    }
+
+    private static void ensureRoom(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush(channel, buffer);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void reportProgress(ImportProgressListener listener, int rows, long start) {
+        if (listener != null) {
+            long elapsed = System.nanoTime() - start;
+            listener.onProgress(rows, elapsed == 0 ? 0 : rows * 1e9f / elapsed);
+        }
+    }
+
+    /**
+     * Adds the entries in a file to the database, a batch per transaction.
+     * If the file turns out to be malformed part way, the batches before the bad row are kept.
+     * @param mdb The database to import into.
+     * @param carName The car to add every entry to, or null to add each entry to the car named in the file,
+     *                adding cars that do not exist.
+     * @param file The file to read.
+     * @param format The format of the file.
+     * @param listener Notified with the rows imported so far and the rate, may be null.
+     * @return The number of entries added.
+     */
+    public static int importEntries(MileageDatabase mdb, String carName, File file, Format format, ImportProgressListener listener) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            RowReader reader = format == Format.CSV ? new CsvReader(channel) : new BinaryReader(channel);
+            return importRows(mdb, carName, reader, listener);
+        } catch (ReadException e) {
+            throw e.getCause();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int importRows(MileageDatabase mdb, String carName, RowReader reader, ImportProgressListener listener) throws IOException {
+        Progress progress = new Progress(listener);
+        while (reader.hasRow()) {
+            String car = carName != null ? carName : reader.car;
+            if (carName == null && !mdb.carExists(car)) {
+                mdb.addCar(car);
+            }
+            Run run = new Run(reader, carName != null ? null : reader.car);
+            progress.rows += mdb.addEntries(car, run, MileageDatabase.DEFAULT_BATCH_SIZE, progress);
+            if (run.hasNext())
+                throw new IOException("No car named " + car);
+        }
+        return progress.rows;
+    }
+
+    /**
+     * Reports the progress of a whole import across the cars it adds to.
+     */
+    private static class Progress implements ImportProgressListener {
+        final ImportProgressListener listener;
+        final long start = System.nanoTime();
+        // Rows added to the cars before the current one.
+        int rows = 0;
+
+        Progress(ImportProgressListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void onProgress(int rowsImported, float rowsPerSecond) {
+            reportProgress(listener, rows + rowsImported, start);
+        }
+    }
+
+    /**
+     * Iterates over the rows of a file up to the first row of another car.
+     */
+    private static class Run implements Iterator<UserEntry> {
+        final RowReader reader;
+        final String car;
+
+        /**
+         * @param car The car whose rows to return, or null to return every row.
+         */
+        Run(RowReader reader, String car) {
+            this.reader = reader;
+            this.car = car;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return reader.hasRow() && (car == null || car.equals(reader.car));
+        }
+
+        @Override
+        public UserEntry next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            reader.consumed = true;
+            return new UserEntry(reader.odometer, reader.gasFilled, reader.fullTank, reader.missingPreviousEntry, reader.time);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Carries an IOException through the Iterator that feeds addEntries.
+     */
+    private static class ReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Reads the rows of a file one at a time through a memory mapped window that slides along the file.
+     */
+    private abstract static class RowReader {
+        private final FileChannel channel;
+        private final long length;
+        private MappedByteBuffer window;
+        private long windowStart = 0;
+
+        // The current row. The car name is only replaced when it changes.
+        String car;
+        // In tenths of a mile and thousandths of a gallon.
+        int odometer;
+        int gasFilled;
+        boolean fullTank;
+        boolean missingPreviousEntry;
+        long time;
+        // Whether the current row has been returned, so the next has to be read.
+        boolean consumed = true;
+        private boolean end = false;
+
+        RowReader(FileChannel channel) throws IOException {
+            this.channel = channel;
+            length = channel.size();
+        }
+
+        boolean hasRow() {
+            if (consumed && !end) {
+                try {
+                    end = !read();
+                } catch (IOException e) {
+                    throw new ReadException(e);
+                } catch (BufferUnderflowException e) {
+                    throw new ReadException(new IOException("Truncated row at byte " + position()));
+                }
+                consumed = end;
+            }
+            return !end;
+        }
+
+        /**
+         * Reads the next row into the fields.
+         * @return false at the end of the file.
+         */
+        abstract boolean read() throws IOException;
+
+        /**
+         * Returns the mapped window, moved forward first if fewer than need bytes of it are left
+         * and the file has more.
+         */
+        ByteBuffer window(int need) throws IOException {
+            if (window == null || window.remaining() < need && windowStart + window.limit() < length) {
+                long position = position();
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, length - position));
+                windowStart = position;
+            }
+            return window;
+        }
+
+        long position() {
+            return window == null ? 0 : windowStart + window.position();
+        }
+
+        /**
+         * @return The number of bytes of the file after the position.
+         */
+        long remaining() {
+            return length - position();
+        }
+    }
+
+    private static class CsvReader extends RowReader {
+        private final char[] token = new char[64];
+        private byte[] name = new byte[64];
+        private byte[] carBytes = new byte[0];
+        private boolean header = true;
+
+        CsvReader(FileChannel channel) throws IOException {
+            super(channel);
+        }
+
+        @Override
+        boolean read() throws IOException {
+            ByteBuffer b = window(MAX_ROW_LENGTH);
+            if (header) {
+                header = false;
+                if (b.remaining() > 4 && b.get(b.position()) == 'c' && b.get(b.position() + 1) == 'a' && b.get(b.position() + 2) == 'r'
+                        && b.get(b.position() + 3) == ',') {
+                    while (b.hasRemaining() && b.get() != '\n') {
+                    }
+                    b = window(MAX_ROW_LENGTH);
+                }
+            }
+            while (b.hasRemaining() && (b.get(b.position()) == '\n' || b.get(b.position()) == '\r')) {
+                b.get();
+            }
+            if (!b.hasRemaining())
+                return false;
+
+            readCar(b);
+            expect(b, ',');
+            odometer = readFixed(b, ODOMETER_DECIMALS);
+            expect(b, ',');
+            gasFilled = readFixed(b, GAS_DECIMALS);
+            expect(b, ',');
+            fullTank = readFlag(b);
+            expect(b, ',');
+            missingPreviousEntry = readFlag(b);
+            expect(b, ',');
+            time = readLong(b);
+            if (b.hasRemaining()) {
+                byte end = b.get();
+                if (end == '\r' && b.hasRemaining()) {
+                    end = b.get();
+                }
+                if (end != '\n')
+                    throw malformed(b);
+            }
+            return true;
+        }
+
+        private void readCar(ByteBuffer b) throws IOException {
+            int length = 0;
+            if (b.get(b.position()) == '"') {
+                b.get();
+                while (true) {
+                    byte c = b.get();
+                    if (c == '"') {
+                        if (!b.hasRemaining() || b.get(b.position()) != '"')
+                            break;
+                        b.get();
+                    }
+                    name = put(name, length++, c);
+                }
+            } else {
+                while (b.hasRemaining() && b.get(b.position()) != ',') {
+                    name = put(name, length++, b.get());
+                }
+            }
+            if (car == null || length != carBytes.length || !startsWith(name, carBytes)) {
+                carBytes = Arrays.copyOf(name, length);
+                car = new String(carBytes, UTF_8);
+            }
+        }
+
+        private int readFixed(ByteBuffer b, int decimals) throws IOException {
+            int length = readToken(b);
+            long value = parseFixed(token, length, decimals);
+            if (value == Long.MIN_VALUE) {
+                try {
+                    value = MileageDatabase.toFixed(new String(token, 0, length), (int) POWERS_OF_TEN[decimals]);
+                } catch (NumberFormatException e) {
+                    throw malformed(b);
+                }
+            }
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                throw malformed(b);
+            return (int) value;
+        }
+
+        private boolean readFlag(ByteBuffer b) throws IOException {
+            int length = readToken(b);
+            if (length != 1 || token[0] != '0' && token[0] != '1')
+                throw malformed(b);
+            return token[0] == '1';
+        }
+
+        private long readLong(ByteBuffer b) throws IOException {
+            int length = readToken(b);
+            int i = length > 0 && token[0] == '-' ? 1 : 0;
+            if (i == length)
+                throw malformed(b);
+            long value = 0;
+            for (int j = i; j < length; j++) {
+                if (token[j] < '0' || token[j] > '9')
+                    throw malformed(b);
+                value = value * 10 + (token[j] - '0');
+            }
+            return i == 1 ? -value : value;
+        }
+
+        /**
+         * Reads the chars up to the next separator into token.
+         * @return The number of chars read.
+         */
+        private int readToken(ByteBuffer b) throws IOException {
+            int length = 0;
+            while (b.hasRemaining()) {
+                byte c = b.get(b.position());
+                if (c == ',' || c == '\n' || c == '\r')
+                    break;
+                if (length == token.length)
+                    throw malformed(b);
+                token[length++] = (char) b.get();
+            }
+            return length;
+        }
+
+        private void expect(ByteBuffer b, char c) throws IOException {
+            if (b.get() != c)
+                throw malformed(b);
+        }
+
+        private IOException malformed(ByteBuffer b) {
+            return new IOException("Malformed CSV row near byte " + position());
+        }
+
+        private static byte[] put(byte[] bytes, int index, byte b) {
+            if (index == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[index] = b;
+            return bytes;
+        }
+
+        private static boolean startsWith(byte[] bytes, byte[] prefix) {
+            for (int i = 0; i < prefix.length; i++) {
+                if (bytes[i] != prefix[i])
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parses a plain decimal of at most MAX_FIXED_DIGITS digits straight into fixed point without allocating.
+     * Decimals past the fixed point's are rounded half up.
+     * @param decimals The number of decimal places to keep.
+     * @return The value times ten to the decimals, or Long.MIN_VALUE if it has to be parsed by MileageDatabase.toFixed.
+     */
+    static long parseFixed(char[] chars, int length, int decimals) {
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (chars[0] == '-' || chars[0] == '+')) {
+            negative = chars[0] == '-';
+            i++;
+        }
+        long value = 0;
+        int significantDigits = 0;
+        int places = -1;
+        boolean roundUp = false;
+        boolean digits = false;
+        for (; i < length; i++) {
+            char c = chars[i];
+            if (c == '.' && places == -1) {
+                places = 0;
+                continue;
+            }
+            if (c < '0' || c > '9')
+                return Long.MIN_VALUE;
+            digits = true;
+            if (places == decimals) {
+                // The first dropped decimal decides the rounding.
+                roundUp |= c >= '5';
+                places++;
+                continue;
+            } else if (places > decimals) {
+                continue;
+            } else if (places != -1) {
+                places++;
+            }
+            if (value == 0 && c == '0')
+                continue;
+            if (++significantDigits > MAX_FIXED_DIGITS)
+                return Long.MIN_VALUE;
+            value = value * 10 + (c - '0');
+        }
+        if (!digits)
+            return Long.MIN_VALUE;
+        value *= POWERS_OF_TEN[decimals - Math.min(Math.max(places, 0), decimals)];
+        if (roundUp) {
+            value++;
+        }
+        return negative ? -value : value;
+    }
+
+    private static class BinaryReader extends RowReader {
+        private String[] carNames;
+
+        BinaryReader(FileChannel channel) throws IOException {
+            super(channel);
+        }
+
+        @Override
+        boolean read() throws IOException {
+            ByteBuffer b = window(BINARY_RECORD_SIZE);
+            if (carNames == null) {
+                if (b.getInt() != BINARY_MAGIC)
+                    throw new IOException("Not a binary entries file.");
+                int version = b.getInt();
+                if (version != BINARY_VERSION)
+                    throw new IOException("Unsupported binary entries version " + version);
+                // Each name takes at least its four byte length.
+                carNames = new String[readLength(b, MAX_BINARY_CARS, (remaining() - 4) / 4)];
+                for (int i = 0; i < carNames.length; i++) {
+                    b = window(4);
+                    byte[] name = new byte[readLength(b, MAX_ROW_LENGTH, remaining() - 4)];
+                    window(name.length).get(name);
+                    carNames[i] = new String(name, UTF_8);
+                }
+                b = window(BINARY_RECORD_SIZE);
+            }
+            if (!b.hasRemaining())
+                return false;
+            int carIndex = b.getInt();
+            if (carIndex < 0 || carIndex >= carNames.length)
+                throw new IOException("Bad car index " + carIndex + " near byte " + position());
+            car = carNames[carIndex];
+            odometer = b.getInt();
+            gasFilled = b.getInt();
+            byte flags = b.get();
+            fullTank = (flags & FULL_TANK) != 0;
+            missingPreviousEntry = (flags & MISSING_PREVIOUS_ENTRY) != 0;
+            time = b.getLong();
+            return true;
+        }
+
+        /**
+         * Reads a count or length from the header, which must not be more than max or than what the file has left.
+         */
+        private int readLength(ByteBuffer b, int max, long available) throws IOException {
+            int length = b.getInt();
+            if (length < 0 || length > max || length > available)
+                throw new IOException("Bad length " + length + " near byte " + (position() - 4));
+            return length;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * What the main screen showed when the app was last paused: the car names, the car selected and its first rows.
+ * It is a few kilobytes, so MainActivity reads it on the main thread and draws the first screen from it before
+ * the database is opened, then replaces it with the live data once that loads.
+ */
+public class StartupSnapshot {
+
+    private static final String TAG = "StartupSnapshot";
+
+    static final String FILE_NAME = "startup_snapshot";
+    private static final int MAGIC = 0x4D505353; // MPSS
+    private static final int VERSION = 1;
+
+    /**
+     * The most rows kept of the selected car, about a screenful.
+     */
+    public static final int ROWS = 30;
+
+    private final String[] carNames;
+    private final int carIndex;
+    private final MileageHistory rows;
+
+    /**
+     * @param carNames The names of the cars, in the order they are listed.
+     * @param carIndex The index of the selected car.
+     * @param rows The first rows shown of the selected car. Only the first ROWS are kept.
+     */
+    public StartupSnapshot(String[] carNames, int carIndex, MileageHistory rows) {
+        this.carNames = carNames;
+        this.carIndex = carIndex;
+        this.rows = rows.size() > ROWS ? rows.copy(ROWS) : rows;
+    }
+
+    public String[] getCarNames() {
+        return carNames;
+    }
+
+    public int getCarIndex() {
+        return carIndex;
+    }
+
+    public String getCarName() {
+        return carNames[carIndex];
+    }
+
+    /**
+     * @return The first rows of the selected car, with their mileage computed.
+     */
+    public MileageHistory getRows() {
+        return rows;
+    }
+
+    static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the snapshot written last.
+     * @return The snapshot, or null if there is none or it can not be read.
+     */
+    public static StartupSnapshot read(Context context) {
+        File file = getFile(context);
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            int cars = in.readInt();
+            if (cars <= 0)
+                return null;
+            // Grown as names are read rather than sized by the count, so a damaged count runs out of file, not memory.
+            ArrayList<String> carNames = new ArrayList<String>();
+            for (int i = 0; i < cars; i++) {
+                carNames.add(in.readUTF());
+            }
+            int carIndex = in.readInt();
+            if (carIndex < 0 || carIndex >= cars)
+                return null;
+            return new StartupSnapshot(carNames.toArray(new String[cars]), carIndex, MileageHistory.read(in, ROWS));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the startup snapshot", e);
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing was written.
+            }
+        }
+    }
+
+    /**
+     * Replaces the snapshot file. Written to a temporary file first, so a snapshot is never read half written.
+     * Call it off the main thread.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(carNames.length);
+            for (String carName : carNames) {
+                out.writeUTF(carName);
+            }
+            out.writeInt(carIndex);
+            rows.write(out);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file))
+            throw new IOException("Could not replace " + file);
+    }
+}
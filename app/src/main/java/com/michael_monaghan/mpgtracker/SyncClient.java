@@ -0,0 +1,192 @@
+package com.michael_monaghan.mpgtracker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Syncs a MileageDatabase with a fleet server by exchanging deltas: each exchange sends a batch of the oldest
+ * unacknowledged local changes and receives a batch of the changes other devices made since the last one applied.
+ * Messages are gzipped, so the cost of a sync depends on the number of changes and not on the size of the database.
+ * Local changes are dropped from the change log once the server acknowledges them, and remote changes are
+ * applied in one transaction per batch along with the server sequence they reach, so an interrupted sync resumes
+ * where it stopped.
+ */
+public class SyncClient {
+
+    static final int MAGIC = 0x4D504753; // MPGS
+    static final int VERSION = 1;
+
+    /**
+     * The most changes sent or received per exchange.
+     */
+    public static final int BATCH_SIZE = 500;
+
+    private final MileageDatabase mdb;
+    private final Transport transport;
+
+    public SyncClient(MileageDatabase mdb, Transport transport) {
+        this.mdb = mdb;
+        this.transport = transport;
+    }
+
+    /**
+     * Exchanges batches until neither side has changes left. Blocks, so call it off the main thread.
+     * @return The number of changes sent and received.
+     */
+    public Result sync() throws IOException {
+        String deviceId = mdb.getDeviceId();
+        int sent = 0, received = 0;
+        boolean more;
+        do {
+            MileageChange[] local = mdb.getChanges(BATCH_SIZE);
+            Response response = readResponse(transport.exchange(writeRequest(deviceId, mdb.getRemoteSequence(), local)));
+            if (local.length != 0) {
+                mdb.acknowledgeChanges(response.acknowledged);
+            }
+            mdb.applyRemoteChanges(response.changes, response.remoteSequence);
+            sent += local.length;
+            received += response.changes.length;
+            more = local.length == BATCH_SIZE || response.more;
+        } while (more);
+        return new Result(sent, received);
+    }
+
+    /**
+     * Request: magic, version, device id, the server sequence of the last remote change applied, then the local changes.
+     */
+    static byte[] writeRequest(String deviceId, long remoteSequence, MileageChange[] changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(deviceId);
+        out.writeLong(remoteSequence);
+        writeChanges(out, changes);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Request readRequest(byte[] message) throws IOException {
+        DataInputStream in = open(message);
+        try {
+            String deviceId = in.readUTF();
+            long remoteSequence = in.readLong();
+            return new Request(deviceId, remoteSequence, readChanges(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Response: magic, version, the last local sequence stored, the server sequence reached, whether the server has
+     * more changes, then the remote changes.
+     */
+    static byte[] writeResponse(long acknowledged, long remoteSequence, boolean more, MileageChange[] changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(acknowledged);
+        out.writeLong(remoteSequence);
+        out.writeBoolean(more);
+        writeChanges(out, changes);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Response readResponse(byte[] message) throws IOException {
+        DataInputStream in = open(message);
+        try {
+            long acknowledged = in.readLong();
+            long remoteSequence = in.readLong();
+            boolean more = in.readBoolean();
+            return new Response(acknowledged, remoteSequence, more, readChanges(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataInputStream open(byte[] message) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new ByteArrayInputStream(message)));
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a sync message");
+        int version = in.readInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported sync version " + version);
+        return in;
+    }
+
+    private static void writeChanges(DataOutputStream out, MileageChange[] changes) throws IOException {
+        out.writeInt(changes.length);
+        for (MileageChange change : changes) {
+            change.write(out);
+        }
+    }
+
+    private static MileageChange[] readChanges(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > BATCH_SIZE)
+            throw new IOException("Bad change count " + count);
+        MileageChange[] changes = new MileageChange[count];
+        for (int i = 0; i < count; i++) {
+            changes[i] = MileageChange.read(in);
+        }
+        return changes;
+    }
+
+    /**
+     * Carries a request to the server and returns its response.
+     */
+    public static interface Transport {
+        public byte[] exchange(byte[] request) throws IOException;
+    }
+
+    static class Request {
+        final String deviceId;
+        final long remoteSequence;
+        final MileageChange[] changes;
+
+        Request(String deviceId, long remoteSequence, MileageChange[] changes) {
+            this.deviceId = deviceId;
+            this.remoteSequence = remoteSequence;
+            this.changes = changes;
+        }
+    }
+
+    static class Response {
+        final long acknowledged;
+        final long remoteSequence;
+        final boolean more;
+        final MileageChange[] changes;
+
+        Response(long acknowledged, long remoteSequence, boolean more, MileageChange[] changes) {
+            this.acknowledged = acknowledged;
+            this.remoteSequence = remoteSequence;
+            this.more = more;
+            this.changes = changes;
+        }
+    }
+
+    public static class Result {
+        private final int sent;
+        private final int received;
+
+        Result(int sent, int received) {
+            this.sent = sent;
+            this.received = received;
+        }
+
+        public int getSent() {
+            return sent;
+        }
+
+        public int getReceived() {
+            return received;
+        }
+    }
+}
@@ -98,8 +98,8 @@ public class UserEntryViewHandler {
 
     public UserEntry getUserEntry() {
         return new UserEntry(
-                Float.parseFloat(odometer.getText().toString()),
-                Float.parseFloat(gasFilled.getText().toString()),
+                MileageDatabase.toFixed(odometer.getText().toString(), MileageDatabase.ODOMETER_SCALE),
+                MileageDatabase.toFixed(gasFilled.getText().toString(), MileageDatabase.GAS_SCALE),
                 fullTank.isChecked(),
                 missingEntry.isChecked(),
                 System.currentTimeMillis()
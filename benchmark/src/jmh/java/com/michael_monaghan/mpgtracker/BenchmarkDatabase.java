@@ -0,0 +1,48 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * A MileageDatabase in a temporary directory, with one car of random entries.
+ */
+class BenchmarkDatabase {
+
+    static final String CAR = "Benchmark";
+
+    final File directory;
+    final MileageDatabase mdb;
+    final RandomHistory histories;
+
+    /**
+     * @param size The number of entries of the car.
+     */
+    BenchmarkDatabase(int size) throws IOException {
+        directory = Files.createTempDirectory("mpgtracker").toFile();
+        mdb = new MileageDatabase(new Context(directory)).acquireReference();
+        mdb.addCar(CAR);
+        histories = new RandomHistory(size);
+        mdb.addEntries(CAR, histories.userEntries(size));
+    }
+
+    /**
+     * @return The database file, to be opened by other connections.
+     */
+    File getFile() {
+        return new File(directory, "Mileage Database.db");
+    }
+
+    void close() {
+        mdb.releaseReference();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,153 @@
+package com.michael_monaghan.mpgtracker;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.UserEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.michael_monaghan.mpgtracker.BenchmarkDatabase.CAR;
+
+/**
+ * The time to add a fill up, reload the car's history and delete the fill up again, with a connection opened and
+ * closed around each step, as MileageDatabase used to, and with one connection kept open.
+ * Both run the same SQL on the same file; only the connection's lifetime differs.
+ * mileageDatabase is the same round trip through MileageDatabase, whose history is updated in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    private static final String CAR_ID_SQL = "SELECT _id FROM cars WHERE name=?";
+    private static final String INSERT_ENTRY_SQL = "INSERT INTO entries(car_id, odometer, gas_filled, full_tank, missing_previous_entry, time) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_ENTRY_SQL = "DELETE FROM entries WHERE _id=? AND car_id=?";
+    private static final String HISTORY_SQL = "SELECT _id, odometer, gas_filled, full_tank, missing_previous_entry, time FROM entries WHERE car_id=? ORDER BY odometer DESC, _id";
+
+    @Param({"100", "10000"})
+    public int size;
+
+    private BenchmarkDatabase database;
+    private UserEntry newest;
+
+    private SQLiteDatabase shared;
+    private SQLiteStatement sharedInsert;
+    private SQLiteStatement sharedDelete;
+
+    @Setup
+    public void setUp() throws IOException {
+        database = new BenchmarkDatabase(size);
+        newest = database.histories.next();
+        // Keeps the history in memory, as it is for the car being viewed.
+        database.mdb.getMileageHistory(CAR);
+        shared = open();
+        sharedInsert = shared.compileStatement(INSERT_ENTRY_SQL);
+        sharedDelete = shared.compileStatement(DELETE_ENTRY_SQL);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sharedInsert.close();
+        sharedDelete.close();
+        shared.close();
+        database.close();
+    }
+
+    @Benchmark
+    public MileageHistory openPerCall() {
+        SQLiteDatabase db = open();
+        SQLiteStatement insert = db.compileStatement(INSERT_ENTRY_SQL);
+        long id = insert(insert, getCarId(db));
+        insert.close();
+        db.close();
+
+        db = open();
+        MileageHistory history = getMileageHistory(db, getCarId(db));
+        db.close();
+
+        db = open();
+        SQLiteStatement delete = db.compileStatement(DELETE_ENTRY_SQL);
+        delete(delete, getCarId(db), id);
+        delete.close();
+        db.close();
+        return history;
+    }
+
+    @Benchmark
+    public MileageHistory sharedConnection() {
+        long id = insert(sharedInsert, getCarId(shared));
+        MileageHistory history = getMileageHistory(shared, getCarId(shared));
+        delete(sharedDelete, getCarId(shared), id);
+        return history;
+    }
+
+    @Benchmark
+    public MileageHistory mileageDatabase() {
+        MileageCalculator.Diff diff = database.mdb.addEntry(CAR, newest);
+        MileageHistory history = database.mdb.getMileageHistory(CAR);
+        database.mdb.deleteEntry(CAR, diff.getInsertedEntry().getId());
+        return history;
+    }
+
+    /**
+     * Opens the database file as the open helper does, reading the schema version.
+     */
+    private SQLiteDatabase open() {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(database.getFile().getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.getVersion();
+        return db;
+    }
+
+    private static long getCarId(SQLiteDatabase db) {
+        Cursor c = db.rawQuery(CAR_ID_SQL, new String[]{CAR});
+        long id = c.moveToFirst() ? c.getLong(0) : -1;
+        c.close();
+        return id;
+    }
+
+    private long insert(SQLiteStatement insert, long carId) {
+        insert.bindLong(1, carId);
+        insert.bindLong(2, newest.getOdometerTenths());
+        insert.bindLong(3, newest.getGasMilliGallons());
+        insert.bindLong(4, newest.hasFullTank() ? 1 : 0);
+        insert.bindLong(5, newest.missingPreviousEntry() ? 1 : 0);
+        insert.bindLong(6, newest.whatTimeIsIt());
+        return insert.executeInsert();
+    }
+
+    private static void delete(SQLiteStatement delete, long carId, long id) {
+        delete.bindLong(1, id);
+        delete.bindLong(2, carId);
+        delete.executeUpdateDelete();
+    }
+
+    private static MileageHistory getMileageHistory(SQLiteDatabase db, long carId) {
+        Cursor c = db.rawQuery(HISTORY_SQL, new String[]{Long.toString(carId)});
+        MileageHistory history = new MileageHistory(c.getCount());
+        while (c.moveToNext()) {
+            history.add(c.getLong(0), c.getInt(1), c.getInt(2), c.getInt(3) == 1, c.getInt(4) == 1, c.getLong(5));
+        }
+        c.close();
+        history.computeMileage();
+        return history;
+    }
+}
@@ -0,0 +1,115 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.UserEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.michael_monaghan.mpgtracker.BenchmarkDatabase.CAR;
+
+/**
+ * The insert and query paths of MileageDatabase, on SQLite through JDBC, for a car with a given number of entries.
+ * Each fork starts from a new database file.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Car {
+        @Param({"1000", "100000"})
+        public int size;
+
+        BenchmarkDatabase database;
+        DatabaseEntry middle;
+
+        @Setup
+        public void setUp() throws IOException {
+            database = new BenchmarkDatabase(size);
+            middle = database.mdb.getEntries(CAR)[size / 2];
+        }
+
+        @TearDown
+        public void tearDown() {
+            database.close();
+        }
+    }
+
+    /**
+     * A car with its history in memory, as the car being viewed has. Sizes stay within
+     * MileageDatabase.HISTORY_CACHE_SIZE, as larger histories are not kept.
+     */
+    @State(Scope.Benchmark)
+    public static class ViewedCar {
+        @Param({"1000", "10000"})
+        public int size;
+
+        BenchmarkDatabase database;
+        UserEntry newest;
+
+        @Setup
+        public void setUp() throws IOException {
+            database = new BenchmarkDatabase(size);
+            database.mdb.getMileageHistory(CAR);
+            newest = database.histories.next();
+        }
+
+        @TearDown
+        public void tearDown() {
+            database.close();
+        }
+    }
+
+    /**
+     * Adds a fill up at the top of the history and deletes it, so the car stays the same size.
+     * Each write runs the segment triggers and updates the history in memory.
+     */
+    @Benchmark
+    public MileageCalculator.Diff addAndDeleteEntry(ViewedCar car) {
+        MileageCalculator.Diff diff = car.database.mdb.addEntry(CAR, car.newest);
+        return car.database.mdb.deleteEntry(CAR, diff.getInsertedEntry().getId());
+    }
+
+    @Benchmark
+    public DatabaseEntry[] getEntries(Car car) {
+        return car.database.mdb.getEntries(CAR);
+    }
+
+    /**
+     * Reads and computes a history without keeping it, as loading a car that is not in memory does.
+     */
+    @Benchmark
+    public MileageHistory loadMileageHistory(Car car) {
+        return car.database.mdb.loadMileageHistory(CAR);
+    }
+
+    /**
+     * Reads the page after an entry in the middle of the history, as MileagePager does when scrolled there.
+     */
+    @Benchmark
+    public MileageHistory getEntriesPage(Car car) {
+        return car.database.mdb.getEntriesPage(CAR, car.middle.getOdometerTenths(), car.middle.getId(), 50);
+    }
+
+    @Benchmark
+    public MileageStatistics getStatistics(Car car) {
+        return car.database.mdb.getStatistics(CAR);
+    }
+}
@@ -0,0 +1,71 @@
+package com.michael_monaghan.mpgtracker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Formatting the three numbers of a row of the entry list, as MileageEntriesAdapter binds it,
+ * and as it did with String.format before DecimalFormatter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+
+    private static final int ROWS = 1024;
+
+    private final Locale locale = Locale.US;
+    private final DecimalFormatter formatter = new DecimalFormatter(locale);
+    private final char[] buffer = new char[DecimalFormatter.MAX_LENGTH];
+    private MileageHistory history;
+    private int row = 0;
+
+    @Setup
+    public void setUp() {
+        history = MileageHistory.of(new RandomHistory(ROWS).entries(ROWS));
+        history.computeMileage();
+    }
+
+    @Benchmark
+    public int decimalFormatter() {
+        int i = row++ & (ROWS - 1);
+        int length = formatter.formatFixed(history.getOdometerTenths(i), MileageDatabase.ODOMETER_SCALE, buffer, 0);
+        length += formatter.formatFixed(history.getGasMilliGallons(i), MileageDatabase.GAS_SCALE, buffer, 0);
+        length += formatter.format(history.getMileage(i), buffer, 0);
+        return length;
+    }
+
+    @Benchmark
+    public int stringFormat() {
+        int i = row++ & (ROWS - 1);
+        int length = format(history.getOdometer(i)).length();
+        length += format(history.getGasFilled(i)).length();
+        length += format(history.getMileage(i)).length();
+        return length;
+    }
+
+    /**
+     * The entry list's format before DecimalFormatter.
+     */
+    private String format(float number) {
+        if (number == (int) number) {
+            return String.format(locale, "%,d", (int) number);
+        } else {
+            return String.format(locale, "%,.1f", number + .05f);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and computing a car's history from rows as a cursor returns them, with an object per row as
+ * MileageDatabase did before MileageHistory, and into a columnar MileageHistory. Run with -prof gc for the bytes allocated per load.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryAllocationBenchmark {
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    // The rows, highest odometer first, standing in for a cursor.
+    private long[] ids;
+    private int[] odometers;
+    private int[] gas;
+    private boolean[] fullTanks;
+    private boolean[] missingPreviousEntries;
+    private long[] times;
+
+    @Setup
+    public void setUp() {
+        DatabaseEntry[] entries = new RandomHistory(size).entries(size);
+        ids = new long[size];
+        odometers = new int[size];
+        gas = new int[size];
+        fullTanks = new boolean[size];
+        missingPreviousEntries = new boolean[size];
+        times = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = entries[i].getId();
+            odometers[i] = entries[i].getOdometerTenths();
+            gas[i] = entries[i].getGasMilliGallons();
+            fullTanks[i] = entries[i].hasFullTank();
+            missingPreviousEntries[i] = entries[i].missingPreviousEntry();
+            times[i] = entries[i].whatTimeIsIt();
+        }
+    }
+
+    /**
+     * A DatabaseEntry per row, then a MileageEntry per row with its mileage.
+     */
+    @Benchmark
+    public MileageEntry[] objectPerRow() {
+        DatabaseEntry[] entries = new DatabaseEntry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new DatabaseEntry(ids[i], odometers[i], gas[i], fullTanks[i], missingPreviousEntries[i], times[i]);
+        }
+        MileageEntry[] mileageEntries = new MileageEntry[size];
+        for (int i = 0; i < size; i++) {
+            mileageEntries[i] = entries[i].hasFullTank() ? computeMileage(entries, i) : new MileageEntry(entries[i]);
+        }
+        return mileageEntries;
+    }
+
+    @Benchmark
+    public MileageHistory columnar() {
+        MileageHistory history = new MileageHistory(size);
+        for (int i = 0; i < size; i++) {
+            history.add(ids[i], odometers[i], gas[i], fullTanks[i], missingPreviousEntries[i], times[i]);
+        }
+        history.computeMileage();
+        return history;
+    }
+
+    /**
+     * The mileage of the full tank at index, walked down to the next full tank as MileageCalculator used to.
+     */
+    private static MileageEntry computeMileage(DatabaseEntry[] entries, int index) {
+        DatabaseEntry fullTank = entries[index];
+        if (fullTank.missingPreviousEntry())
+            return new MileageEntry(fullTank);
+        float gasSinceFullTank = fullTank.getGasFilled();
+        for (int i = index + 1; i < entries.length; i++) {
+            DatabaseEntry entry = entries[i];
+            if (entry.hasFullTank()) {
+                float mileage = gasSinceFullTank != 0 ? (fullTank.getOdometer() - entry.getOdometer()) / gasSinceFullTank : 0;
+                return new MileageEntry(fullTank, mileage);
+            }
+            if (entry.missingPreviousEntry())
+                break;
+            gasSinceFullTank += entry.getGasFilled();
+        }
+        return new MileageEntry(fullTank);
+    }
+}
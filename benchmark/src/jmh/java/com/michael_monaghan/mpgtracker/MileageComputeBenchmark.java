@@ -0,0 +1,68 @@
+package com.michael_monaghan.mpgtracker;
+
+import com.michael_monaghan.mpgtracker.MileageDatabase.DatabaseEntry;
+import com.michael_monaghan.mpgtracker.MileageDatabase.MileageEntry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Computing a car's mileage from its entries, by history length: a full computation from DatabaseEntries,
+ * the pass over a MileageHistory, and the incremental update after adding a fill up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MileageComputeBenchmark {
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int size;
+
+    private DatabaseEntry[] entries;
+    private MileageHistory history;
+    private MileageCalculator calculator;
+    private DatabaseEntry newest;
+
+    @Setup
+    public void setUp() {
+        RandomHistory histories = new RandomHistory(size);
+        entries = histories.entries(size);
+        history = MileageHistory.of(entries);
+        calculator = new MileageCalculator(entries);
+        newest = RandomHistory.withId(size + 1, histories.next());
+    }
+
+    @Benchmark
+    public MileageEntry[] getMileageEntries() {
+        return MileageDatabase.getMileageEntries(entries);
+    }
+
+    @Benchmark
+    public MileageHistory computeMileage() {
+        history.computeMileage();
+        return history;
+    }
+
+    /**
+     * Adds a fill up at the top of the history and deletes it again, so the history stays the same size.
+     */
+    @Benchmark
+    public MileageCalculator.Diff insertAndDeleteNewest() {
+        calculator.insert(newest);
+        return calculator.delete(newest.getOdometerTenths(), newest.getId());
+    }
+}
@@ -0,0 +1,22 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * Stands in for Android's Context on the JVM, where the only thing MileageDatabase needs of it is where databases live.
+ */
+public class Context {
+
+    private final File databaseDirectory;
+
+    /**
+     * @param databaseDirectory The directory databases are opened in.
+     */
+    public Context(File databaseDirectory) {
+        this.databaseDirectory = databaseDirectory;
+    }
+
+    public File getDatabasePath(String name) {
+        return new File(databaseDirectory, name);
+    }
+}
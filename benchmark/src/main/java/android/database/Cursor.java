@@ -0,0 +1,60 @@
+package android.database;
+
+import java.io.Closeable;
+
+/**
+ * The rows of a query, read by moving a position over them. Starts before the first row.
+ */
+public interface Cursor extends Closeable {
+
+    public int getCount();
+
+    public int getPosition();
+
+    public boolean move(int offset);
+
+    public boolean moveToPosition(int position);
+
+    public boolean moveToFirst();
+
+    public boolean moveToLast();
+
+    public boolean moveToNext();
+
+    public boolean moveToPrevious();
+
+    public boolean isBeforeFirst();
+
+    public boolean isAfterLast();
+
+    public int getColumnCount();
+
+    /**
+     * @return The index of the column, or -1 if there is none.
+     */
+    public int getColumnIndex(String columnName);
+
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException;
+
+    public String getColumnName(int columnIndex);
+
+    public String getString(int columnIndex);
+
+    public short getShort(int columnIndex);
+
+    public int getInt(int columnIndex);
+
+    public long getLong(int columnIndex);
+
+    public float getFloat(int columnIndex);
+
+    public double getDouble(int columnIndex);
+
+    public byte[] getBlob(int columnIndex);
+
+    public boolean isNull(int columnIndex);
+
+    public void close();
+
+    public boolean isClosed();
+}
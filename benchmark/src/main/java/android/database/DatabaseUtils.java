@@ -0,0 +1,60 @@
+package android.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Helpers for queries that return a single value.
+ */
+public class DatabaseUtils {
+
+    /**
+     * @return The first column of the first row of the query.
+     */
+    public static long longForQuery(SQLiteDatabase db, String query, String[] selectionArgs) {
+        SQLiteStatement statement = db.compileStatement(query);
+        try {
+            bind(statement, selectionArgs);
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * @return The first column of the first row of the query.
+     */
+    public static String stringForQuery(SQLiteDatabase db, String query, String[] selectionArgs) {
+        SQLiteStatement statement = db.compileStatement(query);
+        try {
+            bind(statement, selectionArgs);
+            return statement.simpleQueryForString();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public static long queryNumEntries(SQLiteDatabase db, String table) {
+        return queryNumEntries(db, table, null, null);
+    }
+
+    public static long queryNumEntries(SQLiteDatabase db, String table, String selection) {
+        return queryNumEntries(db, table, selection, null);
+    }
+
+    /**
+     * @return The number of rows in the table that match selection.
+     */
+    public static long queryNumEntries(SQLiteDatabase db, String table, String selection, String[] selectionArgs) {
+        String where = selection != null && selection.length() > 0 ? " WHERE " + selection : "";
+        return longForQuery(db, "SELECT count(*) FROM " + table + where, selectionArgs);
+    }
+
+    private static void bind(SQLiteStatement statement, String[] selectionArgs) {
+        if (selectionArgs == null)
+            return;
+        for (int i = 0; i < selectionArgs.length; i++) {
+            statement.bindString(i + 1, selectionArgs[i]);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package android.database;
+
+/**
+ * An error running SQL.
+ */
+public class SQLException extends RuntimeException {
+
+    public SQLException() {
+    }
+
+    public SQLException(String error) {
+        super(error);
+    }
+
+    public SQLException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
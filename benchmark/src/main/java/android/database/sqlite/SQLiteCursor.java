@@ -0,0 +1,226 @@
+package android.database.sqlite;
+
+import android.database.Cursor;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+/**
+ * A cursor over the rows of a query, read in full when the query runs, as Android fills its cursor window.
+ * Values are converted the way Android converts them: NULL reads as 0 or null, and numbers read as strings.
+ */
+public class SQLiteCursor implements Cursor {
+
+    private final String[] columnNames;
+    private final ArrayList<Object[]> rows = new ArrayList<Object[]>();
+    private int position = -1;
+    private boolean closed = false;
+
+    SQLiteCursor(ResultSet resultSet) throws SQLException {
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        columnNames = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = metaData.getColumnLabel(i + 1);
+        }
+        while (resultSet.next()) {
+            Object[] row = new Object[columnNames.length];
+            for (int i = 0; i < row.length; i++) {
+                row[i] = resultSet.getObject(i + 1);
+            }
+            rows.add(row);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getPosition() {
+        return position;
+    }
+
+    @Override
+    public boolean move(int offset) {
+        return moveToPosition(position + offset);
+    }
+
+    @Override
+    public boolean moveToPosition(int position) {
+        if (position < 0) {
+            this.position = -1;
+            return false;
+        }
+        if (position >= rows.size()) {
+            this.position = rows.size();
+            return false;
+        }
+        this.position = position;
+        return true;
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    @Override
+    public boolean moveToLast() {
+        return moveToPosition(rows.size() - 1);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        return moveToPosition(position + 1);
+    }
+
+    @Override
+    public boolean moveToPrevious() {
+        return moveToPosition(position - 1);
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return rows.isEmpty() || position == -1;
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return rows.isEmpty() || position == rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columnNames.length;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        // A qualified name such as "e._id" is looked up by its column.
+        int dot = columnName.lastIndexOf('.');
+        if (dot != -1) {
+            columnName = columnName.substring(dot + 1);
+        }
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(columnName))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index == -1)
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        return index;
+    }
+
+    @Override
+    public String getColumnName(int columnIndex) {
+        return columnNames[columnIndex];
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null)
+            return null;
+        if (value instanceof byte[])
+            throw new SQLiteException("unable to convert BLOB to string");
+        return value.toString();
+    }
+
+    @Override
+    public short getShort(int columnIndex) {
+        return (short) getLong(columnIndex);
+    }
+
+    @Override
+    public int getInt(int columnIndex) {
+        return (int) getLong(columnIndex);
+    }
+
+    @Override
+    public long getLong(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).longValue();
+        if (value instanceof String)
+            return parseLong((String) value);
+        throw new SQLiteException("unable to convert BLOB to long");
+    }
+
+    @Override
+    public float getFloat(int columnIndex) {
+        return (float) getDouble(columnIndex);
+    }
+
+    @Override
+    public double getDouble(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null)
+            return 0;
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (value instanceof String)
+            return parseDouble((String) value);
+        throw new SQLiteException("unable to convert BLOB to double");
+    }
+
+    @Override
+    public byte[] getBlob(int columnIndex) {
+        Object value = get(columnIndex);
+        if (value == null || value instanceof byte[])
+            return (byte[]) value;
+        return value.toString().getBytes();
+    }
+
+    @Override
+    public boolean isNull(int columnIndex) {
+        return get(columnIndex) == null;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        rows.clear();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private Object get(int columnIndex) {
+        if (closed)
+            throw new IllegalStateException("Cursor is closed");
+        if (position < 0 || position >= rows.size())
+            throw new IndexOutOfBoundsException("Index " + position + " requested, with a size of " + rows.size());
+        return rows.get(position)[columnIndex];
+    }
+
+    /**
+     * SQLite reads text that is not a number as 0.
+     */
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return (long) parseDouble(value);
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Android's SQLiteDatabase over one JDBC connection to SQLite, so code written against the Android API runs on the JVM.
+ * Like Android, a transaction belongs to the thread that began it: other threads wait for it to end before their
+ * statements run, and a nested transaction that ends without being marked successful rolls the outermost one back.
+ * Unlike Android with write ahead logging, reads on other threads also wait, as there is only the one connection.
+ */
+public final class SQLiteDatabase {
+
+    public static final int CONFLICT_NONE = 0;
+    public static final int CONFLICT_ROLLBACK = 1;
+    public static final int CONFLICT_ABORT = 2;
+    public static final int CONFLICT_FAIL = 3;
+    public static final int CONFLICT_IGNORE = 4;
+    public static final int CONFLICT_REPLACE = 5;
+
+    public static final int OPEN_READWRITE = 0x00000000;
+    public static final int OPEN_READONLY = 0x00000001;
+    public static final int CREATE_IF_NECESSARY = 0x10000000;
+
+    private static final String[] CONFLICT_VALUES = {"", " OR ROLLBACK", " OR ABORT", " OR FAIL", " OR IGNORE", " OR REPLACE"};
+
+    private final String path;
+    private final Connection connection;
+    // Held by the thread in a transaction, and around every statement.
+    private final ReentrantLock lock = new ReentrantLock();
+    private PreparedStatement lastInsertRowId;
+
+    // Transaction state, guarded by lock.
+    private int transactionDepth = 0;
+    private boolean markedSuccessful = false;
+    private boolean childFailed = false;
+
+    private SQLiteDatabase(String path, Connection connection) {
+        this.path = path;
+        this.connection = connection;
+    }
+
+    /**
+     * Unused on the JVM. Cursors are always SQLiteCursors.
+     */
+    public static interface CursorFactory {
+    }
+
+    public static SQLiteDatabase openDatabase(String path, CursorFactory factory, int flags) {
+        if ((flags & CREATE_IF_NECESSARY) == 0 && !":memory:".equals(path) && !new File(path).exists())
+            throw new SQLiteException("unable to open database file: " + path);
+        try {
+            return new SQLiteDatabase(path, DriverManager.getConnection("jdbc:sqlite:" + path));
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public static SQLiteDatabase openOrCreateDatabase(File file, CursorFactory factory) {
+        return openDatabase(file.getPath(), factory, CREATE_IF_NECESSARY);
+    }
+
+    /**
+     * @return A database in memory, deleted when it is closed.
+     */
+    public static SQLiteDatabase create(CursorFactory factory) {
+        return openDatabase(":memory:", factory, CREATE_IF_NECESSARY);
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isOpen() {
+        try {
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getVersion() {
+        Cursor c = rawQuery("PRAGMA user_version;", null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    /**
+     * Switches the database to write ahead logging.
+     * @return Whether it was switched. A database in memory can not be.
+     */
+    public boolean enableWriteAheadLogging() {
+        if (":memory:".equals(path))
+            return false;
+        lock.lock();
+        try {
+            if (transactionDepth > 0)
+                throw new IllegalStateException("Write Ahead Logging (WAL) mode cannot be enabled or disabled while there are transactions in progress.");
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeQuery("PRAGMA journal_mode=WAL;").close();
+            } finally {
+                statement.close();
+            }
+            return true;
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void beginTransaction() {
+        lock.lock();
+        boolean begun = false;
+        try {
+            if (transactionDepth == 0) {
+                execute("BEGIN EXCLUSIVE;");
+                childFailed = false;
+            } else if (markedSuccessful) {
+                throw new IllegalStateException("Cannot perform this operation because the transaction has already been marked successful.");
+            }
+            transactionDepth++;
+            markedSuccessful = false;
+            begun = true;
+        } finally {
+            if (!begun) {
+                lock.unlock();
+            }
+        }
+    }
+
+    public void beginTransactionNonExclusive() {
+        beginTransaction();
+    }
+
+    public void setTransactionSuccessful() {
+        checkTransaction();
+        if (markedSuccessful)
+            throw new IllegalStateException("setTransactionSuccessful may only be called once per call to beginTransaction.");
+        markedSuccessful = true;
+    }
+
+    public void endTransaction() {
+        checkTransaction();
+        try {
+            if (!markedSuccessful) {
+                childFailed = true;
+            }
+            transactionDepth--;
+            if (transactionDepth == 0) {
+                execute(childFailed ? "ROLLBACK;" : "COMMIT;");
+            } else {
+                // The enclosing transaction is still open and has not been marked yet.
+                markedSuccessful = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean inTransaction() {
+        lock.lock();
+        try {
+            return transactionDepth > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkTransaction() {
+        if (!lock.isHeldByCurrentThread() || transactionDepth == 0)
+            throw new IllegalStateException("Cannot perform this operation because there is no current transaction.");
+    }
+
+    public void execSQL(String sql) {
+        lock.lock();
+        try {
+            execute(sql);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void execSQL(String sql, Object[] bindArgs) {
+        lock.lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bind(statement, bindArgs);
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        lock.lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bind(statement, selectionArgs);
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    return new SQLiteCursor(resultSet);
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy) {
+        return query(table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
+    }
+
+    public Cursor query(String table, String[] columns, String selection, String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns == null || columns.length == 0) {
+            sql.append('*');
+        } else {
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(table);
+        appendClause(sql, " WHERE ", selection);
+        appendClause(sql, " GROUP BY ", groupBy);
+        appendClause(sql, " HAVING ", having);
+        appendClause(sql, " ORDER BY ", orderBy);
+        appendClause(sql, " LIMIT ", limit);
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    private static void appendClause(StringBuilder sql, String name, String clause) {
+        if (clause != null && clause.length() > 0) {
+            sql.append(name).append(clause);
+        }
+    }
+
+    /**
+     * @return The row id of the new row, or -1 if it could not be inserted.
+     */
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        try {
+            return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+        } catch (SQLiteException e) {
+            return -1;
+        }
+    }
+
+    public long insertOrThrow(String table, String nullColumnHack, ContentValues values) {
+        return insertWithOnConflict(table, nullColumnHack, values, CONFLICT_NONE);
+    }
+
+    /**
+     * @return The row id of the new row, or -1 if no row was inserted, such as when a conflict was ignored.
+     */
+    public long insertWithOnConflict(String table, String nullColumnHack, ContentValues values, int conflictAlgorithm) {
+        StringBuilder sql = new StringBuilder("INSERT").append(CONFLICT_VALUES[conflictAlgorithm]).append(" INTO ").append(table).append('(');
+        Object[] bindArgs;
+        if (values == null || values.size() == 0) {
+            sql.append(nullColumnHack).append(") VALUES (NULL)");
+            bindArgs = new Object[0];
+        } else {
+            bindArgs = new Object[values.size()];
+            int i = 0;
+            for (Map.Entry<String, Object> value : values.valueSet()) {
+                sql.append(i > 0 ? "," : "").append(value.getKey());
+                bindArgs[i++] = value.getValue();
+            }
+            sql.append(") VALUES (");
+            for (i = 0; i < bindArgs.length; i++) {
+                sql.append(i > 0 ? ",?" : "?");
+            }
+            sql.append(')');
+        }
+        lock.lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql.toString());
+            try {
+                bind(statement, bindArgs);
+                return statement.executeUpdate() == 0 ? -1 : lastInsertRowId();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int update(String table, ContentValues values, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        int argCount = values.size() + (whereArgs == null ? 0 : whereArgs.length);
+        Object[] bindArgs = new Object[argCount];
+        int i = 0;
+        for (Map.Entry<String, Object> value : values.valueSet()) {
+            sql.append(i > 0 ? "," : "").append(value.getKey()).append("=?");
+            bindArgs[i++] = value.getValue();
+        }
+        if (whereArgs != null) {
+            System.arraycopy(whereArgs, 0, bindArgs, i, whereArgs.length);
+        }
+        appendClause(sql, " WHERE ", whereClause);
+        return executeUpdateDelete(sql.toString(), bindArgs);
+    }
+
+    public int delete(String table, String whereClause, String[] whereArgs) {
+        StringBuilder sql = new StringBuilder("DELETE FROM ").append(table);
+        appendClause(sql, " WHERE ", whereClause);
+        return executeUpdateDelete(sql.toString(), whereArgs);
+    }
+
+    private int executeUpdateDelete(String sql, Object[] bindArgs) {
+        lock.lock();
+        try {
+            PreparedStatement statement = connection.prepareStatement(sql);
+            try {
+                bind(statement, bindArgs);
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        lock.lock();
+        try {
+            return new SQLiteStatement(this, connection.prepareStatement(sql));
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void lock() {
+        lock.lock();
+    }
+
+    void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Call with the lock held.
+     */
+    long lastInsertRowId() throws SQLException {
+        if (lastInsertRowId == null) {
+            lastInsertRowId = connection.prepareStatement("SELECT last_insert_rowid();");
+        }
+        ResultSet resultSet = lastInsertRowId.executeQuery();
+        try {
+            resultSet.next();
+            return resultSet.getLong(1);
+        } finally {
+            resultSet.close();
+        }
+    }
+
+    /**
+     * Call with the lock held.
+     */
+    private void execute(String sql) {
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    static void bind(PreparedStatement statement, Object[] bindArgs) throws SQLException {
+        if (bindArgs == null)
+            return;
+        for (int i = 0; i < bindArgs.length; i++) {
+            Object arg = bindArgs[i];
+            if (arg instanceof Float) {
+                statement.setDouble(i + 1, (Float) arg);
+            } else if (arg instanceof Boolean) {
+                statement.setLong(i + 1, (Boolean) arg ? 1 : 0);
+            } else {
+                statement.setObject(i + 1, arg);
+            }
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package android.database.sqlite;
+
+/**
+ * Thrown when a statement expected to return a row returns none.
+ */
+public class SQLiteDoneException extends SQLiteException {
+
+    public SQLiteDoneException() {
+    }
+
+    public SQLiteDoneException(String error) {
+        super(error);
+    }
+}
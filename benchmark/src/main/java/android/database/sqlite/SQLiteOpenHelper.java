@@ -0,0 +1,100 @@
+package android.database.sqlite;
+
+import android.content.Context;
+
+import java.io.File;
+
+/**
+ * Opens a database, creating or upgrading its schema in one transaction when its version is not the one asked for.
+ */
+public abstract class SQLiteOpenHelper {
+
+    private final Context context;
+    private final String name;
+    private final SQLiteDatabase.CursorFactory factory;
+    private final int version;
+    private SQLiteDatabase database;
+
+    /**
+     * @param name The database file in the context's database directory, or null for a database in memory.
+     */
+    public SQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory, int version) {
+        if (version < 1)
+            throw new IllegalArgumentException("Version must be >= 1, was " + version);
+        this.context = context;
+        this.name = name;
+        this.factory = factory;
+        this.version = version;
+    }
+
+    public String getDatabaseName() {
+        return name;
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (database != null && database.isOpen())
+            return database;
+        SQLiteDatabase db;
+        if (name == null) {
+            db = SQLiteDatabase.create(factory);
+        } else {
+            File path = context.getDatabasePath(name);
+            File directory = path.getParentFile();
+            if (directory != null) {
+                directory.mkdirs();
+            }
+            db = SQLiteDatabase.openOrCreateDatabase(path, factory);
+        }
+        try {
+            onConfigure(db);
+            int current = db.getVersion();
+            if (current != version) {
+                db.beginTransaction();
+                try {
+                    if (current == 0) {
+                        onCreate(db);
+                    } else if (current > version) {
+                        onDowngrade(db, current, version);
+                    } else {
+                        onUpgrade(db, current, version);
+                    }
+                    db.setVersion(version);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+            onOpen(db);
+        } catch (RuntimeException e) {
+            db.close();
+            throw e;
+        }
+        database = db;
+        return db;
+    }
+
+    public SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public synchronized void close() {
+        if (database != null && database.isOpen()) {
+            database.close();
+        }
+        database = null;
+    }
+
+    public void onConfigure(SQLiteDatabase db) {
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        throw new SQLiteException("Can't downgrade database from version " + oldVersion + " to " + newVersion);
+    }
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+}
@@ -0,0 +1,156 @@
+package android.database.sqlite;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * A statement compiled once and run many times with different bindings.
+ * Bindings are kept until the statement runs, so binding does not need the database's lock.
+ */
+public final class SQLiteStatement {
+
+    private final SQLiteDatabase database;
+    private final PreparedStatement statement;
+    private final Object[] bindArgs;
+
+    SQLiteStatement(SQLiteDatabase database, PreparedStatement statement) throws SQLException {
+        this.database = database;
+        this.statement = statement;
+        bindArgs = new Object[statement.getParameterMetaData().getParameterCount()];
+    }
+
+    public void bindNull(int index) {
+        bind(index, null);
+    }
+
+    public void bindLong(int index, long value) {
+        bind(index, value);
+    }
+
+    public void bindDouble(int index, double value) {
+        bind(index, value);
+    }
+
+    public void bindString(int index, String value) {
+        if (value == null)
+            throw new IllegalArgumentException("the bind value at index " + index + " is null");
+        bind(index, value);
+    }
+
+    public void bindBlob(int index, byte[] value) {
+        if (value == null)
+            throw new IllegalArgumentException("the bind value at index " + index + " is null");
+        bind(index, value);
+    }
+
+    public void clearBindings() {
+        Arrays.fill(bindArgs, null);
+    }
+
+    private void bind(int index, Object value) {
+        if (index < 1 || index > bindArgs.length)
+            throw new IllegalArgumentException("Cannot bind argument at index " + index + " because the index is out of range.  The statement has " + bindArgs.length + " parameters.");
+        bindArgs[index - 1] = value;
+    }
+
+    public void execute() {
+        database.lock();
+        try {
+            SQLiteDatabase.bind(statement, bindArgs);
+            statement.execute();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+
+    /**
+     * @return The number of rows changed.
+     */
+    public int executeUpdateDelete() {
+        database.lock();
+        try {
+            SQLiteDatabase.bind(statement, bindArgs);
+            return statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+
+    /**
+     * @return The row id of the inserted row, or -1 if no row was inserted.
+     */
+    public long executeInsert() {
+        database.lock();
+        try {
+            SQLiteDatabase.bind(statement, bindArgs);
+            return statement.executeUpdate() == 0 ? -1 : database.lastInsertRowId();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+
+    /**
+     * @return The first column of the first row.
+     * @throws SQLiteDoneException If the query returns no rows.
+     */
+    public long simpleQueryForLong() {
+        database.lock();
+        try {
+            SQLiteDatabase.bind(statement, bindArgs);
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                if (!resultSet.next())
+                    throw new SQLiteDoneException();
+                return resultSet.getLong(1);
+            } finally {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+
+    /**
+     * @return The first column of the first row.
+     * @throws SQLiteDoneException If the query returns no rows.
+     */
+    public String simpleQueryForString() {
+        database.lock();
+        try {
+            SQLiteDatabase.bind(statement, bindArgs);
+            ResultSet resultSet = statement.executeQuery();
+            try {
+                if (!resultSet.next())
+                    throw new SQLiteDoneException();
+                return resultSet.getString(1);
+            } finally {
+                resultSet.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+
+    public void close() {
+        database.lock();
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        } finally {
+            database.unlock();
+        }
+    }
+}
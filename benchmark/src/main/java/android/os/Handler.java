@@ -0,0 +1,67 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts runnables to a Looper's thread, now or after a delay.
+ */
+public class Handler {
+
+    private final Looper looper;
+    // Runnables posted and not run yet, so they can be removed.
+    private final HashMap<Runnable, ArrayList<ScheduledFuture<?>>> pending = new HashMap<Runnable, ArrayList<ScheduledFuture<?>>>();
+
+    public Handler(Looper looper) {
+        this.looper = looper;
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(final Runnable r, long delayMillis) {
+        synchronized (pending) {
+            final ScheduledFuture<?>[] future = new ScheduledFuture<?>[1];
+            future[0] = looper.executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (pending) {
+                        ArrayList<ScheduledFuture<?>> futures = pending.get(r);
+                        // Removed already if the runnable was removed while this started.
+                        if (futures == null || !futures.remove(future[0]))
+                            return;
+                        if (futures.isEmpty()) {
+                            pending.remove(r);
+                        }
+                    }
+                    r.run();
+                }
+            }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+            ArrayList<ScheduledFuture<?>> futures = pending.get(r);
+            if (futures == null) {
+                futures = new ArrayList<ScheduledFuture<?>>();
+                pending.put(r, futures);
+            }
+            futures.add(future[0]);
+        }
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        synchronized (pending) {
+            ArrayList<ScheduledFuture<?>> futures = pending.remove(r);
+            if (futures == null)
+                return;
+            for (ScheduledFuture<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+}
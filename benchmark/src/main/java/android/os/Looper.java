@@ -0,0 +1,44 @@
+package android.os;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The main thread, on the JVM a daemon thread that runs what Handlers post to it in order.
+ */
+public final class Looper {
+
+    private static final Looper mainLooper = new Looper("main");
+
+    private volatile Thread thread;
+    final ScheduledThreadPoolExecutor executor;
+
+    private Looper(final String name) {
+        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                Looper.this.thread = thread;
+                return thread;
+            }
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        executor.prestartAllCoreThreads();
+    }
+
+    public static Looper getMainLooper() {
+        return mainLooper;
+    }
+
+    /**
+     * @return The main looper on the main thread, or null on any other thread.
+     */
+    public static Looper myLooper() {
+        return Thread.currentThread() == mainLooper.thread ? mainLooper : null;
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+}